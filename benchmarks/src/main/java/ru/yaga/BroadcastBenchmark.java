@@ -0,0 +1,174 @@
+package ru.yaga;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+// Рассылка одного сообщения комнате из N участников. fanOut - кадр кодируется из строк один раз и
+// ставится в исходящие очереди (OutboundQueue) всех участников. relay - путь сервера для кадра клиента
+// (ChatHandler.handleFrame): кадр лежит в прямом буфере чтения, комната ищется и запрещенные слова
+// проверяются по байтам, тело копируется в кадр из пула (SharedFrame), который удерживают все очереди.
+// Очереди опустошаются в том же вызове, как это сделал бы поток записи NioConnection: кадры копируются
+// в буфер записи из пула. Запуск с -prof gc показывает байты, выделенные на одно сообщение
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BroadcastBenchmark {
+    @Param({"10", "100", "1000"})
+    int members;
+
+    private ChatRooms rooms;
+    private ChatRoom room;
+    private QueueSink[] sinks;
+    private ForbiddenWordsFilter filter;
+    private final BufferPool buffers = new BufferPool(ServerConfig.IO_BUFFER_BYTES, ServerConfig.IO_BUFFERS_PER_LOOP);
+    private ByteBuffer clientFrame; // Кадр CHAT от клиента в буфере чтения
+    private final String text = "Всем привет! Как дела у комнаты сегодня?";
+
+    @Setup
+    public void setup() throws IOException {
+        rooms = new ChatRooms(ServerConfig.ROOM_SHARDS);
+        sinks = new QueueSink[members];
+        for (int i = 0; i < members; i++) {
+            sinks[i] = new QueueSink(i + 1, buffers);
+            room = rooms.join("general", sinks[i]);
+        }
+
+        Random random = new Random(42);
+        List<String> words = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            StringBuilder word = new StringBuilder();
+            for (int j = 0; j < 6; j++) {
+                word.append((char) ('а' + random.nextInt(32)));
+            }
+            words.add(word.toString());
+        }
+        Path file = Files.createTempFile("forbidden", ".txt");
+        file.toFile().deleteOnExit();
+        Files.write(file, words, StandardCharsets.UTF_8);
+        filter = new ForbiddenWordsFilter(file);
+
+        byte[] frame = FrameCodec.encode(Frame.CHAT, (byte) 0, 0, 0, "user-1", "general", text);
+        clientFrame = ByteBuffer.allocateDirect(frame.length).put(frame);
+    }
+
+    @Benchmark
+    public void fanOut(Blackhole blackhole) {
+        SharedFrame frame = SharedFrame.wrap(FrameCodec.encode(Frame.CHAT, (byte) 0, 1, System.currentTimeMillis(), "user-1", "general", text));
+        room.broadcast(frame, null);
+        frame.release();
+        for (QueueSink sink : sinks) {
+            blackhole.consume(sink.drain());
+        }
+    }
+
+    @Benchmark
+    public void relay(Blackhole blackhole) throws IOException {
+        int offset = FrameCodec.LENGTH_BYTES;
+        int length = clientFrame.getInt(0);
+        int roomLengthOffset = FrameCodec.roomLengthOffset(clientFrame, offset, length);
+        int roomLength = clientFrame.getShort(roomLengthOffset) & 0xFFFF;
+        ChatRoom target = rooms.get(clientFrame, roomLengthOffset + 2, roomLength);
+        int bodyOffset = roomLengthOffset + 2 + roomLength;
+        int bodyLength = offset + length - bodyOffset;
+        if (filter.hasForbiddenWords(clientFrame, bodyOffset, bodyLength)) {
+            throw new IllegalStateException("В тексте сообщения не должно быть запрещенных слов");
+        }
+        SharedFrame frame = FrameCodec.encodeChat(1, System.currentTimeMillis(), "user-1", target.utf8Name(), clientFrame, bodyOffset, bodyLength);
+        target.broadcast(frame, null);
+        frame.release();
+        for (QueueSink sink : sinks) {
+            blackhole.consume(sink.drain());
+        }
+    }
+
+    // Участник в памяти: исходящая очередь без сокета
+    static final class QueueSink implements ChatSession {
+        private final int id;
+        private final BufferPool buffers;
+        private final OutboundQueue queue = new OutboundQueue(1024 * 1024, OutboundQueue.SlowConsumerPolicy.DROP_OLDEST);
+
+        QueueSink(int id, BufferPool buffers) {
+            this.id = id;
+            this.buffers = buffers;
+        }
+
+        @Override
+        public String getUsername() {
+            return "user-" + id;
+        }
+
+        @Override
+        public int getUserId() {
+            return id;
+        }
+
+        @Override
+        public Set<String> getRooms() {
+            return Collections.emptySet();
+        }
+
+        @Override
+        public RateLimiter.Client getRateLimit() {
+            return null;
+        }
+
+        @Override
+        public boolean acceptsCompression() {
+            return false;
+        }
+
+        @Override
+        public void send(SharedFrame frame) {
+            queue.offer(frame.retain());
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void drainAndClose() {
+        }
+
+        // Копирование очереди в буфер записи из пула, как в NioConnection.onWritable (запись в сокет опущена)
+        int drain() {
+            ByteBuffer buffer = buffers.acquire();
+            int bytes = 0;
+            while (true) {
+                queue.fill(buffer);
+                if (buffer.position() == 0) {
+                    break;
+                }
+                bytes += buffer.position();
+                buffer.clear();
+            }
+            buffers.release(buffer);
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package ru.yaga;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Отображение сообщений в клиенте: форматирование даты и времени и вставка пачки сообщений
+// в документ одним изменением (MessageView.appendAll). Окно заполняется заранее, поэтому
+// измеряется установившийся режим, в котором каждая вставка сопровождается удалением ранних строк.
+// Время указано на пачку из batch сообщений
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Benchmark)
+public class ClientFormatBenchmark {
+    private static final int CAPACITY = 1000;
+
+    @Param({"1", "32"})
+    public int batch;
+
+    private MessageView view;
+    private final List<MessageView.Line> lines = new ArrayList<>();
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        view = new MessageView(CAPACITY);
+        lines.clear();
+        for (int i = 0; i < batch; i++) {
+            lines.add(new MessageView.Line(System.currentTimeMillis(), "alice", "Сообщение для отображения в окне " + i));
+        }
+        for (int i = 0; i < 2 * CAPACITY; i += batch) {
+            view.appendAll(lines);
+        }
+    }
+
+    @Benchmark
+    public int appendAll() {
+        view.appendAll(lines);
+        return view.lineCount();
+    }
+}
@@ -0,0 +1,80 @@
+package ru.yaga;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Сжатие тела кадра (FrameCompression): время сжатия и распаковки одного кадра и степень сжатия.
+// Степень сжатия (размер сжатого кадра к исходному) выводится при подготовке каждого набора параметров,
+// по ней и по времени сжатия можно решить, с какого размера включать сжатие на медленных каналах.
+// kind: text - сообщение из русских слов, users - список имен через перевод строки (как ROOM_LIST)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dfile.encoding=UTF-8")
+@State(Scope.Benchmark)
+public class CompressionBenchmark {
+    private static final String[] WORDS = {"привет", "всем", "сегодня", "встреча", "в", "комнате", "general", "после",
+            "обеда", "кто", "будет", "да", "нет", "спасибо", "ссылка", "https://example.ru/docs", "проект", "сервер",
+            "сообщение", "пожалуйста", "посмотрите", "завтра", "отчет", "готов", "и", "на", "не", "что", "это"};
+
+    @Param({"256", "1024", "16384"})
+    int bodyBytes;
+
+    @Param({"text", "users"})
+    String kind;
+
+    @Param({"1", "6"})
+    int level;
+
+    private byte[] frame;
+    private byte[] compressed;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        StringBuilder body = new StringBuilder();
+        int user = 0;
+        while (body.toString().getBytes(StandardCharsets.UTF_8).length < bodyBytes) {
+            if (kind.equals("users")) {
+                body.append("user-").append(random.nextInt(100000)).append('-').append(user++).append('\n');
+            } else {
+                body.append(WORDS[random.nextInt(WORDS.length)]).append(random.nextInt(10) == 0 ? ". " : " ");
+            }
+        }
+        frame = FrameCodec.encode(Frame.CHAT, (byte) 0, 1, System.currentTimeMillis(), "alice", "general", body.toString());
+        compressed = FrameCompression.compress(frame, 0, level);
+        System.out.printf("%nСжатие %s, %d байт, уровень %d: %d -> %d байт (%.1f%%)%n",
+                kind, bodyBytes, level, frame.length, compressed.length, 100.0 * compressed.length / frame.length);
+    }
+
+    @Benchmark
+    public byte[] compress() {
+        return FrameCompression.compress(frame, 0, level);
+    }
+
+    @Benchmark
+    public Frame decompress() throws IOException {
+        return FrameCodec.decode(compressed, FrameCodec.LENGTH_BYTES, compressed.length - FrameCodec.LENGTH_BYTES);
+    }
+
+    // Разбор несжатого кадра для сравнения со стоимостью распаковки
+    @Benchmark
+    public Frame decodeUncompressed() throws IOException {
+        return FrameCodec.decode(frame, FrameCodec.LENGTH_BYTES, frame.length - FrameCodec.LENGTH_BYTES);
+    }
+}
@@ -0,0 +1,85 @@
+package ru.yaga;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Проверка сообщения на запрещенные слова: автомат Ахо-Корасик (ForbiddenWordsFilter)
+// против исходного способа - toLowerCase и contains для каждого слова словаря
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ForbiddenWordsBenchmark {
+    @Param({"10", "1000"})
+    int words;
+
+    @Param({"64", "1024"})
+    int messageLength;
+
+    private ForbiddenWordsFilter filter;
+    private List<String> dictionary;
+    private String message;
+
+    @Setup
+    public void setup() throws IOException {
+        Random random = new Random(42);
+        dictionary = new ArrayList<>();
+        for (int i = 0; i < words; i++) {
+            dictionary.add(randomWord(random, 5 + random.nextInt(6)));
+        }
+        Path file = Files.createTempFile("forbidden", ".txt");
+        file.toFile().deleteOnExit();
+        Files.write(file, dictionary, StandardCharsets.UTF_8);
+        filter = new ForbiddenWordsFilter(file);
+
+        // Чистое сообщение - худший случай: просматривается целиком
+        StringBuilder text = new StringBuilder();
+        while (text.length() < messageLength) {
+            text.append(randomWord(random, 3 + random.nextInt(8)).toUpperCase()).append(' ');
+        }
+        message = text.substring(0, messageLength);
+    }
+
+    @Benchmark
+    public boolean ahoCorasick() {
+        return filter.hasForbiddenWords(message);
+    }
+
+    @Benchmark
+    public boolean lowerCaseContains() {
+        for (String word : dictionary) {
+            if (message.toLowerCase().contains(word.toLowerCase())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String randomWord(Random random, int length) {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char) ('а' + random.nextInt(32));
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,71 @@
+package ru.yaga;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// Приватное сообщение: кодирование и разбор кадра протокола (FrameCodec) против прежнего формата -
+// строка "PRIVATE_MESSAGE:адресат:дата время имя (ЛС для адресат): текст" через writeUTF/readUTF и split
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FrameBenchmark {
+    private final String text = "Привет, это приватное сообщение средней длины";
+    private byte[] frame;
+    private byte[] utfMessage;
+
+    @Setup
+    public void setup() throws IOException {
+        frame = FrameCodec.encode(Frame.PRIVATE, (byte) 0, 42, 1700000000000L, "alice", "", text);
+        utfMessage = writeUtf("PRIVATE_MESSAGE:bob:2024-01-01 12:00:00 alice (ЛС для bob): " + text);
+    }
+
+    @Benchmark
+    public byte[] frameEncode() {
+        return FrameCodec.encode(Frame.PRIVATE, (byte) 0, 42, 1700000000000L, "alice", "", text);
+    }
+
+    @Benchmark
+    public Frame frameDecode() throws IOException {
+        return FrameCodec.decode(frame, FrameCodec.LENGTH_BYTES, frame.length - FrameCodec.LENGTH_BYTES);
+    }
+
+    @Benchmark
+    public byte[] writeUtfEncode() throws IOException {
+        return writeUtf("PRIVATE_MESSAGE:bob:2024-01-01 12:00:00 alice (ЛС для bob): " + text);
+    }
+
+    // Прежний разбор: readUTF, проверка префикса и split на адресата и текст
+    @Benchmark
+    public String[] writeUtfDecodeAndSplit() throws IOException {
+        String message = new DataInputStream(new ByteArrayInputStream(utfMessage)).readUTF();
+        if (!message.startsWith("PRIVATE_MESSAGE")) {
+            return null;
+        }
+        String[] parts = message.split(":", 4);
+        return new String[]{parts[1], parts[2] + ":" + parts[3]};
+    }
+
+    private static byte[] writeUtf(String message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        new DataOutputStream(bytes).writeUTF(message);
+        return bytes.toByteArray();
+    }
+}
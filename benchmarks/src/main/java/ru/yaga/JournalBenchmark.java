@@ -0,0 +1,60 @@
+package ru.yaga;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+// Сохранение сообщения комнаты (MessageJournal.append): добавление кадра в журнал с групповой записью.
+// Очередь журнала ограничена, поэтому при длительном измерении результат ограничен скоростью
+// потока записи на диск, а не только стоимостью постановки в очередь
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JournalBenchmark {
+    private MessageJournal journal;
+    private final byte[] room = "general".getBytes(StandardCharsets.UTF_8);
+
+    @Setup
+    public void setup() throws IOException {
+        Path dir = Files.createTempDirectory("journal-bench");
+        dir.toFile().deleteOnExit();
+        journal = MessageJournal.start(dir.resolve("messages.txt"), null, null);
+    }
+
+    @Benchmark
+    public void append(Body body) {
+        SharedFrame frame = FrameCodec.encodeChat(1, System.currentTimeMillis(), "alice", room, body.text, 0, body.text.limit());
+        journal.append(frame);
+        frame.release();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void appendFourThreads(Body body) {
+        append(body);
+    }
+
+    // Тело сообщения в буфере чтения своего потока: кодирование сдвигает позицию буфера
+    @State(Scope.Thread)
+    public static class Body {
+        final ByteBuffer text = ByteBuffer.wrap("Обычное сообщение в общий чат".getBytes(StandardCharsets.UTF_8));
+    }
+}
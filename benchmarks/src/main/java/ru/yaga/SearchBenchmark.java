@@ -0,0 +1,114 @@
+package ru.yaga;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+// Поиск по истории (SearchIndex.search): messages сообщений в двух комнатах от 1000 отправителей,
+// словарь из 20000 слов с распределением Ципфа (частые слова встречаются почти в каждом сообщении).
+// Индекс строится один раз, после чего фоновый поток записывает и сливает сегменты; измеряются
+// запросы из одного редкого слова, из двух частых слов, слова с отправителем и слова с диапазоном номеров
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class SearchBenchmark {
+    private static final int VOCABULARY = 20000;
+    private static final int LIMIT = 50;
+
+    @Param({"1000000"})
+    public int messages;
+
+    private SearchIndex index;
+    private String[] words;
+    private List<String> rareWord;
+    private List<String> commonWords;
+    private List<String> wordFromSender;
+    private long middleSeq;
+
+    @Setup
+    public void setup() throws IOException, InterruptedException {
+        Path dir = Files.createTempDirectory("search-bench");
+        MessageStore history = MessageStore.open(dir.resolve("history"), 256L * 1024 * 1024, 64);
+        index = SearchIndex.open(dir.resolve("search"), history, 65536, 10, 1024L * 1024 * 1024);
+        words = new String[VOCABULARY];
+        for (int i = 0; i < VOCABULARY; i++) {
+            words[i] = "слово" + Integer.toString(i, 36);
+        }
+        // Номера записей идут подряд, как номера MessageStore при записи журналом
+        Random random = new Random(1);
+        StringBuilder text = new StringBuilder();
+        for (int seq = 0; seq < messages; seq++) {
+            text.setLength(0);
+            for (int w = 0; w < 12; w++) {
+                text.append(words[zipf(random)]).append(' ');
+            }
+            index.add(seq, "user" + random.nextInt(1000), seq % 4 == 0 ? "random" : "general", text.toString());
+        }
+        waitForBackground(dir.resolve("search"));
+
+        rareWord = SearchIndex.Query.parse("general", words[VOCABULARY / 2]).terms;
+        commonWords = SearchIndex.Query.parse("general", words[1] + " " + words[2]).terms;
+        wordFromSender = SearchIndex.Query.parse("general", words[10] + " from:user7").terms;
+        middleSeq = messages / 2;
+    }
+
+    // Индекс слова с вероятностью, обратно пропорциональной его номеру
+    private static int zipf(Random random) {
+        return (int) Math.min(VOCABULARY - 1, Math.exp(random.nextDouble() * Math.log(VOCABULARY)) - 1);
+    }
+
+    // Ожидание, пока фоновый поток не запишет и не сольет сегменты (число файлов перестанет меняться)
+    private static void waitForBackground(Path dir) throws IOException, InterruptedException {
+        long previous = -1;
+        while (true) {
+            Thread.sleep(2000);
+            long files;
+            try (Stream<Path> list = Files.list(dir)) {
+                files = list.count();
+            }
+            if (files == previous) {
+                return;
+            }
+            previous = files;
+        }
+    }
+
+    @Benchmark
+    public long[] rareWord() {
+        return index.search(rareWord, 0, Long.MAX_VALUE, LIMIT);
+    }
+
+    @Benchmark
+    public long[] twoCommonWords() {
+        return index.search(commonWords, 0, Long.MAX_VALUE, LIMIT);
+    }
+
+    @Benchmark
+    public long[] wordFromSender() {
+        return index.search(wordFromSender, 0, Long.MAX_VALUE, LIMIT);
+    }
+
+    @Benchmark
+    public long[] commonWordsBeforeMiddle() {
+        return index.search(commonWords, 0, middleSeq, LIMIT);
+    }
+}
@@ -0,0 +1,158 @@
+package ru.yaga;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Стоимость TLS на сервере (ChatTls): полное и возобновленное рукопожатие и шифрование одного кадра
+// для отправки клиенту. Клиент и сервер - пара SSLEngine в памяти, без сокетов; самоподписанный ключ
+// EC P-256 для localhost создается keytool при подготовке. buffers: direct - зашифрованные данные в прямом
+// буфере, как в пуле цикла событий NIO, heap - в буфере в куче
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TlsBenchmark {
+    private static final int MAX_HANDSHAKE_STEPS = 100;
+
+    // Хранилища ключа сервера и доверенных сертификатов клиента во временном каталоге
+    @State(Scope.Benchmark)
+    public static class Keys {
+        @Setup
+        public void setup() throws IOException, InterruptedException {
+            Path dir = Files.createTempDirectory("tls-bench");
+            dir.toFile().deleteOnExit();
+            Path keyStore = dir.resolve("chat-server.p12");
+            Path certificate = dir.resolve("chat.crt");
+            Path trustStore = dir.resolve("chat-trust.p12");
+            keytool("-genkeypair", "-alias", "chat", "-keyalg", "EC", "-groupname", "secp256r1", "-validity", "1",
+                    "-dname", "CN=localhost", "-keystore", keyStore.toString(), "-storetype", "PKCS12", "-storepass", "changeit");
+            keytool("-exportcert", "-alias", "chat", "-keystore", keyStore.toString(), "-storepass", "changeit",
+                    "-file", certificate.toString());
+            keytool("-importcert", "-noprompt", "-alias", "chat", "-file", certificate.toString(),
+                    "-keystore", trustStore.toString(), "-storetype", "PKCS12", "-storepass", "changeit");
+            for (Path file : Arrays.asList(keyStore, certificate, trustStore)) {
+                file.toFile().deleteOnExit();
+            }
+            // ServerConfig и ChatTls читают свойства при загрузке, то есть при первом рукопожатии
+            System.setProperty("chat.tlsKeyStore", keyStore.toString());
+            System.setProperty("chat.tlsTrustStore", trustStore.toString());
+        }
+
+        private static void keytool(String... args) throws IOException, InterruptedException {
+            List<String> command = new ArrayList<>();
+            command.add(Paths.get(System.getProperty("java.home"), "bin", "keytool").toString());
+            command.addAll(Arrays.asList(args));
+            Process process = new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+            if (process.waitFor() != 0) {
+                throw new IOException("keytool завершился с ошибкой: " + command);
+            }
+        }
+    }
+
+    // Установленное соединение: сервер шифрует кадр размером frameBytes
+    @State(Scope.Thread)
+    public static class Connection {
+        @Param({"64", "1024", "16384"})
+        int frameBytes;
+
+        @Param({"direct", "heap"})
+        String buffers;
+
+        SSLEngine server;
+        ByteBuffer frame;
+        ByteBuffer net;
+
+        @Setup
+        public void setup(Keys keys) throws IOException {
+            server = ChatTls.serverEngine();
+            handshake(ChatTls.clientContext().createSSLEngine("localhost", ServerConfig.PORT), server);
+            frame = ByteBuffer.allocate(frameBytes);
+            int packetBytes = server.getSession().getPacketBufferSize();
+            net = buffers.equals("direct") ? ByteBuffer.allocateDirect(packetBytes) : ByteBuffer.allocate(packetBytes);
+        }
+    }
+
+    // Клиент без адреса сервера: сессия не сохраняется, каждое рукопожатие полное
+    @Benchmark
+    public SSLSession handshakeFull(Keys keys) throws IOException {
+        return handshake(ChatTls.clientContext().createSSLEngine(), ChatTls.serverEngine());
+    }
+
+    // Клиент с адресом сервера возобновляет сессию предыдущего рукопожатия
+    @Benchmark
+    public SSLSession handshakeResumed(Keys keys) throws IOException {
+        return handshake(ChatTls.clientContext().createSSLEngine("localhost", ServerConfig.PORT), ChatTls.serverEngine());
+    }
+
+    @Benchmark
+    public int wrap(Connection connection) throws SSLException {
+        connection.frame.clear();
+        connection.net.clear();
+        return connection.server.wrap(connection.frame, connection.net).bytesProduced();
+    }
+
+    // Обмен сообщениями рукопожатия до его завершения, включая билет сессии (NewSessionTicket) после него
+    private static SSLSession handshake(SSLEngine client, SSLEngine server) throws SSLException {
+        client.setUseClientMode(true);
+        int packetBytes = server.getSession().getPacketBufferSize();
+        int applicationBytes = server.getSession().getApplicationBufferSize();
+        ByteBuffer toServer = ByteBuffer.allocate(packetBytes);
+        ByteBuffer toClient = ByteBuffer.allocate(packetBytes);
+        ByteBuffer clientData = ByteBuffer.allocate(applicationBytes);
+        ByteBuffer serverData = ByteBuffer.allocate(applicationBytes);
+        ByteBuffer empty = ByteBuffer.allocate(0);
+        client.beginHandshake();
+        server.beginHandshake();
+        for (int step = 0; step < MAX_HANDSHAKE_STEPS; step++) {
+            runTasks(client.wrap(empty, toServer), client);
+            runTasks(server.wrap(empty, toClient), server);
+            toServer.flip();
+            toClient.flip();
+            runTasks(client.unwrap(toClient, clientData), client);
+            runTasks(server.unwrap(toServer, serverData), server);
+            toServer.compact();
+            toClient.compact();
+            if (toServer.position() == 0 && toClient.position() == 0 && idle(client) && idle(server)) {
+                return client.getSession();
+            }
+        }
+        throw new SSLException("Рукопожатие не завершилось за " + MAX_HANDSHAKE_STEPS + " шагов");
+    }
+
+    private static void runTasks(SSLEngineResult result, SSLEngine engine) {
+        if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+            Runnable task;
+            while ((task = engine.getDelegatedTask()) != null) {
+                task.run();
+            }
+        }
+    }
+
+    private static boolean idle(SSLEngine engine) {
+        return engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING;
+    }
+}
@@ -0,0 +1,37 @@
+package ru.yaga;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+// Пул прямых буферов ввода-вывода одного размера для одного потока (цикла событий). Соединение берет
+// буфер чтения, только пока у него есть недочитанный кадр, и буфер записи, только пока есть неотправленные
+// данные, поэтому память простаивающих соединений не зависит от размера буферов. Прямой буфер ОС читает
+// и пишет без промежуточного копирования, которое JDK делает для буферов в куче.
+// Сверх maxPooled освободившиеся буферы не хранятся
+final class BufferPool {
+    private final int bufferBytes;
+    private final int maxPooled;
+    private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+
+    BufferPool(int bufferBytes, int maxPooled) {
+        this.bufferBytes = bufferBytes;
+        this.maxPooled = maxPooled;
+    }
+
+    // Пустой буфер размером bufferBytes
+    ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        return buffer != null ? buffer.clear() : ByteBuffer.allocateDirect(bufferBytes);
+    }
+
+    // Возврат буфера. Буферы другого размера (расширенные под длинный кадр) в пул не попадают
+    void release(ByteBuffer buffer) {
+        if (buffer.isDirect() && buffer.capacity() == bufferBytes && free.size() < maxPooled) {
+            free.push(buffer);
+        }
+    }
+
+    int bufferBytes() {
+        return bufferBytes;
+    }
+}
@@ -1,46 +1,49 @@
 package ru.yaga;
 
 import javax.swing.*;
-import javax.swing.text.*;
 import java.awt.*;
 import java.awt.event.*;
-import java.io.*;
-import java.net.Socket;
-import java.text.SimpleDateFormat;
-import java.util.Date;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class ChatClient extends JFrame {
-    private final Socket socket;
-    private final DataInputStream dataInputStream;
-    private final DataOutputStream dataOutputStream;
-    private final JTextPane outTextPane;
+    private final ClientConnection connection; // Соединение с сервером со своими потоками чтения и записи
+    private final MessageView messageView; // Область вывода сообщений с ограниченным числом строк
     private final JTextField inTextField;
     private final String username;
-    private static final String USERS_FILE = "users.txt";
     private JComboBox<String> userComboBox;
+    // Сколько последних сообщений держать в окне (при просмотре ранней истории - вдвое больше)
+    private static final int MAX_MESSAGES = Integer.getInteger("chat.clientMaxMessages", 1000);
+    private final DefaultComboBoxModel<String> userListModel = new DefaultComboBoxModel<>(); // Пользователи в сети
+    private final Map<String, Integer> userIds = new HashMap<>(); // Идентификаторы пользователей в сети по имени
+    private String currentRoom = ""; // Комната для общих сообщений (пусто - комната по умолчанию сервера)
+    private boolean updatingUserList; // Изменение списка сервером, а не выбор пользователя
+    private final List<MessageView.Line> pendingLines = new ArrayList<>(); // Сообщения пачки process, еще не выведенные
+    private final List<MessageView.Line> historyLines = new ArrayList<>(); // Страница ранней истории до кадра HISTORY
 
     // Конструктор класса
-    public ChatClient(Socket socket, DataInputStream dataInputStream, DataOutputStream dataOutputStream, String username) {
-        super("Chat Client - " + username);
-        this.socket = socket;
-        this.dataInputStream = dataInputStream;
-        this.dataOutputStream = dataOutputStream;
-        this.username = username;
+    public ChatClient(ClientConnection connection) {
+        super("Chat Client - " + connection.username());
+        this.connection = connection;
+        this.username = connection.username();
 
         setSize(400, 500);
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         setLayout(new BorderLayout());
 
-        // Создание выпадающего списка пользователей
-        this.userComboBox = new JComboBox<>();
+        // Создание выпадающего списка пользователей (заполняется кадрами присутствия от сервера)
+        this.userComboBox = new JComboBox<>(userListModel);
         add(BorderLayout.NORTH, this.userComboBox);
 
         // Обработчик события выбора пользователя из списка
         this.userComboBox.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
+                if (updatingUserList) {
+                    return;
+                }
                 String selectedUser = (String) userComboBox.getSelectedItem();
                 if (selectedUser != null && !selectedUser.isEmpty()) {
                     // Получаем текст сообщения для отправки
@@ -48,20 +51,13 @@ public class ChatClient extends JFrame {
 
                     // Формируем приватное сообщение
                     if (message != null && !message.isEmpty()) {
-                        String formattedMessage = getCurrentDateTime() + " " + username + " (ЛС для " + selectedUser + "): " + message;
-
-                        try {
-                            // Отправка приватного сообщения на сервер
-                            if (selectedUser.equals("All")) {
-                                // Отправка всем пользователям
-                                dataOutputStream.writeUTF(formattedMessage);
-                            } else {
-                                // Отправка конкретному пользователю
-                                dataOutputStream.writeUTF("PRIVATE_MESSAGE:" + selectedUser + ":" + formattedMessage);
-                            }
-                            dataOutputStream.flush();
-                        } catch (IOException ex) {
-                            ex.printStackTrace();
+                        // Отправка приватного сообщения на сервер
+                        if (selectedUser.equals("All") || !userIds.containsKey(selectedUser)) {
+                            // Отправка всем пользователям
+                            writeFrame(Frame.CHAT, null, currentRoom, message);
+                        } else {
+                            // Отправка конкретному пользователю
+                            writeFrame(Frame.PRIVATE, selectedUser, "", message);
                         }
                     }
                 }
@@ -90,26 +86,10 @@ public class ChatClient extends JFrame {
         // Добавление панели с текстовым полем ввода и кнопкой "Send"
         add(BorderLayout.SOUTH, inputPanel);
 
-        // Отображение списка пользователей в выпадающем списке
-        displayUserList(this.userComboBox);
-
-        // Добавляем обработчик события закрытия окна
-        addWindowListener(new WindowAdapter() {
-            @Override
-            public void windowClosing(WindowEvent e) {
-                // Вызываем метод удаления пользователя из файла при закрытии окна
-                removeUserFromFile(username, userComboBox);
-                super.windowClosing(e);
-            }
-        });
-
-        // Вызов метода для обновления списка пользователей
-        updateUserList(this.userComboBox);
-
-        // Создание области вывода сообщений
-        outTextPane = new JTextPane();
-        outTextPane.setEditable(false);
-        add(new JScrollPane(outTextPane));
+        // Создание области вывода сообщений; при прокрутке к началу запрашивается более ранняя история
+        messageView = new MessageView(MAX_MESSAGES);
+        messageView.setOlderHistoryRequest(this::requestOlderHistory);
+        add(messageView.component());
 
         // Обработчик события ввода текста пользователем
         inTextField.addActionListener(new ActionListener() {
@@ -126,163 +106,179 @@ public class ChatClient extends JFrame {
 
         // Запуск фонового потока для чтения сообщений от сервера
         new ChatWorker().execute();
-
-        // Вызов метода для запуска потока обновления списка пользователей
-        startUserListUpdater(userComboBox);
     }
 
     // Метод для отправки сообщения на сервер
     private void sendMessage() {
-        try {
-            // Получение текста сообщения из текстового поля
-            String message = inTextField.getText();
-            if (!message.isEmpty()) {
-                String formattedMessage = getCurrentDateTime() + " " + username + ": " + message;
-
-                // Отправка сообщения на сервер
-                dataOutputStream.writeUTF(formattedMessage);
-                dataOutputStream.flush();
-
-                // Очистка поля ввода
-                inTextField.setText("");
-            }
-        } catch (IOException ex) {
-            ex.printStackTrace();
+        // Получение текста сообщения из текстового поля
+        String message = inTextField.getText();
+        if (message.startsWith("/join ")) {
+            // Вход в комнату: /join имя
+            writeFrame(Frame.ROOM_JOIN, null, message.substring("/join ".length()).trim(), "");
+            inTextField.setText("");
+        } else if (message.equals("/leave")) {
+            // Выход из текущей комнаты
+            writeFrame(Frame.ROOM_LEAVE, null, currentRoom, "");
+            inTextField.setText("");
+        } else if (message.startsWith("/search ")) {
+            // Поиск в истории текущей комнаты: /search слова [from:имя] [since:2024-01-31] [until:2024-01-31]
+            writeFrame(Frame.SEARCH, null, currentRoom, message.substring("/search ".length()).trim());
+            inTextField.setText("");
+        } else if (message.equals("/rooms")) {
+            // Запрос списка комнат
+            writeFrame(Frame.ROOM_LIST, null, "", "");
+            inTextField.setText("");
+        } else if (!message.isEmpty()) {
+            // Отправка сообщения на сервер в текущую комнату
+            writeFrame(Frame.CHAT, null, currentRoom, message);
+
+            // Очистка поля ввода
+            inTextField.setText("");
         }
     }
 
 
-    // Метод для отображения выпадающего списка пользователей
-    private void displayUserList(JComboBox<String> userComboBox) {
-        try (BufferedReader bufferedReader = new BufferedReader(new FileReader(USERS_FILE))) {
-            List<String> userList = new ArrayList<>();
-            String line;
-            while ((line = bufferedReader.readLine()) != null) {
-                userList.add(line.split(":")[1]); // Получение имени пользователя из строки
-            }
+    // Запрос у сервера страницы истории текущей комнаты, предшествующей самой ранней строке окна
+    private void requestOlderHistory() {
+        writeFrame(Frame.HISTORY, null, messageView.oldestTimestamp(), currentRoom, messageView.historyCursor());
+    }
+
+    // Отправка кадра на сервер через очередь соединения (без ожидания сети). target - имя адресата
+    // приватного сообщения. Дату и время сообщения проставляет сервер
+    private void writeFrame(byte opcode, String target, String room, String text) {
+        writeFrame(opcode, target, 0, room, text);
+    }
 
-            // Отображение списка пользователей в выпадающем списке
-            DefaultComboBoxModel<String> model = new DefaultComboBoxModel<>(userList.toArray(new String[0]));
-            userComboBox.setModel(model);
-        } catch (IOException e) {
-            e.printStackTrace();
+    private void writeFrame(byte opcode, String target, long timestamp, String room, String text) {
+        if (!connection.send(opcode, target, timestamp, room, text)) {
+            appendStyledMessage(System.currentTimeMillis(), "Клиент", "нет связи с сервером, сообщение не отправлено.");
+            flushMessages();
         }
     }
 
-    // Метод для обновления списка пользователей
-    private void updateUserList(JComboBox<String> userComboBox) {
-        try (BufferedReader bufferedReader = new BufferedReader(new FileReader(USERS_FILE))) {
-            List<String> userList = new ArrayList<>();
-            String line;
-            while ((line = bufferedReader.readLine()) != null) {
-                userList.add(line.split(":")[1]); // Получение имени пользователя из строки
+    // Метод для обновления списка пользователей по кадру присутствия от сервера
+    private void updateUserList(Frame presence) {
+        updatingUserList = true;
+        try {
+            if (presence.opcode == Frame.PRESENCE_JOIN) {
+                userIds.put(presence.name, presence.userId);
+                if (userListModel.getIndexOf(presence.name) < 0) {
+                    userListModel.addElement(presence.name);
+                }
+            } else if (presence.opcode == Frame.PRESENCE_LEAVE) {
+                userIds.remove(presence.name);
+                userListModel.removeElement(presence.name);
+            } else if (presence.opcode == Frame.PRESENCE_LIST) {
+                for (Map.Entry<String, Integer> user : presence.listedUsers().entrySet()) {
+                    userIds.put(user.getKey(), user.getValue());
+                    if (userListModel.getIndexOf(user.getKey()) < 0) {
+                        userListModel.addElement(user.getKey());
+                    }
+                }
             }
-
-            // Обновление списка в выпадающем списке
-            DefaultComboBoxModel<String> model = new DefaultComboBoxModel<>(userList.toArray(new String[0]));
-            userComboBox.setModel(model);
-        } catch (IOException e) {
-            e.printStackTrace();
+        } finally {
+            updatingUserList = false;
         }
     }
 
-    // Метод для запуска потока обновления списка пользователей
-    private void startUserListUpdater(JComboBox<String> userComboBox) {
-        new Thread(() -> {
-            while (true) {
-                try {
-                    // Задержка перед обновлением списка (каждые 10 секунд)
-                    Thread.sleep(10000);
-
-                    // Обновление списка пользователей
-                    updateUserList(userComboBox);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
+    // Метод для смены текущей комнаты по подтверждению входа или выхода от сервера.
+    // События других участников комнаты не показываются, чтобы не засорять окно в больших комнатах
+    private void updateRoom(Frame frame) {
+        if (!frame.name.equals(username)) {
+            return;
+        }
+        // Курсор истории относится к прежней комнате
+        messageView.resetHistory();
+        if (frame.opcode == Frame.ROOM_JOIN) {
+            currentRoom = frame.room;
+            appendStyledMessage(frame.timestamp, "Сервер", "вы вошли в комнату " + frame.room);
+        } else {
+            if (frame.room.equals(currentRoom)) {
+                currentRoom = "";
             }
-        }).start();
+            appendStyledMessage(frame.timestamp, "Сервер", "вы вышли из комнаты " + frame.room);
+        }
+        setTitle("Chat Client - " + username + (currentRoom.isEmpty() ? "" : " [" + currentRoom + "]"));
     }
 
-    //Метод, выполняющий фоновые операции, читая данные от сервера в бесконечном цикле.
-    private class ChatWorker extends SwingWorker<Void, String> {
-        // В методе ChatWorker, после блока finally
+    //Метод, выполняющий фоновые операции: работа соединения с сервером с переподключением.
+    private class ChatWorker extends SwingWorker<Void, Frame> {
         @Override
         protected Void doInBackground() {
-            try {
-                while (true) {
-                    // Чтение строки от сервера и публикация для отображения в главном потоке
-                    String line = dataInputStream.readUTF().trim();
-                    publish(line);
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
-            } finally {
-                // Скрытие поля ввода, перерисовка окна и удаление пользователя из файла при завершении
-                inTextField.setVisible(false);
-                validate();
-                removeUserFromFile(username, userComboBox);
-
-                // Закрытие сокета и завершение приложения
-                try {
-                    socket.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-                System.exit(0);
-            }
+            // Кадры от сервера и уведомления о связи публикуются для отображения в главном потоке
+            connection.run(frame -> publish(frame));
             return null;
         }
 
-        //Метод, обрабатывающий и отображающий полученные строки в главном потоке.
+        //Метод, обрабатывающий и отображающий полученные кадры в главном потоке.
+        //Все сообщения пачки выводятся в окно одним изменением документа.
         @Override
-        protected void process(java.util.List<String> chunks) {
-            for (String line : chunks) {
-                appendStyledMessage(line);
+        protected void process(java.util.List<Frame> chunks) {
+            for (Frame frame : chunks) {
+                switch (frame.opcode) {
+                    case Frame.PRESENCE_JOIN:
+                    case Frame.PRESENCE_LEAVE:
+                    case Frame.PRESENCE_LIST:
+                        updateUserList(frame);
+                        break;
+                    case Frame.CHAT:
+                        if (frame.hasFlag(Frame.FLAG_HISTORY)) {
+                            historyLines.add(new MessageView.Line(frame.timestamp, "[" + frame.room + "] " + frame.name, frame.body));
+                        } else if (frame.hasFlag(Frame.FLAG_SEARCH)) {
+                            appendStyledMessage(frame.timestamp, "(найдено) [" + frame.room + "] " + frame.name, frame.body);
+                        } else {
+                            appendStyledMessage(frame.timestamp, "[" + frame.room + "] " + frame.name, frame.body);
+                        }
+                        break;
+                    case Frame.HISTORY:
+                        // Конец страницы ранней истории: вставка в начало окна одним изменением
+                        messageView.prependOlder(historyLines, frame.body);
+                        historyLines.clear();
+                        break;
+                    case Frame.SEARCH:
+                        appendStyledMessage(frame.timestamp, "Сервер", "найдено сообщений: " + frame.body);
+                        break;
+                    case Frame.ROOM_JOIN:
+                    case Frame.ROOM_LEAVE:
+                        updateRoom(frame);
+                        break;
+                    case Frame.ROOM_LIST:
+                        appendStyledMessage(frame.timestamp, "Сервер", "комнаты: " + frame.body.replace("\n", ", "));
+                        break;
+                    case Frame.PRIVATE:
+                        String from = frame.hasFlag(Frame.FLAG_OUTGOING)
+                                ? username + " (ЛС для " + frame.name + ")"
+                                : frame.name + " (ЛС)";
+                        appendStyledMessage(frame.timestamp, from, frame.body);
+                        break;
+                    case Frame.SHUTDOWN:
+                    case Frame.NOTICE:
+                        // Уведомления о связи с сервером подписаны "Клиент"
+                        appendStyledMessage(frame.timestamp, frame.name.isEmpty() ? "Сервер" : frame.name, frame.body);
+                        break;
+                    case Frame.ERROR:
+                        // После кадра ошибки сервер закрывает соединение, а клиент подключается заново
+                        appendStyledMessage(frame.timestamp, "Сервер", frame.body);
+                        flushMessages();
+                        JOptionPane.showMessageDialog(ChatClient.this, frame.body, "Предупреждение", JOptionPane.WARNING_MESSAGE);
+                        break;
+                    default:
+                        break;
+                }
             }
+            flushMessages();
         }
     }
 
-    //Метод для добавления стилизованного сообщения в область вывода сообщений.
-    private void appendStyledMessage(String message) {
-        StyledDocument doc = outTextPane.getStyledDocument();
-
-        // Создание стилей для разных компонентов сообщения
-        Style dateStyle = doc.addStyle("DateStyle", null);
-        Style timeStyle = doc.addStyle("TimeStyle", null);
-        Style usernameStyle = doc.addStyle("UsernameStyle", null);
-        Style textStyle = doc.addStyle("TextStyle", null);
-
-        // Разделение сообщения на части: дату, время, имя пользователя и текст
-        String[] parts = message.split(" ", 3);
-        if (parts.length == 3) {
-            String date = parts[0];
-            String time = parts[1];
-            String username = parts[2].substring(0, parts[2].indexOf(":"));
-            String text = parts[2].substring(parts[2].indexOf(":") + 2);
-
-            // Установка цвета для каждого компонента сообщения
-            StyleConstants.setForeground(dateStyle, Color.BLUE);
-            StyleConstants.setForeground(timeStyle, Color.GREEN);
-            StyleConstants.setForeground(usernameStyle, Color.RED);
-            StyleConstants.setForeground(textStyle, Color.BLACK);
-
-            try {
-                // Вставка каждой компоненты сообщения в область вывода
-                doc.insertString(doc.getLength(), date + " ", dateStyle);
-                doc.insertString(doc.getLength(), time + " ", timeStyle);
-                doc.insertString(doc.getLength(), username, usernameStyle);
-                doc.insertString(doc.getLength(), ": " + text + "\n", textStyle);
-            } catch (BadLocationException e) {
-                e.printStackTrace();
-            }
-        }
+    //Метод для добавления стилизованного сообщения в область вывода сообщений (выводится в конце пачки).
+    private void appendStyledMessage(long timestamp, String username, String text) {
+        pendingLines.add(new MessageView.Line(timestamp, username, text));
     }
 
-    //Метод для получения текущей даты и времени в формате "yyyy-MM-dd HH:mm:ss".
-    private String getCurrentDateTime() {
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-        Date now = new Date();
-        return sdf.format(now);
+    // Вывод накопленных сообщений в окно одним изменением документа
+    private void flushMessages() {
+        messageView.appendAll(pendingLines);
+        pendingLines.clear();
     }
 
     //Точка входа в приложение.
@@ -290,67 +286,13 @@ public class ChatClient extends JFrame {
         String site = "localhost";
         String port = "8082";
 
-        try {
-            // Получение имени пользователя с помощью диалогового окна
-            String username = JOptionPane.showInputDialog(null, "Введите имя пользователя:");
-
-            // Создание сокета и потоков ввода/вывода данных
-            Socket socket = new Socket(site, Integer.parseInt(port));
-            DataInputStream dataInputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
-            DataOutputStream dataOutputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
-
-            // Отправка имени пользователя на сервер
-            dataOutputStream.writeUTF(username);
-            dataOutputStream.flush();
-
-            // Создание объекта клиента
-            new ChatClient(socket, dataInputStream, dataOutputStream, username);
-        } catch (IOException e) {
-            e.printStackTrace();
+        // Получение имени пользователя с помощью диалогового окна
+        String username = JOptionPane.showInputDialog(null, "Введите имя пользователя:");
+        if (username == null || username.isEmpty()) {
+            return;
         }
-    }
-
-    // Метод для удаления пользователя из файла
-    private void removeUserFromFile(String username, JComboBox<String> userComboBox) {
-        try {
-            // Создание временного файла
-            File tempFile = new File("temp_users.txt");
-            BufferedWriter writer = new BufferedWriter(new FileWriter(tempFile));
-
-            BufferedReader reader = new BufferedReader(new FileReader(USERS_FILE));
-            String line;
-            while ((line = reader.readLine()) != null) {
-                // Если строка содержит имя пользователя, пропускаем ее
-                if (line.contains(username)) {
-                    continue;
-                }
-                // Записываем остальные строки во временный файл
-                writer.write(line + "\n");
-            }
-            reader.close();
-            writer.close();
-
-            // Копирование содержимого временного файла в исходный файл
-            try (FileInputStream inputStream = new FileInputStream(tempFile);
-                 FileOutputStream outputStream = new FileOutputStream(USERS_FILE)) {
-                byte[] buffer = new byte[1024];
-                int length;
-                while ((length = inputStream.read(buffer)) > 0) {
-                    outputStream.write(buffer, 0, length);
-                }
-            }
-
-            // Удаление временного файла
-            if (!tempFile.delete()) {
-                System.out.println("Не удалось удалить временный файл");
-            }
 
-            // Обновление списка пользователей в выпадающем списке
-            displayUserList(userComboBox);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        // Создание объекта клиента; подключение и рукопожатие выполняются в фоновом потоке
+        new ChatClient(new ClientConnection(site, Integer.parseInt(port), username));
     }
 }
-
-
@@ -0,0 +1,156 @@
+package ru.yaga;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+// Узел кластера: пересылает кадры локальных клиентов другим узлам через шину и доставляет
+// кадры других узлов локальным клиентам (ChatHandler.deliverFromCluster). Ведет справочник
+// пользователей других узлов, чтобы приватное сообщение уходило только на узел адресата.
+// Сообщение шины: [int userId адресата (0 - всем)][кадр протокола с префиксом длины]
+final class ChatCluster implements ClusterBus.Listener {
+    private static final int TARGET_BYTES = 4;
+
+    private final int nodeId;
+    private final ClusterBus bus;
+    // Пользователи других узлов по идентификатору и по имени
+    private final ConcurrentMap<Integer, RemoteUser> remoteUsers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, RemoteUser> remoteUsersByName = new ConcurrentHashMap<>();
+
+    ChatCluster(int nodeId, ClusterBus bus) {
+        this.nodeId = nodeId;
+        this.bus = bus;
+    }
+
+    // Узел кластера по настройкам ServerConfig или null, если сервер работает один
+    static ChatCluster start() {
+        if (ServerConfig.CLUSTER_PORT <= 0) {
+            return null;
+        }
+        ClusterBus bus;
+        if ("tcp".equals(ServerConfig.CLUSTER_BUS)) {
+            bus = new TcpClusterBus(ServerConfig.NODE_ID, ServerConfig.CLUSTER_PORT, parsePeers(ServerConfig.CLUSTER_PEERS),
+                    ServerConfig.CLUSTER_QUEUE_CAPACITY);
+        } else {
+            throw new IllegalArgumentException("Неизвестная шина кластера: " + ServerConfig.CLUSTER_BUS);
+        }
+        ChatCluster cluster = new ChatCluster(ServerConfig.NODE_ID, bus);
+        try {
+            bus.start(cluster);
+        } catch (IOException e) {
+            ServerLog.warn("cluster_not_started", "nodeId", ServerConfig.NODE_ID, "error", e);
+            return null;
+        }
+        return cluster;
+    }
+
+    // Список узлов вида "host:port,host:port"
+    private static List<InetSocketAddress> parsePeers(String peers) {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (String peer : peers.split(",")) {
+            peer = peer.trim();
+            if (!peer.isEmpty()) {
+                int colon = peer.lastIndexOf(':');
+                addresses.add(new InetSocketAddress(peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1))));
+            }
+        }
+        return addresses;
+    }
+
+    // Пересылка кадра всем узлам
+    void publish(byte[] frame) {
+        bus.publish(wrap(0, frame));
+    }
+
+    // Пересылка кадра пользователю другого узла. Возвращает false, если такого пользователя нет
+    boolean sendTo(int userId, byte[] frame) {
+        RemoteUser user = remoteUsers.get(userId);
+        if (user == null) {
+            return false;
+        }
+        bus.send(user.nodeId, wrap(userId, frame));
+        return true;
+    }
+
+    RemoteUser remoteUser(int userId) {
+        return remoteUsers.get(userId);
+    }
+
+    boolean isRemoteName(String name) {
+        return remoteUsersByName.containsKey(name);
+    }
+
+    Collection<RemoteUser> remoteUsers() {
+        return remoteUsers.values();
+    }
+
+    // Новому узлу - список локальных пользователей
+    @Override
+    public void onPeerConnected(int peer) {
+        long now = System.currentTimeMillis();
+        for (ChatSession session : ChatHandler.localSessions()) {
+            bus.send(peer, wrap(0, FrameCodec.encode(Frame.PRESENCE_JOIN, (byte) 0, session.getUserId(), now, session.getUsername(), "", "")));
+        }
+        ServerLog.info("cluster_peer_connected", "nodeId", nodeId, "peer", peer);
+    }
+
+    @Override
+    public void onMessage(int peer, byte[] message) {
+        int target = ByteBuffer.wrap(message).getInt();
+        byte[] encoded = Arrays.copyOfRange(message, TARGET_BYTES, message.length);
+        Frame frame;
+        try {
+            frame = FrameCodec.decode(encoded, FrameCodec.LENGTH_BYTES, encoded.length - FrameCodec.LENGTH_BYTES);
+        } catch (IOException e) {
+            ServerLog.warn("cluster_message_corrupt", "peer", peer, "error", e.getMessage());
+            return;
+        }
+        if (frame.opcode == Frame.PRESENCE_JOIN) {
+            RemoteUser user = new RemoteUser(peer, frame.userId, frame.name);
+            remoteUsers.put(user.userId, user);
+            remoteUsersByName.put(user.name, user);
+        } else if (frame.opcode == Frame.PRESENCE_LEAVE) {
+            RemoteUser user = remoteUsers.remove(frame.userId);
+            if (user != null) {
+                remoteUsersByName.remove(user.name, user);
+            }
+        }
+        ChatHandler.deliverFromCluster(frame, encoded, target);
+    }
+
+    // Пользователи отключившегося узла уходят из сети у локальных клиентов
+    @Override
+    public void onPeerDisconnected(int peer) {
+        long now = System.currentTimeMillis();
+        for (RemoteUser user : remoteUsers.values()) {
+            if (user.nodeId == peer && remoteUsers.remove(user.userId, user)) {
+                remoteUsersByName.remove(user.name, user);
+                byte[] leave = FrameCodec.encode(Frame.PRESENCE_LEAVE, (byte) 0, user.userId, now, user.name, "", "");
+                ChatHandler.deliverFromCluster(new Frame(Frame.PRESENCE_LEAVE, (byte) 0, user.userId, now, user.name, "", ""), leave, 0);
+            }
+        }
+    }
+
+    private static byte[] wrap(int target, byte[] frame) {
+        return ByteBuffer.allocate(TARGET_BYTES + frame.length).putInt(target).put(frame).array();
+    }
+
+    // Пользователь другого узла
+    static final class RemoteUser {
+        final int nodeId;
+        final int userId;
+        final String name;
+
+        RemoteUser(int nodeId, int userId, String name) {
+            this.nodeId = nodeId;
+            this.userId = userId;
+            this.name = name;
+        }
+    }
+}
@@ -1,197 +1,878 @@
 package ru.yaga;
 
-import javax.swing.*;
 import java.io.*;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Iterator;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
+import java.util.Collection;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
-public class ChatHandler extends Thread {
+// Обработчик клиента с блокирующим вводом-выводом. Чтение выполняется в потоке обработчика,
+// запись - в отдельном потоке, который опустошает исходящую очередь клиента (платформенные или виртуальные потоки).
+// Рассылка не берет блокировок: медленный клиент задерживает только свою очередь, а не отправителя
+public class ChatHandler implements Runnable, ChatSession {
     private final Socket socket; // Сокет для соединения с клиентом
     DataInputStream dataInputStream; // Поток ввода данных от клиента
     DataOutputStream dataOutputStream; // Поток вывода данных к клиенту
-    private static List<ChatHandler> handlers = Collections.synchronizedList(new ArrayList<>()); // Список обработчиков чатов
+    // Подключенные клиенты всех режимов сервера по имени пользователя (рассылка без блокировок,
+    // уникальность имен) и по идентификатору (доставка приватных сообщений за O(1))
+    private static final ConcurrentMap<String, ChatSession> sessions = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<Integer, ChatSession> sessionsById = new ConcurrentHashMap<>();
+    // Идентификатор пользователя: номер узла (0-MAX_NODE_ID) в старших битах и номер пользователя на узле
+    // в младших USER_ID_BITS. Номер на узле после наибольшего начинается снова с 1
+    static final int MAX_NODE_ID = 127;
+    private static final int USER_ID_BITS = 24;
+    private static final int MAX_LOCAL_USER_ID = (1 << USER_ID_BITS) - 1;
+    private static final AtomicInteger lastUserId = new AtomicInteger(); // Последний выданный номер на узле
+    // Комнаты: у каждой свой состав и своя рассылка, реестр разделен на сегменты с отдельными блокировками
+    private static final ChatRooms chatRooms = new ChatRooms(ServerConfig.ROOM_SHARDS);
+    private static final int MAX_ROOM_NAME_CHARS = 64;
+    // Наибольшее число порций по HISTORY_PAGE_SIZE записей, просматриваемых за один запрос истории
+    private static final int HISTORY_SCAN_PAGES = 20;
+    private static final long SHUTDOWN_POLL_MS = 10; // Период проверки отключения клиентов при остановке
+    private static final int PRESENCE_LIST_CHUNK_CHARS = 16 * 1024; // Размер части списка пользователей в символах
+    private static volatile boolean shuttingDown; // Идет штатная остановка сервера
+    private final Executor writerExecutor; // Исполнитель для потока записи
+    private final OutboundQueue outbound = new OutboundQueue(); // Исходящая очередь клиента
+    private volatile Thread writerThread; // Поток записи, ожидающий новых кадров
+    private volatile boolean closed;
+    private volatile boolean closeWhenFlushed; // Закрыть соединение, когда поток записи отправит очередь
     private String username; // Имя пользователя
+    private final int userId; // Идентификатор пользователя
+    private final Set<String> rooms = ConcurrentHashMap.newKeySet(); // Комнаты пользователя
+    private RateLimiter.Client rateLimit; // Ограничения частоты сообщений
+    private final boolean compression; // Клиент получает длинные кадры сжатыми
 
+    // Общее состояние сервера ниже задается в init до приема первого клиента и больше не изменяется
     private static final String FORBIDDEN_WORDS_FILE = "forbidden_words.txt";
+    // Словарь запрещенных слов, загружается один раз и перезагружается при изменении файла
+    private static ForbiddenWordsFilter forbiddenWords;
 
-    // Путь к файлу с именами пользователей
-    private static final String USERS_FILE = "users.txt";
     // Путь к файлу с сообщениями
     private static final String MESSAGES_FILE = "messages.txt";
+    // История общих сообщений для показа новым клиентам
+    private static MessageStore history;
+    // Поисковый индекс истории (пополняется журналом)
+    private static SearchIndex searchIndex;
+    // Журнал сообщений с групповой записью в отдельном потоке
+    private static MessageJournal journal;
+    // Связь с другими узлами кластера или null, если сервер работает один
+    private static ChatCluster cluster;
 
     // Конструктор класса
-    public ChatHandler(Socket socket) throws IOException {
+    public ChatHandler(Socket socket, Executor writerExecutor) throws IOException {
         this.socket = socket;
+        this.writerExecutor = writerExecutor;
         dataInputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream())); // Создание потока ввода данных
-        dataOutputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream())); // Создание потока вывода данных
+        dataOutputStream = new DataOutputStream(new BufferedOutputStream(new CountingOutputStream(socket.getOutputStream()))); // Создание потока вывода данных
 
-        // Аутентификация пользователя
-        this.username = dataInputStream.readUTF(); // Чтение имени пользователя от клиента
-        saveUsernameToFile(this.username); // Сохранение имени пользователя в файл
+        // Аутентификация пользователя: первый кадр должен быть HELLO с именем
+        Frame hello = FrameCodec.read(dataInputStream, ServerConfig.MAX_FRAME_BYTES, 0); // Сжатие еще не согласовано
+        if (hello.opcode != Frame.HELLO) {
+            throw new IOException("Ожидался кадр HELLO, получен " + hello.opcode);
+        }
+        socket.setSoTimeout(0); // Ограничение времени рукопожатия (ChatServer.serve) снимается до регистрации клиента
+        this.username = hello.name; // Имя пользователя от клиента
+        this.userId = nextUserId();
+        this.compression = negotiateCompression(hello);
+
+        // Имя должно быть уникальным среди подключенных пользователей
+        if (!addSession(this)) {
+            dataOutputStream.write(error("Имя пользователя " + username + " уже занято."));
+            dataOutputStream.flush();
+            throw new IOException("Имя пользователя уже занято: " + username);
+        }
+        try {
+            rateLimit = RateLimiter.acquire(username, socket.getInetAddress());
+            if (compression) {
+                send(welcome(this));
+            }
+            announceJoin(this); // Список пользователей новому клиенту и уведомление остальных
+            joinRoom(this, ServerConfig.DEFAULT_ROOM, hello.timestamp); // Комната по умолчанию и ее последние сообщения
+        } catch (RuntimeException e) {
+            // Обработчик не будет запущен, поэтому имя и ограничения частоты освобождаются здесь
+            removeSession(this);
+            if (rateLimit != null) {
+                RateLimiter.release(rateLimit);
+            }
+            throw e;
+        }
     }
-    // Метод для проверки наличия запрещенных слов в сообщении
-    private boolean hasForbiddenWords(String message) {
-        try (BufferedReader reader = new BufferedReader(new FileReader(FORBIDDEN_WORDS_FILE))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                if (message.toLowerCase().contains(line.toLowerCase())) {
-                    return true;
+
+    @Override
+    public String getUsername() {
+        return username;
+    }
+
+    @Override
+    public int getUserId() {
+        return userId;
+    }
+
+    @Override
+    public Set<String> getRooms() {
+        return rooms;
+    }
+
+    @Override
+    public RateLimiter.Client getRateLimit() {
+        return rateLimit;
+    }
+
+    @Override
+    public boolean acceptsCompression() {
+        return compression;
+    }
+
+    // Постановка кадра в исходящую очередь и пробуждение потока записи
+    @Override
+    public void send(SharedFrame frame) {
+        if (closed) {
+            return;
+        }
+        if (!outbound.offer(compression ? compress(frame) : frame.retain())) {
+            System.out.println("Клиент " + username + " не успевает читать сообщения. Соединение будет разорвано.");
+            ChatMetrics.slowConsumerDisconnects.increment();
+            close();
+            return;
+        }
+        Thread writer = writerThread;
+        if (writer != null) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    @Override
+    public void drainAndClose() {
+        closeWhenFlushed = true;
+        Thread writer = writerThread;
+        if (writer != null) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    // Закрытие сокета: поток чтения получит исключение и завершит обработчик
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        Thread writer = writerThread;
+        if (writer != null) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    // Поток записи: отправляет кадры из очереди и сбрасывает буфер, когда очередь опустела.
+    // При включенном объединении сброс откладывается до WRITE_COALESCE_MICROS после первого кадра пакета
+    // или до накопления WRITE_BATCH_BYTES, чтобы кадры нескольких рассылок ушли одним вызовом записи
+    private void writeLoop() {
+        writerThread = Thread.currentThread();
+        long coalesceNanos = TimeUnit.MICROSECONDS.toNanos(ServerConfig.WRITE_COALESCE_MICROS);
+        try {
+            int unflushedBytes = 0;
+            long flushDeadline = 0;
+            while (!closed) {
+                SharedFrame frame = outbound.poll();
+                if (frame == null) {
+                    if (unflushedBytes == 0) {
+                        if (closeWhenFlushed) {
+                            close();
+                            break;
+                        }
+                        LockSupport.park(this);
+                        continue;
+                    }
+                    long remaining = flushDeadline - System.nanoTime();
+                    if (remaining > 0) {
+                        LockSupport.parkNanos(this, remaining);
+                        continue;
+                    }
+                    dataOutputStream.flush();
+                    unflushedBytes = 0;
+                    continue;
+                }
+                if (unflushedBytes == 0) {
+                    flushDeadline = System.nanoTime() + coalesceNanos;
+                }
+                dataOutputStream.write(frame.bytes, 0, frame.length);
+                unflushedBytes += frame.length;
+                frame.release();
+                ChatMetrics.framesWritten.increment();
+                if (unflushedBytes >= ServerConfig.WRITE_BATCH_BYTES) {
+                    dataOutputStream.flush();
+                    unflushedBytes = 0;
+                }
+            }
+        } catch (IOException e) {
+            close();
+        } finally {
+            outbound.clear();
+        }
+    }
+
+    // Поток вывода, считающий вызовы записи в сокет (каждый - системный вызов)
+    private static final class CountingOutputStream extends FilterOutputStream {
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ChatMetrics.socketWrites.increment();
+            ChatMetrics.bytesSent.add(len);
+            out.write(b, off, len);
+        }
+    }
+
+    // Инициализация общего состояния сервера при запуске, до приема первого клиента. snapshot - снимок,
+    // сохраненный при штатной остановке (готовый автомат запрещенных слов, недавняя часть поискового индекса,
+    // последний идентификатор), или null. Узел кластера запускается последним: кадры других узлов сразу пишутся в журнал
+    static void init(ServerSnapshot snapshot) {
+        if (snapshot != null) {
+            lastUserId.set(snapshot.lastUserId & MAX_LOCAL_USER_ID);
+        }
+        forbiddenWords = new ForbiddenWordsFilter(Paths.get(FORBIDDEN_WORDS_FILE), snapshot != null ? snapshot.moderation : null);
+        history = openHistory();
+        searchIndex = openSearchIndex(snapshot != null ? snapshot.searchIndex : null);
+        journal = MessageJournal.start(Paths.get(MESSAGES_FILE), history, searchIndex);
+        cluster = ChatCluster.start();
+    }
+
+    // Штатная остановка (прием подключений уже прекращен): клиентам отправляется кадр SHUTDOWN, и соединения
+    // закрываются после отправки очередей; через drainMillis оставшиеся соединения разрываются. Затем журнал,
+    // история и поисковый индекс сбрасываются на диск не дольше flushMillis. Возвращает снимок для перезапуска
+    static ServerSnapshot shutdown(long drainMillis, long flushMillis) throws InterruptedException {
+        shuttingDown = true;
+        long start = System.nanoTime();
+        byte[] goingAway = FrameCodec.encode(Frame.SHUTDOWN, (byte) 0, 0, System.currentTimeMillis(), "", "",
+                "Сервер перезапускается. Соединение будет восстановлено автоматически.");
+        int clients = sessions.size();
+        for (ChatSession session : sessions.values()) {
+            session.send(goingAway);
+            session.drainAndClose();
+        }
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(drainMillis);
+        while (!sessions.isEmpty() && System.nanoTime() - deadline < 0) {
+            Thread.sleep(SHUTDOWN_POLL_MS);
+        }
+        int forced = sessions.size();
+        for (ChatSession session : sessions.values()) {
+            session.close();
+        }
+        long drained = System.nanoTime();
+
+        boolean flushed = journal.close(flushMillis);
+        ByteBuffer recentIndex = null;
+        if (searchIndex != null) {
+            searchIndex.close(flushMillis);
+            recentIndex = searchIndex.snapshot();
+        }
+        ServerLog.info("shutdown_drained", "clients", clients, "forced", forced,
+                "drainMillis", TimeUnit.NANOSECONDS.toMillis(drained - start),
+                "flushMillis", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - drained), "journalFlushed", flushed);
+        return new ServerSnapshot(System.currentTimeMillis(), lastUserId.get(), ChatMetrics.counters(), forbiddenWords.snapshot(), recentIndex);
+    }
+
+    // Новый идентификатор пользователя. Номер узла в старших битах делает его уникальным в кластере.
+    // После переполнения номера пропускаются идентификаторы, еще занятые подключенными пользователями
+    static int nextUserId() {
+        while (true) {
+            int userId = (ServerConfig.NODE_ID << USER_ID_BITS) | lastUserId.updateAndGet(last -> last >= MAX_LOCAL_USER_ID ? 1 : last + 1);
+            if (!sessionsById.containsKey(userId)) {
+                return userId;
+            }
+        }
+    }
+
+    // Пользователи, подключенные к этому узлу
+    static Collection<ChatSession> localSessions() {
+        return sessions.values();
+    }
+
+    // Регистрация клиента в списке рассылки. Возвращает false, если имя уже занято
+    // на этом узле или известно как имя пользователя другого узла кластера
+    static boolean addSession(ChatSession session) {
+        if (cluster != null && cluster.isRemoteName(session.getUsername())) {
+            return false;
+        }
+        if (sessions.putIfAbsent(session.getUsername(), session) != null) {
+            return false;
+        }
+        sessionsById.put(session.getUserId(), session);
+        return true;
+    }
+
+    // Удаление клиента из списка рассылки (только если под этим именем зарегистрирован именно он),
+    // выход из всех его комнат и уведомление остальных клиентов. При остановке сервера отключаются все
+    // локальные клиенты, поэтому уведомления получают только другие узлы: рассылка всем об уходе каждого
+    // заняла бы очереди закрывающихся соединений квадратичным числом кадров
+    static void removeSession(ChatSession session) {
+        String name = session.getUsername();
+        if (name != null && sessions.remove(name, session)) {
+            sessionsById.remove(session.getUserId());
+            boolean notifyLocal = !shuttingDown;
+            for (String room : session.getRooms()) {
+                leaveRoom(session, room, notifyLocal);
+            }
+            byte[] leave = FrameCodec.encode(Frame.PRESENCE_LEAVE, (byte) 0, session.getUserId(), System.currentTimeMillis(), name, "", "");
+            if (notifyLocal) {
+                broadcastPresence(leave, null);
+            }
+            publishToCluster(leave);
+        }
+    }
+
+    // Отправка новому клиенту списка подключенных пользователей кадрами PRESENCE_LIST
+    // и рассылка остальным уведомления о подключении. Список делится на части по PRESENCE_LIST_CHUNK_CHARS:
+    // кадр на каждого пользователя при десятках тысяч подключенных переполнил бы очередь нового клиента
+    static void announceJoin(ChatSession session) {
+        long now = System.currentTimeMillis();
+        StringBuilder list = new StringBuilder();
+        for (ChatSession other : sessions.values()) {
+            listUser(session, list, other.getUserId(), other.getUsername(), now);
+        }
+        if (cluster != null) {
+            for (ChatCluster.RemoteUser user : cluster.remoteUsers()) {
+                listUser(session, list, user.userId, user.name, now);
+            }
+        }
+        sendUserList(session, list, now);
+        byte[] join = FrameCodec.encode(Frame.PRESENCE_JOIN, (byte) 0, session.getUserId(), now, session.getUsername(), "", "");
+        broadcastPresence(join, session);
+        publishToCluster(join);
+    }
+
+    // Добавление пользователя в список для нового клиента; заполненная часть списка отправляется кадром.
+    // Имя с переводом строки не помещается в строку списка и отправляется кадром PRESENCE_JOIN
+    private static void listUser(ChatSession session, StringBuilder list, int userId, String name, long now) {
+        if (name.indexOf('\n') >= 0) {
+            session.send(FrameCodec.encode(Frame.PRESENCE_JOIN, (byte) 0, userId, now, name, "", ""));
+            return;
+        }
+        if (list.length() > 0 && list.length() + name.length() > PRESENCE_LIST_CHUNK_CHARS) {
+            sendUserList(session, list, now);
+        }
+        list.append(userId).append('\t').append(name).append('\n');
+    }
+
+    private static void sendUserList(ChatSession session, StringBuilder list, long now) {
+        if (list.length() > 0) {
+            session.send(FrameCodec.encode(Frame.PRESENCE_LIST, (byte) 0, 0, now, "", "", list.toString()));
+            list.setLength(0);
+        }
+    }
+
+    // Рассылка кадра присутствия всем клиентам, кроме except
+    private static void broadcastPresence(byte[] frame, ChatSession except) {
+        for (ChatSession session : sessions.values()) {
+            if (session != except) {
+                session.send(frame);
+            }
+        }
+    }
+
+    // Вход клиента в комнату: список участников новому участнику, уведомление остальных
+    // и сообщения комнаты из истории
+    static void joinRoom(ChatSession session, String room, long since) {
+        if (session.getRooms().size() >= ServerConfig.MAX_ROOMS_PER_USER) {
+            session.send(notice("Нельзя состоять более чем в " + ServerConfig.MAX_ROOMS_PER_USER + " комнатах."));
+            return;
+        }
+        ChatRoom chatRoom = chatRooms.join(room, session);
+        if (chatRoom == null) {
+            return; // Клиент уже в этой комнате
+        }
+        session.getRooms().add(room);
+        long now = System.currentTimeMillis();
+        for (ChatSession member : chatRoom.members()) {
+            session.send(FrameCodec.encode(Frame.ROOM_JOIN, (byte) 0, member.getUserId(), now, member.getUsername(), room, ""));
+        }
+        byte[] join = FrameCodec.encode(Frame.ROOM_JOIN, (byte) 0, session.getUserId(), now, session.getUsername(), room, "");
+        chatRoom.broadcast(join, session);
+        publishToCluster(join);
+        replayHistory(session, room, since);
+    }
+
+    // Выход клиента из комнаты с уведомлением оставшихся участников и самого клиента
+    static void leaveRoom(ChatSession session, String room) {
+        leaveRoom(session, room, true);
+    }
+
+    // notifyLocal = false - уведомляются только другие узлы кластера
+    private static void leaveRoom(ChatSession session, String room, boolean notifyLocal) {
+        ChatRoom chatRoom = chatRooms.leave(room, session);
+        if (chatRoom == null) {
+            return;
+        }
+        session.getRooms().remove(room);
+        byte[] frame = FrameCodec.encode(Frame.ROOM_LEAVE, (byte) 0, session.getUserId(), System.currentTimeMillis(), session.getUsername(), room, "");
+        if (notifyLocal) {
+            chatRoom.broadcast(frame, null);
+            session.send(frame);
+        }
+        publishToCluster(frame);
+    }
+
+    // Комната кадра клиента: пустое имя означает комнату по умолчанию
+    private static String roomOf(Frame frame) {
+        return frame.room.isEmpty() ? ServerConfig.DEFAULT_ROOM : frame.room;
+    }
+
+    private static boolean isValidRoomName(String room) {
+        return !room.isEmpty() && room.length() <= MAX_ROOM_NAME_CHARS && room.indexOf('\n') < 0;
+    }
+
+    // Открытие истории сообщений; при ошибке сервер работает без истории
+    private static MessageStore openHistory() {
+        try {
+            return MessageStore.open(Paths.get(ServerConfig.HISTORY_DIR), ServerConfig.HISTORY_SEGMENT_BYTES, ServerConfig.HISTORY_INDEX_INTERVAL);
+        } catch (IOException e) {
+            System.out.println("История сообщений недоступна: " + e);
+            return null;
+        }
+    }
+
+    // Открытие поискового индекса (snapshot - его сегмент в памяти из снимка сервера или null);
+    // при ошибке или без истории сервер работает без поиска
+    private static SearchIndex openSearchIndex(ByteBuffer snapshot) {
+        if (history == null || ServerConfig.SEARCH_DIR.isEmpty()) {
+            return null;
+        }
+        try {
+            return SearchIndex.open(Paths.get(ServerConfig.SEARCH_DIR), history, ServerConfig.SEARCH_FLUSH_MESSAGES,
+                    ServerConfig.SEARCH_MERGE_FACTOR, ServerConfig.SEARCH_MAX_SEGMENT_BYTES, snapshot);
+        } catch (IOException e) {
+            System.out.println("Поиск по истории недоступен: " + e);
+            return null;
+        }
+    }
+
+    // Отправка клиенту сообщений комнаты из истории при входе: начиная с момента since или,
+    // если он не задан, из последних REPLAY_COUNT. История общая для всех комнат, поэтому
+    // из выбранных записей показываются только сообщения этой комнаты
+    private static void replayHistory(ChatSession session, String room, long since) {
+        if (history == null || ServerConfig.REPLAY_COUNT <= 0) {
+            return;
+        }
+        try {
+            for (byte[] frame : since > 0 ? history.readSince(since, ServerConfig.REPLAY_COUNT) : history.readLast(ServerConfig.REPLAY_COUNT)) {
+                if (room.equals(FrameCodec.decode(frame, FrameCodec.LENGTH_BYTES, frame.length - FrameCodec.LENGTH_BYTES).room)) {
+                    session.send(frame);
                 }
             }
         } catch (IOException e) {
             e.printStackTrace();
         }
-        return false;
     }
+
+    // Страница истории комнаты по запросу клиента (кадр HISTORY): сообщения до курсора из предыдущего ответа
+    // или, если курсора нет, до момента timestamp. История общая для всех комнат, поэтому записи читаются
+    // назад порциями и отбираются по комнате; за один запрос просматривается не более HISTORY_SCAN_PAGES порций,
+    // и если страница не набралась, клиент продолжит с возвращенного курсора
+    private static void sendHistoryPage(ChatSession session, Frame request) {
+        String room = roomOf(request);
+        ChatRoom chatRoom = chatRooms.get(room);
+        if (chatRoom == null || !chatRoom.contains(session)) {
+            session.send(notice("Вы не состоите в комнате " + room + "."));
+            return;
+        }
+        String cursor = ""; // Номер записи, до которой читать следующую страницу (пусто - история закончилась)
+        int pageSize = ServerConfig.HISTORY_PAGE_SIZE;
+        if (history != null && pageSize > 0) {
+            try {
+                long firstSeq = history.firstSeq();
+                long toSeq = request.body.isEmpty() ? history.seqAt(request.timestamp) : Math.min(Long.parseLong(request.body), history.nextSeq());
+                ArrayDeque<byte[]> page = new ArrayDeque<>();
+                for (int i = 0; i < HISTORY_SCAN_PAGES && toSeq > firstSeq && page.size() < pageSize; i++) {
+                    long fromSeq = Math.max(firstSeq, toSeq - pageSize);
+                    List<byte[]> frames = history.readRange(fromSeq, toSeq);
+                    int j = frames.size() - 1;
+                    for (; j >= 0 && page.size() < pageSize; j--) {
+                        byte[] frame = frames.get(j);
+                        if (room.equals(FrameCodec.decode(frame, FrameCodec.LENGTH_BYTES, frame.length - FrameCodec.LENGTH_BYTES).room)) {
+                            page.addFirst(frame);
+                        }
+                    }
+                    toSeq = fromSeq + j + 1; // Записи из [fromSeq, toSeq) еще не просмотрены
+                }
+                for (byte[] frame : page) {
+                    // Кадр прочитан из истории только для этого ответа, поэтому флаг ставится на месте
+                    frame[FrameCodec.LENGTH_BYTES + 1] |= Frame.FLAG_HISTORY;
+                    session.send(frame);
+                }
+                cursor = toSeq > firstSeq ? Long.toString(toSeq) : "";
+            } catch (NumberFormatException e) {
+                session.send(notice("Недопустимый курсор истории."));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        session.send(FrameCodec.encode(Frame.HISTORY, (byte) 0, 0, System.currentTimeMillis(), "", room, cursor));
+    }
+
+    // Поиск в истории комнаты по запросу клиента (кадр SEARCH): найденные сообщения от старых к новым
+    // и кадр SEARCH с их числом. Фильтр по времени переводится в диапазон номеров записей истории
+    private static void search(ChatSession session, Frame request) {
+        String room = roomOf(request);
+        ChatRoom chatRoom = chatRooms.get(room);
+        if (chatRoom == null || !chatRoom.contains(session)) {
+            session.send(notice("Вы не состоите в комнате " + room + "."));
+            return;
+        }
+        if (searchIndex == null) {
+            session.send(notice("Поиск по истории отключен."));
+            return;
+        }
+        SearchIndex.Query query;
+        try {
+            query = SearchIndex.Query.parse(room, request.body);
+        } catch (DateTimeParseException e) {
+            session.send(notice("Дата в запросе должна иметь вид 2024-01-31."));
+            return;
+        }
+        if (!query.selective) {
+            session.send(notice("Запрос должен содержать слово не короче двух букв или from:имя."));
+            return;
+        }
+        try {
+            long fromSeq = query.since > 0 ? history.seqAt(query.since) : 0;
+            long toSeq = query.until < Long.MAX_VALUE ? history.seqAt(query.until) : Long.MAX_VALUE;
+            long[] found = searchIndex.search(query.terms, fromSeq, toSeq, ServerConfig.SEARCH_LIMIT);
+            int sent = 0;
+            for (int i = found.length - 1; i >= 0; i--) {
+                for (byte[] frame : history.readRange(found[i], found[i] + 1)) {
+                    // Кадр прочитан из истории только для этого ответа, поэтому флаг ставится на месте
+                    frame[FrameCodec.LENGTH_BYTES + 1] |= Frame.FLAG_SEARCH;
+                    session.send(frame);
+                    sent++;
+                }
+            }
+            session.send(FrameCodec.encode(Frame.SEARCH, (byte) 0, 0, System.currentTimeMillis(), "", room, Integer.toString(sent)));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Сжатие включается, если клиент запросил его в HELLO и оно разрешено на сервере
+    static boolean negotiateCompression(Frame hello) {
+        return ServerConfig.COMPRESSION && hello.hasFlag(Frame.FLAG_COMPRESSION);
+    }
+
+    // Ответ на HELLO клиенту со сжатием: подтверждение сжатия и идентификатор клиента
+    static byte[] welcome(ChatSession session) {
+        return FrameCodec.encode(Frame.HELLO, Frame.FLAG_COMPRESSION, session.getUserId(), System.currentTimeMillis(), session.getUsername(), "", "");
+    }
+
+    // Сжатый вариант кадра по настройкам сервера (короткие кадры не изменяются)
+    static byte[] compress(byte[] frame) {
+        return FrameCompression.compress(frame, ServerConfig.COMPRESSION_THRESHOLD, ServerConfig.COMPRESSION_LEVEL);
+    }
+
+    // Сжатый вариант разделяемого кадра или сам кадр, если он короткий или уже сжат. Возвращает ссылку,
+    // которую вызывающий должен отпустить
+    static SharedFrame compress(SharedFrame frame) {
+        if (frame.length < ServerConfig.COMPRESSION_THRESHOLD || (frame.flags() & Frame.FLAG_COMPRESSED) != 0) {
+            return frame.retain();
+        }
+        return SharedFrame.wrap(compress(frame.toByteArray()));
+    }
+
+    // Служебное сообщение сервера для клиента
+    static byte[] notice(String text) {
+        return FrameCodec.encode(Frame.NOTICE, (byte) 0, 0, System.currentTimeMillis(), "", "", text);
+    }
+
+    // Сообщение об ошибке, после которого сервер закрывает соединение
+    static byte[] error(String text) {
+        return FrameCodec.encode(Frame.ERROR, (byte) 0, 0, System.currentTimeMillis(), "", "", text);
+    }
+
+    // Проверка ограничений частоты перед обработкой кадра. Клиенту отправляется одно уведомление
+    // на серию отклоненных сообщений, а при слишком длинной серии - кадр ошибки
+    private static RateLimiter.Verdict checkRateLimit(ChatSession sender, int frameBytes) {
+        RateLimiter.Client limit = sender.getRateLimit();
+        RateLimiter.Verdict verdict = limit.check(frameBytes);
+        switch (verdict) {
+            case THROTTLED:
+                ChatMetrics.rateLimited.increment();
+                if (limit.isFirstViolation()) {
+                    ServerLog.info("rate_limited", "user", sender.getUsername(), "remote", limit.address());
+                    sender.send(notice("Слишком много сообщений. Сообщения не доставляются, пока частота не снизится."));
+                }
+                break;
+            case DISCONNECT:
+                ChatMetrics.rateLimited.increment();
+                ChatMetrics.rateLimitDisconnects.increment();
+                ServerLog.warn("rate_limit_disconnect", "user", sender.getUsername(), "remote", limit.address());
+                sender.send(error("Превышено ограничение частоты сообщений. Соединение будет разорвано."));
+                break;
+            default:
+                break;
+        }
+        return verdict;
+    }
+
+    // Отказ в обработке сообщения с запрещенными словами: кадр ошибки клиенту и событие в журнал
+    private static void rejectForbidden(ChatSession session) {
+        ChatMetrics.forbiddenRejections.increment();
+        ServerLog.warn("forbidden_words", "user", session.getUsername(), "userId", session.getUserId());
+        session.send(error("Ваше сообщение содержит запрещенные слова. Соединение будет разорвано."));
+    }
+
+    // Обработка входящего кадра клиента. Возвращает false, если соединение нужно разорвать
+    // (клиенту уже отправлен кадр ERROR с причиной)
+    static boolean handleMessage(ChatSession sender, Frame frame) {
+        // Размер после распаковки: сжатый кадр не должен обходить ограничение MAX_FRAME_BYTES
+        int frameBytes = FrameCodec.encodedLength(frame);
+        if (frameBytes > ServerConfig.MAX_FRAME_BYTES) {
+            sender.send(error("Слишком длинное сообщение. Соединение будет разорвано."));
+            return false;
+        }
+        RateLimiter.Verdict verdict = checkRateLimit(sender, frameBytes);
+        if (verdict != RateLimiter.Verdict.ALLOWED) {
+            return verdict == RateLimiter.Verdict.THROTTLED;
+        }
+        switch (frame.opcode) {
+            case Frame.CHAT:
+            case Frame.PRIVATE:
+                ChatMetrics.messagesIn.increment();
+                // Проверка наличия запрещенных слов
+                if (hasForbiddenWords(frame.body)) {
+                    rejectForbidden(sender);
+                    return false;
+                }
+                broadcast(sender, frame);
+                return true;
+            case Frame.ROOM_JOIN:
+                if (isValidRoomName(frame.room)) {
+                    joinRoom(sender, frame.room, frame.timestamp);
+                } else {
+                    sender.send(notice("Недопустимое имя комнаты."));
+                }
+                return true;
+            case Frame.ROOM_LEAVE:
+                leaveRoom(sender, roomOf(frame));
+                return true;
+            case Frame.ROOM_LIST:
+                sender.send(FrameCodec.encode(Frame.ROOM_LIST, (byte) 0, 0, System.currentTimeMillis(), "", "", String.join("\n", chatRooms.names())));
+                return true;
+            case Frame.HISTORY:
+                sendHistoryPage(sender, frame);
+                return true;
+            case Frame.SEARCH:
+                search(sender, frame);
+                return true;
+            default:
+                // Остальные кадры от клиента не ожидаются и пропускаются
+                return true;
+        }
+    }
+
+    // Обработка кадра клиента прямо из буфера чтения (length байт без префикса длины с offset в buffer).
+    // Несжатое общее сообщение в комнату, где состоит отправитель, обрабатывается без декодирования в строки:
+    // проверка запрещенных слов идет по байтам UTF-8, а тело копируется в разделяемый кадр из пула
+    // без перекодирования, так что сообщение не длиннее POOLED_FRAME_BYTES не создает мусора.
+    // Остальные кадры декодируются и обрабатываются handleMessage. Возвращает false, если соединение нужно разорвать
+    static boolean handleFrame(ChatSession sender, ByteBuffer buffer, int offset, int length) throws IOException {
+        if (buffer.get(offset) == Frame.CHAT && (buffer.get(offset + 1) & Frame.FLAG_COMPRESSED) == 0) {
+            int roomLengthOffset = FrameCodec.roomLengthOffset(buffer, offset, length);
+            int roomLength = buffer.getShort(roomLengthOffset) & 0xFFFF;
+            ChatRoom chatRoom = roomLength == 0
+                    ? chatRooms.get(ServerConfig.DEFAULT_ROOM)
+                    : chatRooms.get(buffer, roomLengthOffset + 2, roomLength);
+            if (chatRoom != null && chatRoom.contains(sender)) {
+                int bodyOffset = roomLengthOffset + 2 + roomLength;
+                return relay(sender, chatRoom, buffer, bodyOffset, offset + length - bodyOffset, length);
+            }
+        }
+        // Сжатый кадр распаковывается не длиннее MAX_FRAME_BYTES и только у клиента, согласовавшего сжатие
+        return handleMessage(sender, FrameCodec.decode(buffer, offset, length, sender.acceptsCompression() ? ServerConfig.MAX_FRAME_BYTES : 0));
+    }
+
+    // Общее сообщение из буфера чтения (тело - bodyLength байт с bodyOffset): те же проверки, что в handleMessage,
+    // затем кадр кодируется один раз и рассылается, пересылается узлам кластера и передается журналу
+    private static boolean relay(ChatSession sender, ChatRoom chatRoom, ByteBuffer buffer, int bodyOffset, int bodyLength, int frameBytes) {
+        RateLimiter.Verdict verdict = checkRateLimit(sender, frameBytes);
+        if (verdict != RateLimiter.Verdict.ALLOWED) {
+            return verdict == RateLimiter.Verdict.THROTTLED;
+        }
+        ChatMetrics.messagesIn.increment();
+        if (forbiddenWords.hasForbiddenWords(buffer, bodyOffset, bodyLength)) {
+            rejectForbidden(sender);
+            return false;
+        }
+        SharedFrame encoded = FrameCodec.encodeChat(sender.getUserId(), System.currentTimeMillis(), sender.getUsername(),
+                chatRoom.utf8Name(), buffer, bodyOffset, bodyLength);
+        fanOut(chatRoom, encoded);
+        publishToCluster(encoded);
+        journal.append(encoded);
+        encoded.release();
+        return true;
+    }
+
+    // Метод для проверки наличия запрещенных слов в сообщении
+    private static boolean hasForbiddenWords(String message) {
+        return forbiddenWords.hasForbiddenWords(message);
+    }
+
     // Переопределенный метод run интерфейса Runnable
     @Override
     public void run() {
-        handlers.add(this);
+        writerExecutor.execute(this::writeLoop);
 
         try {
+            // Кадры читаются в один буфер на соединение; буфер под редкий длинный кадр не удерживается
+            ByteBuffer frame = ByteBuffer.allocate(ServerConfig.POOLED_FRAME_BYTES);
             while (true) {
-                String message = dataInputStream.readUTF();
+                int length = dataInputStream.readInt();
+                if (length < FrameCodec.HEADER_BYTES || length > ServerConfig.MAX_FRAME_BYTES) {
+                    throw new IOException("Недопустимая длина кадра: " + length);
+                }
+                if (length > frame.capacity()) {
+                    frame = ByteBuffer.allocate(length);
+                }
+                dataInputStream.readFully(frame.array(), 0, length);
 
-                // Проверка наличия запрещенных слов
-                if (hasForbiddenWords(message)) {
-                    JOptionPane.showMessageDialog(null, "Ваше сообщение содержит запрещенные слова. Соединение будет разорвано.", "Предупреждение", JOptionPane.WARNING_MESSAGE);
+                if (!handleFrame(this, frame, 0, length)) {
                     break;
                 }
-
-                broadcast(message);
+                if (frame.capacity() > ServerConfig.POOLED_FRAME_BYTES) {
+                    frame = ByteBuffer.allocate(ServerConfig.POOLED_FRAME_BYTES);
+                }
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            if (!shuttingDown) {
+                e.printStackTrace(); // При остановке сервера сокеты закрывает он сам
+            }
         } finally {
-            handlers.remove(this);
+            removeSession(this);
+            RateLimiter.release(rateLimit);
             ChatServer.decrementConnectedUsers();
-            try {
-                dataOutputStream.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-            try {
-                socket.close();
-            } catch (IOException e) {
-                e.printStackTrace();
+            // Сокет закрывает поток записи, отправив остаток очереди (например, кадр ошибки)
+            closeWhenFlushed = true;
+            Thread writer = writerThread;
+            if (writer != null) {
+                LockSupport.unpark(writer);
             }
         }
     }
 
     // Метод для рассылки сообщения всем клиентам
-    private void broadcast(String message) {
-        synchronized (handlers) {
-            Iterator<ChatHandler> iterator = handlers.iterator();
-            while (iterator.hasNext()) {
-                ChatHandler chatHandler = iterator.next();
-                try {
-                    synchronized (chatHandler.dataOutputStream) {
-                        // Отправка сообщения клиенту только если это не приватное сообщение
-                        if (!message.startsWith("PRIVATE_MESSAGE")) {
-                            chatHandler.dataOutputStream.writeUTF(message);
-                            chatHandler.dataOutputStream.flush();
-                        }
-                    }
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-        saveMessageToFile(message); // Сохранение сообщения в файл
-
-        // Обработка приватных сообщений
-        if (message.startsWith("PRIVATE_MESSAGE")) {
-            String[] parts = message.split(":", 4);
-            if (parts.length == 4) {
-                String targetUser = parts[1];
-                String privateMessage = parts[2] + ":" + parts[3];
-
-                synchronized (handlers) {
-                    // Проверка, чтобы избежать отправки приватного сообщения самому себе
-                    boolean sentToSelf = targetUser.equals(username);
-
-                    for (ChatHandler handler : handlers) {
-                        if (handler.username.equals(targetUser)) {
-                            try {
-                                synchronized (handler.dataOutputStream) {
-                                    // Отправка приватного сообщения только целевому пользователю
-                                    if (!sentToSelf) {
-                                        handler.dataOutputStream.writeUTF(privateMessage);
-                                        handler.dataOutputStream.flush();
-                                    }
-                                }
-                            } catch (IOException e) {
-                                e.printStackTrace();
-                            }
-                            break;
-                        }
-                    }
+    private static void broadcast(ChatSession sender, Frame frame) {
+        long now = System.currentTimeMillis();
+        if (frame.opcode == Frame.PRIVATE) {
+            sendPrivate(sender, frame, now);
+            return;
+        }
+        String room = roomOf(frame);
+        ChatRoom chatRoom = chatRooms.get(room);
+        if (chatRoom == null || !chatRoom.contains(sender)) {
+            sender.send(notice("Вы не состоите в комнате " + room + "."));
+            return;
+        }
+        // Кадр кодируется один раз и рассылается только участникам комнаты без блокировок
+        SharedFrame encoded = SharedFrame.wrap(FrameCodec.encode(Frame.CHAT, (byte) 0, sender.getUserId(), now, sender.getUsername(), room, frame.body));
+        fanOut(chatRoom, encoded);
+        publishToCluster(encoded); // Участникам комнаты на других узлах
+        journal.append(encoded); // Сохранение сообщения в файл и историю
+        encoded.release();
+    }
 
-                    // Отправка копии приватного сообщения обратно отправителю, если не отправлено самому себе
-                    if (!sentToSelf) {
-                        for (ChatHandler handler : handlers) {
-                            if (handler.username.equals(username)) {
-                                try {
-                                    synchronized (handler.dataOutputStream) {
-                                        handler.dataOutputStream.writeUTF(privateMessage);
-                                        handler.dataOutputStream.flush();
-                                    }
-                                } catch (IOException e) {
-                                    e.printStackTrace();
-                                }
-                                break;
-                            }
-                        }
-                    }
+    // Рассылка общего сообщения участникам комнаты с учетом времени рассылки в метриках
+    private static void fanOut(ChatRoom chatRoom, SharedFrame encoded) {
+        long start = System.nanoTime();
+        chatRoom.broadcast(encoded, null);
+        ChatMetrics.broadcastMicros.record((System.nanoTime() - start) / 1000);
+    }
 
-                    // Если сообщение отправлено самому себе, показать предупреждение
-                    if (sentToSelf) {
-                        SwingUtilities.invokeLater(() -> {
-                            JOptionPane.showMessageDialog(null, "Вы не можете отправить приватное сообщение самому себе.", "Предупреждение", JOptionPane.WARNING_MESSAGE);
-                        });
-                    }
-                }
+    // Доставка приватного сообщения адресату (userId кадра) и копии отправителю
+    private static void sendPrivate(ChatSession sender, Frame frame, long now) {
+        // Проверка, чтобы избежать отправки приватного сообщения самому себе
+        if (frame.userId == sender.getUserId()) {
+            sender.send(notice("Вы не можете отправить приватное сообщение самому себе."));
+            return;
+        }
+
+        byte[] message = FrameCodec.encode(Frame.PRIVATE, (byte) 0, sender.getUserId(), now, sender.getUsername(), "", frame.body);
+        String targetName;
+        ChatSession target = sessionsById.get(frame.userId);
+        if (target != null) {
+            target.send(message);
+            targetName = target.getUsername();
+        } else {
+            // Адресат на другом узле: сообщение уходит только на его узел
+            ChatCluster.RemoteUser remote = cluster != null ? cluster.remoteUser(frame.userId) : null;
+            if (remote == null || !cluster.sendTo(remote.userId, message)) {
+                sender.send(notice("Пользователь не в сети, сообщение не доставлено."));
+                return;
             }
+            targetName = remote.name;
         }
+        // Копия приватного сообщения отправителю
+        sender.send(FrameCodec.encode(Frame.PRIVATE, Frame.FLAG_OUTGOING, frame.userId, now, targetName, "", frame.body));
+        journal.append(now, sender.getUsername(), targetName, frame.body); // Приватные сообщения в историю не попадают
     }
 
-        // Метод для сохранения имени пользователя в файл
-    private void saveUsernameToFile(String username) {
-        try (FileWriter fileWriter = new FileWriter(USERS_FILE, true);
-             BufferedWriter bufferedWriter = new BufferedWriter(fileWriter);
-             PrintWriter printWriter = new PrintWriter(bufferedWriter)) {
-            int userCount = getUserCount();
-            printWriter.println((userCount + 1) + ":" + username);
-        } catch (IOException e) {
-            e.printStackTrace();
+    // Пересылка кадра другим узлам кластера
+    private static void publishToCluster(byte[] frame) {
+        if (cluster != null) {
+            cluster.publish(frame);
         }
     }
 
-    // Метод для получения текущего количества пользователей
-    private int getUserCount() {
-        int userCount = 0;
-        try (BufferedReader bufferedReader = new BufferedReader(new FileReader(USERS_FILE))) {
-            while (bufferedReader.readLine() != null) {
-                userCount++;
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
+    // Шина кластера хранит кадры до отправки, поэтому получает копию кадра из пула
+    private static void publishToCluster(SharedFrame frame) {
+        if (cluster != null) {
+            cluster.publish(frame.toByteArray());
         }
-        return userCount;
     }
 
-    // Метод для сохранения сообщения в файл
-    private void saveMessageToFile(String message) {
-        try (FileWriter fileWriter = new FileWriter(MESSAGES_FILE, true);
-             BufferedWriter bufferedWriter = new BufferedWriter(fileWriter);
-             PrintWriter printWriter = new PrintWriter(bufferedWriter)) {
-            printWriter.println(message);
-        } catch (IOException e) {
-            e.printStackTrace();
+    // Доставка кадра, полученного от другого узла, локальным клиентам. target - адресат
+    // приватного сообщения или 0. Общие сообщения также сохраняются в журнал и историю этого узла
+    static void deliverFromCluster(Frame frame, byte[] encoded, int target) {
+        if (target != 0) {
+            ChatSession session = sessionsById.get(target);
+            if (session != null) {
+                session.send(encoded);
+            }
+            return;
+        }
+        switch (frame.opcode) {
+            case Frame.CHAT:
+                SharedFrame message = SharedFrame.wrap(encoded);
+                ChatRoom chatRoom = chatRooms.get(frame.room);
+                if (chatRoom != null) {
+                    fanOut(chatRoom, message);
+                }
+                journal.append(message);
+                message.release();
+                break;
+            case Frame.ROOM_JOIN:
+            case Frame.ROOM_LEAVE:
+                ChatRoom room = chatRooms.get(frame.room);
+                if (room != null) {
+                    room.broadcast(encoded, null);
+                }
+                break;
+            case Frame.PRESENCE_JOIN:
+            case Frame.PRESENCE_LEAVE:
+                broadcastPresence(encoded, null);
+                break;
+            default:
+                break;
         }
     }
 }
-
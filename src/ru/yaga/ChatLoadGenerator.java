@@ -0,0 +1,189 @@
+package ru.yaga;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+// Генератор нагрузки без интерфейса: N клиентов с тем же рукопожатием, что у ChatClient (кадр HELLO),
+// отправка общих сообщений с заданной частотой и размером, пропускная способность и задержка
+// рассылки от отправки до получения каждым другим клиентом (p50/p99/p99.9).
+// Время отправки в сообщении - плановое, а не фактическое: если генератор или сервер не успевают,
+// задержка очереди попадает в результат (без "coordinated omission").
+// Запуск: java ru.yaga.ChatLoadGenerator [ключ=значение ...], например
+// java ru.yaga.ChatLoadGenerator clients=200 senders=20 rate=2000 size=128 duration=30
+// Ключи: host, port, clients, senders (сколько клиентов отправляют), rate (сообщений в секунду всего),
+// size (байт в сообщении), duration и warmup (секунды; результаты разогрева не учитываются).
+// С -Dchat.tls=true клиенты подключаются по TLS (см. ChatTls); первое соединение выполняет полное рукопожатие,
+// остальные возобновляют его сессию
+public class ChatLoadGenerator {
+    private static final String PROBE_PREFIX = "L";
+    private static final int READ_TIMEOUT_MS = 30000;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq > 0) {
+                options.put(arg.substring(0, eq), arg.substring(eq + 1));
+            }
+        }
+        String host = options.getOrDefault("host", "localhost");
+        int port = Integer.parseInt(options.getOrDefault("port", "8082"));
+        int clients = Integer.parseInt(options.getOrDefault("clients", "100"));
+        int senders = Math.min(clients, Integer.parseInt(options.getOrDefault("senders", String.valueOf(clients))));
+        int rate = Integer.parseInt(options.getOrDefault("rate", "1000"));
+        int size = Integer.parseInt(options.getOrDefault("size", "64"));
+        int duration = Integer.parseInt(options.getOrDefault("duration", "10"));
+        int warmup = Integer.parseInt(options.getOrDefault("warmup", "2"));
+
+        System.out.println("Клиентов: " + clients + ", отправителей: " + senders + ", сообщений/с: " + rate
+                + ", размер: " + size + " байт, разогрев: " + warmup + " с, измерение: " + duration + " с");
+
+        // Подключение клиентов
+        long connectStart = System.nanoTime();
+        List<Client> all = new ArrayList<>(clients);
+        for (int i = 0; i < clients; i++) {
+            all.add(new Client("gen-" + i, host, port));
+        }
+        for (Client client : all) {
+            client.awaitJoined();
+        }
+        System.out.println("Подключено клиентов: " + all.size() + (ServerConfig.TLS ? " по TLS" : "") + " за "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - connectStart) + " мс");
+
+        long start = System.nanoTime();
+        long measureFrom = start + TimeUnit.SECONDS.toNanos(warmup);
+        long end = measureFrom + TimeUnit.SECONDS.toNanos(duration);
+        for (Client client : all) {
+            client.startReader(measureFrom, end);
+        }
+
+        // Отправка по расписанию: сообщения равномерно распределены по времени и по отправителям
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(1, rate);
+        char[] padding = new char[Math.max(0, size)];
+        Arrays.fill(padding, 'x');
+        long sent = 0;
+        long measuredSent = 0;
+        long next = start;
+        while (next < end) {
+            long pause = next - System.nanoTime();
+            if (pause > 0) {
+                LockSupport.parkNanos(pause);
+            }
+            Client sender = all.get((int) (sent % senders));
+            sender.send(probe(next, padding));
+            sent++;
+            if (next >= measureFrom) {
+                measuredSent++;
+            }
+            next += intervalNanos;
+        }
+        for (Client client : all) {
+            client.flush();
+        }
+
+        // Ожидание последних сообщений и сводка
+        Thread.sleep(1000);
+        LatencyHistogram histogram = new LatencyHistogram();
+        long received = 0;
+        for (Client client : all) {
+            client.close();
+            client.reader.join(READ_TIMEOUT_MS);
+            histogram.add(client.histogram);
+            received += client.received;
+        }
+        long expected = measuredSent * (clients - 1);
+        System.out.printf("Отправлено за измерение: %d (%.0f сообщ./с)%n", measuredSent, measuredSent / (double) duration);
+        System.out.printf("Доставлено: %d из %d ожидаемых (%.0f доставок/с)%n", received, expected, received / (double) duration);
+        System.out.printf("Задержка рассылки, мкс: p50 %.1f, p99 %.1f, p99.9 %.1f, макс %.1f, среднее %.1f%n",
+                histogram.percentile(50) / 1000.0, histogram.percentile(99) / 1000.0, histogram.percentile(99.9) / 1000.0,
+                histogram.max() / 1000.0, histogram.mean() / 1000.0);
+    }
+
+    // Тело пробного сообщения: плановое время отправки и заполнитель до нужного размера
+    private static String probe(long scheduledNanos, char[] padding) {
+        String stamp = PROBE_PREFIX + scheduledNanos + ":";
+        return stamp + new String(padding, 0, Math.max(0, padding.length - stamp.length()));
+    }
+
+    // Клиент нагрузки: соединение, поток чтения и собственная гистограмма задержек
+    private static final class Client {
+        final String name;
+        final Socket socket;
+        final DataInputStream in;
+        final DataOutputStream out;
+        final LatencyHistogram histogram = new LatencyHistogram();
+        long received; // Читается после завершения потока чтения
+        Thread reader;
+
+        Client(String name, String host, int port) throws IOException {
+            this.name = name;
+            Socket plain = new Socket(host, port);
+            plain.setTcpNoDelay(true);
+            plain.setSoTimeout(READ_TIMEOUT_MS);
+            this.socket = ServerConfig.TLS ? ChatTls.clientSocket(plain, host, port) : plain;
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            // Рукопожатие как в ChatClient.main
+            out.write(FrameCodec.encode(Frame.HELLO, (byte) 0, 0, 0, name, "", ""));
+            out.flush();
+        }
+
+        // Ожидание входа в комнату по умолчанию: после него клиент получает рассылку
+        void awaitJoined() throws IOException {
+            while (true) {
+                Frame frame = FrameCodec.read(in, ServerConfig.MAX_FRAME_BYTES);
+                if (frame.opcode == Frame.ROOM_JOIN && name.equals(frame.name)) {
+                    return;
+                }
+            }
+        }
+
+        void send(String body) throws IOException {
+            out.write(FrameCodec.encode(Frame.CHAT, (byte) 0, 0, 0, name, "", body));
+            out.flush();
+        }
+
+        void flush() throws IOException {
+            out.flush();
+        }
+
+        // Поток чтения: задержка каждого чужого пробного сообщения, отправленного в окне измерения
+        void startReader(long measureFrom, long measureTo) {
+            reader = new Thread(() -> {
+                try {
+                    while (true) {
+                        Frame frame = FrameCodec.read(in, ServerConfig.MAX_FRAME_BYTES);
+                        long now = System.nanoTime();
+                        if (frame.opcode != Frame.CHAT || name.equals(frame.name) || !frame.body.startsWith(PROBE_PREFIX)) {
+                            continue;
+                        }
+                        long scheduled = Long.parseLong(frame.body.substring(PROBE_PREFIX.length(), frame.body.indexOf(':')));
+                        if (scheduled >= measureFrom && scheduled < measureTo) {
+                            histogram.record(now - scheduled);
+                            received++;
+                        }
+                    }
+                } catch (IOException e) {
+                    // Соединение закрыто в конце теста
+                }
+            }, "reader-" + name);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        void close() throws IOException {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package ru.yaga;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+// Нагрузочный тест: открывает заданное количество клиентских соединений, держит их открытыми
+// и проверяет, что сообщение одного клиента доходит до всех остальных.
+// Запуск: java ru.yaga.ChatLoadTest [хост] [порт] [количество клиентов] [количество сообщений] [количество комнат]
+// При количестве комнат N > 0 клиенты распределяются по комнатам room-0..room-(N-1) и в каждой
+// комнате рассылку ведет ее первый участник; при 0 все клиенты общаются в комнате по умолчанию
+// Несколько сообщений подряд нагружают рассылку; число записей в сокет на кадр показывают метрики сервера
+// (-Dchat.metricsInterval=1), например с -Dchat.writeCoalesceMicros=2000 и без него
+// Сервер для проверки: java -Dchat.maxUsers=20000 ru.yaga.ChatServer virtual
+// (для тысяч соединений может потребоваться увеличить лимит дескрипторов: ulimit -n).
+// С -Dchat.tls=true у теста и сервера соединения шифруются (см. ChatTls)
+public class ChatLoadTest {
+    private static final int READ_TIMEOUT_MS = 30000; // Время ожидания рассылки каждым клиентом
+
+    public static void main(String[] args) throws IOException {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 8082;
+        int clients = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+        int messages = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+        int rooms = args.length > 4 ? Integer.parseInt(args[4]) : 0;
+
+        List<Socket> sockets = new ArrayList<>(clients);
+        List<DataInputStream> inputs = new ArrayList<>(clients);
+        List<DataOutputStream> senders = new ArrayList<>(); // Первый участник каждой комнаты
+
+        // Подключение клиентов и рукопожатие с именем пользователя, как в ChatClient.main
+        long connectStart = System.nanoTime();
+        try {
+            for (int i = 0; i < clients; i++) {
+                Socket socket = new Socket(host, port);
+                if (ServerConfig.TLS) {
+                    socket = ChatTls.clientSocket(socket, host, port);
+                }
+                DataOutputStream dataOutputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                dataOutputStream.write(FrameCodec.encode(Frame.HELLO, (byte) 0, 0, 0, "load-" + i, "", ""));
+                if (rooms > 0) {
+                    dataOutputStream.write(FrameCodec.encode(Frame.ROOM_JOIN, (byte) 0, 0, 0, "load-" + i, roomOf(i, rooms), ""));
+                }
+                dataOutputStream.flush();
+                sockets.add(socket);
+                inputs.add(new DataInputStream(new BufferedInputStream(socket.getInputStream())));
+                if (i < Math.max(1, rooms)) {
+                    senders.add(dataOutputStream);
+                }
+                if ((i + 1) % 1000 == 0) {
+                    System.out.println("Подключено: " + (i + 1));
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Ошибка подключения после " + sockets.size() + " соединений: " + e.getMessage());
+        }
+        long connectMillis = (System.nanoTime() - connectStart) / 1_000_000;
+        System.out.println("Открыто соединений: " + sockets.size() + " за " + connectMillis + " мс");
+
+        if (senders.isEmpty()) {
+            return;
+        }
+
+        // Ожидание регистрации всех клиентов: каждый получает кадр о своем входе в комнату
+        for (int i = 0; i < sockets.size(); i++) {
+            String name = "load-" + i;
+            String room = roomOf(i, rooms);
+            try {
+                sockets.get(i).setSoTimeout(READ_TIMEOUT_MS);
+                readUntil(inputs.get(i), frame -> frame.opcode == Frame.ROOM_JOIN && name.equals(frame.name)
+                        && (room.isEmpty() || room.equals(frame.room)));
+            } catch (IOException e) {
+                System.out.println("Клиент " + name + " не зарегистрирован: " + e.getMessage());
+            }
+        }
+
+        // Рассылка сообщений и проверка, сколько клиентов получили последнее из них
+        String prefix = "probe-" + System.nanoTime() + "-";
+        String probe = prefix + (messages - 1);
+        long broadcastStart = System.nanoTime();
+        for (int m = 0; m < messages; m++) {
+            for (int r = 0; r < senders.size(); r++) {
+                senders.get(r).write(FrameCodec.encode(Frame.CHAT, (byte) 0, 0, 0, "load-" + r, roomOf(r, rooms), prefix + m));
+            }
+        }
+        for (DataOutputStream sender : senders) {
+            sender.flush();
+        }
+
+        int delivered = 0;
+        for (int i = 0; i < sockets.size(); i++) {
+            try {
+                // Кадры присутствия и истории, пришедшие до рассылки, пропускаются
+                readUntil(inputs.get(i), frame -> frame.opcode == Frame.CHAT && probe.equals(frame.body));
+                delivered++;
+            } catch (IOException e) {
+                System.out.println("Клиент load-" + i + " не получил сообщение: " + e.getMessage());
+            }
+        }
+        long broadcastMillis = (System.nanoTime() - broadcastStart) / 1_000_000;
+        System.out.println("Рассылка " + messages + " сообщ. в " + senders.size() + " комн. доставлена " + delivered + " из " + sockets.size() + " клиентов за " + broadcastMillis + " мс");
+        System.out.println("Одновременных соединений на сервере: " + delivered);
+
+        for (Socket socket : sockets) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Комната клиента i (пусто - комната по умолчанию)
+    private static String roomOf(int client, int rooms) {
+        return rooms > 0 ? "room-" + (client % rooms) : "";
+    }
+
+    // Чтение кадров до первого, удовлетворяющего условию
+    private static void readUntil(DataInputStream in, Predicate<Frame> condition) throws IOException {
+        while (!condition.test(FrameCodec.read(in, ServerConfig.MAX_FRAME_BYTES))) {
+            // Пропуск остальных кадров
+        }
+    }
+}
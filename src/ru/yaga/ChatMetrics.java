@@ -0,0 +1,185 @@
+package ru.yaga;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Счетчики сервера. LongAdder не создает конкуренции между потоками, увеличивающими один счетчик
+final class ChatMetrics {
+    // Подключения: принятые (после успешного рукопожатия) и отклоненные (превышен MAX_USERS, ошибка рукопожатия, занятое имя)
+    static final LongAdder connectionsAccepted = new LongAdder();
+    static final LongAdder connectionsRejected = new LongAdder();
+    // Сообщения (CHAT и PRIVATE), полученные от клиентов, и отклоненные из-за запрещенных слов
+    static final LongAdder messagesIn = new LongAdder();
+    static final LongAdder forbiddenRejections = new LongAdder();
+    // Сообщения, отброшенные ограничением частоты, и соединения, разорванные из-за него
+    static final LongAdder rateLimited = new LongAdder();
+    static final LongAdder rateLimitDisconnects = new LongAdder();
+    // Байты, записанные в сокеты клиентов
+    static final LongAdder bytesSent = new LongAdder();
+    // Кадры, поставленные в исходящие очереди клиентов
+    static final LongAdder framesEnqueued = new LongAdder();
+    // Кадры, отброшенные политикой DROP_OLDEST
+    static final LongAdder framesDropped = new LongAdder();
+    // Клиенты, отключенные политикой DISCONNECT
+    static final LongAdder slowConsumerDisconnects = new LongAdder();
+    // Суммарное количество кадров во всех исходящих очередях
+    static final LongAdder queuedFrames = new LongAdder();
+    // Суммарный объем всех исходящих очередей в байтах
+    static final LongAdder queuedBytes = new LongAdder();
+    // Кадры, записанные в сокеты клиентов, и вызовы записи в сокет (write/flush), которыми они отправлены
+    static final LongAdder framesWritten = new LongAdder();
+    static final LongAdder socketWrites = new LongAdder();
+    // Сообщения шины кластера: поставленные в очереди к узлам, полученные и отброшенные при переполнении
+    static final LongAdder clusterPublished = new LongAdder();
+    static final LongAdder clusterReceived = new LongAdder();
+    static final LongAdder clusterDropped = new LongAdder();
+    // Сообщения, не записанные в журнал: очередь журнала заполнена или поток записи остановлен
+    static final LongAdder journalDropped = new LongAdder();
+    // Наибольшая глубина очереди одного клиента с момента запуска
+    static final AtomicLong maxQueueDepth = new AtomicLong();
+
+    // Накопительные счетчики, которые переносятся через штатный перезапуск в снимке сервера (ServerSnapshot)
+    private static final LongAdder[] PERSISTENT = {connectionsAccepted, connectionsRejected, messagesIn, forbiddenRejections,
+            rateLimited, rateLimitDisconnects, bytesSent, framesEnqueued, framesDropped, slowConsumerDisconnects,
+            framesWritten, socketWrites, clusterPublished, clusterReceived, clusterDropped};
+    // Время от запуска JVM до готовности принимать подключения и до первого принятого подключения, мс (0 - еще нет)
+    static volatile long startupMillis;
+    static volatile long firstConnectionMillis;
+
+    // Гистограммы: время рассылки сообщения участникам комнаты (мкс), глубина очереди клиента
+    // при добавлении кадра и время записи пакета журнала на диск (мкс)
+    static final MetricHistogram broadcastMicros = new MetricHistogram(24);
+    static final MetricHistogram queueDepth = new MetricHistogram(20);
+    static final MetricHistogram journalWriteMicros = new MetricHistogram(24);
+
+    // Скорости за последнюю секунду, обновляются потоком rate-sampler
+    private static volatile double messagesInRate;
+    private static volatile double messagesOutRate;
+    private static volatile double bytesSentRate;
+
+    private ChatMetrics() {
+    }
+
+    // Значения накопительных счетчиков для снимка сервера
+    static long[] counters() {
+        long[] values = new long[PERSISTENT.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = PERSISTENT[i].sum();
+        }
+        return values;
+    }
+
+    // Продолжение счетчиков из снимка; вызывается до запуска потока расчета скоростей.
+    // Снимок с другим набором счетчиков (после обновления сервера) не используется
+    static void restore(long[] values) {
+        if (values.length != PERSISTENT.length) {
+            return;
+        }
+        for (int i = 0; i < values.length; i++) {
+            PERSISTENT[i].add(values[i]);
+        }
+    }
+
+    static void onEnqueued(int frameBytes, int depth) {
+        framesEnqueued.increment();
+        queuedFrames.increment();
+        queuedBytes.add(frameBytes);
+        queueDepth.record(depth);
+        if (depth > maxQueueDepth.get()) {
+            maxQueueDepth.accumulateAndGet(depth, Math::max);
+        }
+    }
+
+    static void onDequeued(int frames, long frameBytes) {
+        queuedFrames.add(-frames);
+        queuedBytes.add(-frameBytes);
+    }
+
+    // Среднее количество вызовов записи в сокет на один отправленный кадр
+    static double writesPerFrame() {
+        long frames = framesWritten.sum();
+        return frames == 0 ? 0 : (double) socketWrites.sum() / frames;
+    }
+
+    static double messagesInPerSecond() {
+        return messagesInRate;
+    }
+
+    static double messagesOutPerSecond() {
+        return messagesOutRate;
+    }
+
+    static double bytesSentPerSecond() {
+        return bytesSentRate;
+    }
+
+    // Ежесекундный расчет скоростей по разности счетчиков
+    static void startRateSampler() {
+        Thread sampler = new Thread(() -> {
+            long lastIn = messagesIn.sum();
+            long lastOut = framesWritten.sum();
+            long lastBytes = bytesSent.sum();
+            long lastTime = System.nanoTime();
+            while (true) {
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long in = messagesIn.sum();
+                long out = framesWritten.sum();
+                long bytes = bytesSent.sum();
+                long time = System.nanoTime();
+                double seconds = (time - lastTime) / 1e9;
+                messagesInRate = (in - lastIn) / seconds;
+                messagesOutRate = (out - lastOut) / seconds;
+                bytesSentRate = (bytes - lastBytes) / seconds;
+                lastIn = in;
+                lastOut = out;
+                lastBytes = bytes;
+                lastTime = time;
+            }
+        }, "metrics-rate-sampler");
+        sampler.setDaemon(true);
+        sampler.start();
+    }
+
+    // Текстовая сводка для журнала
+    static String summary() {
+        return "подключений: принято " + connectionsAccepted.sum() + ", отклонено " + connectionsRejected.sum()
+                + ", сообщений: получено " + messagesIn.sum() + " (" + String.format("%.1f", messagesInRate) + "/с)"
+                + ", отклонено из-за запрещенных слов " + forbiddenRejections.sum()
+                + ", ограничено по частоте " + rateLimited.sum() + " (отключено " + rateLimitDisconnects.sum() + ")"
+                + ", отправлено байт: " + bytesSent.sum()
+                + ", рассылка p99: " + broadcastMicros.percentile(99) + " мкс"
+                + ", запись журнала p99: " + journalWriteMicros.percentile(99) + " мкс"
+                + ", кадров отправлено в очереди: " + framesEnqueued.sum()
+                + ", в очередях: " + queuedFrames.sum() + " (" + queuedBytes.sum() + " байт)"
+                + ", макс. глубина очереди: " + maxQueueDepth.get()
+                + ", записей в сокет: " + socketWrites.sum() + " на " + framesWritten.sum() + " кадров"
+                + " (" + String.format("%.3f", writesPerFrame()) + " на кадр)"
+                + ", отброшено: " + framesDropped.sum()
+                + ", отключено медленных клиентов: " + slowConsumerDisconnects.sum()
+                + ", кластер: отправлено " + clusterPublished.sum() + ", получено " + clusterReceived.sum()
+                + ", отброшено " + clusterDropped.sum();
+    }
+
+    // Периодический вывод сводки в журнал (интервал 0 - отключено)
+    static void startReporter(int intervalSeconds) {
+        if (intervalSeconds <= 0) {
+            return;
+        }
+        Thread reporter = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(intervalSeconds * 1000L);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                System.out.println("Метрики: " + summary() + ", пользователей: " + ChatServer.getConnectedUsers());
+            }
+        }, "metrics-reporter");
+        reporter.setDaemon(true);
+        reporter.start();
+    }
+}
@@ -0,0 +1,63 @@
+package ru.yaga;
+
+// Метрики сервера для JMX (jconsole, VisualVM): объект ru.yaga:type=ChatMetrics.
+// Счетчики - значения с момента запуска (после штатного перезапуска - продолжаются из снимка сервера),
+// скорости - за последнюю секунду, время запуска - от старта JVM,
+// перцентили - верхние границы интервалов гистограмм (степени двойки)
+public interface ChatMetricsMXBean {
+    int getConnectedUsers();
+
+    long getConnectionsAccepted();
+
+    long getConnectionsRejected();
+
+    long getMessagesIn();
+
+    long getMessagesOut();
+
+    double getMessagesInPerSecond();
+
+    double getMessagesOutPerSecond();
+
+    long getBytesSent();
+
+    double getBytesSentPerSecond();
+
+    long getForbiddenWordRejections();
+
+    long getRateLimitedMessages();
+
+    long getRateLimitDisconnects();
+
+    long getFramesDropped();
+
+    long getSlowConsumerDisconnects();
+
+    long getQueuedFrames();
+
+    long getQueuedBytes();
+
+    long getMaxQueueDepth();
+
+    long getQueueDepthP99();
+
+    long getBroadcastP50Micros();
+
+    long getBroadcastP99Micros();
+
+    long getJournalWriteP50Micros();
+
+    long getJournalWriteP99Micros();
+
+    long getJournalDropped();
+
+    long getClusterPublished();
+
+    long getClusterReceived();
+
+    long getClusterDropped();
+
+    long getStartupMillis();
+
+    long getFirstConnectionMillis();
+}
@@ -0,0 +1,90 @@
+package ru.yaga;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Комната чата: собственный набор участников и собственная рассылка.
+// Рассылка обходит только участников комнаты и не берет блокировок
+final class ChatRoom {
+    private final String name;
+    private final byte[] utf8Name; // Имя в UTF-8 для кодирования кадров без строк
+    private final Set<ChatSession> members = ConcurrentHashMap.newKeySet();
+
+    ChatRoom(String name) {
+        this.name = name;
+        this.utf8Name = name.getBytes(StandardCharsets.UTF_8);
+    }
+
+    String getName() {
+        return name;
+    }
+
+    // Имя в UTF-8; массив общий, изменять его нельзя
+    byte[] utf8Name() {
+        return utf8Name;
+    }
+
+    // Совпадает ли имя с length байтами UTF-8 с offset в buffer
+    boolean nameEquals(ByteBuffer buffer, int offset, int length) {
+        if (length != utf8Name.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (buffer.get(offset + i) != utf8Name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    boolean contains(ChatSession session) {
+        return members.contains(session);
+    }
+
+    Collection<ChatSession> members() {
+        return members;
+    }
+
+    int size() {
+        return members.size();
+    }
+
+    // Изменение состава выполняет только ChatRooms под блокировкой своего сегмента
+    boolean add(ChatSession session) {
+        return members.add(session);
+    }
+
+    boolean remove(ChatSession session) {
+        return members.remove(session);
+    }
+
+    // Отправка закодированного кадра всем участникам, кроме except (может быть null)
+    void broadcast(byte[] frame, ChatSession except) {
+        broadcast(SharedFrame.wrap(frame), except);
+    }
+
+    // Отправка разделяемого кадра всем участникам, кроме except: каждая очередь удерживает ссылку на один
+    // и тот же кадр. Сжатый вариант длинного кадра создается один раз при первом участнике со сжатием
+    void broadcast(SharedFrame frame, ChatSession except) {
+        SharedFrame compressed = null;
+        for (ChatSession member : members) {
+            if (member == except) {
+                continue;
+            }
+            if (member.acceptsCompression() && frame.length >= ServerConfig.COMPRESSION_THRESHOLD) {
+                if (compressed == null) {
+                    compressed = ChatHandler.compress(frame);
+                }
+                member.send(compressed);
+            } else {
+                member.send(frame);
+            }
+        }
+        if (compressed != null) {
+            compressed.release();
+        }
+    }
+}
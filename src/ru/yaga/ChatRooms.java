@@ -0,0 +1,114 @@
+package ru.yaga;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Реестр комнат, разделенный на сегменты по хешу имени. Создание, удаление пустой комнаты
+// и изменение состава берут блокировку только своего сегмента, поэтому вход и выход в разных
+// комнатах не конкурируют между собой. Поиск комнаты и рассылка блокировок не берут
+final class ChatRooms {
+    private static final int NAME_CACHE_SIZE = 1024; // Степень двойки
+
+    private final Shard[] shards;
+    private final int mask;
+    // Комнаты, найденные по имени в UTF-8, по хешу байтов имени. Гонки при записи безвредны: найденная
+    // в кэше комната всегда сверяется с реестром
+    private final ChatRoom[] byUtf8Name = new ChatRoom[NAME_CACHE_SIZE];
+
+    // shardCount округляется вверх до степени двойки
+    ChatRooms(int shardCount) {
+        int size = 1;
+        while (size < shardCount) {
+            size <<= 1;
+        }
+        shards = new Shard[size];
+        for (int i = 0; i < size; i++) {
+            shards[i] = new Shard();
+        }
+        mask = size - 1;
+    }
+
+    private Shard shardFor(String room) {
+        int h = room.hashCode();
+        return shards[(h ^ (h >>> 16)) & mask];
+    }
+
+    // Комната по имени или null, если в ней никого нет
+    ChatRoom get(String room) {
+        return shardFor(room).rooms.get(room);
+    }
+
+    // Комната по имени в UTF-8 (length байт с offset в buffer) или null. Имя из кадра клиента сравнивается
+    // с кэшем без создания строки; строка создается, только если комнаты нет в кэше или она пересоздана
+    ChatRoom get(ByteBuffer buffer, int offset, int length) {
+        int h = 0;
+        for (int i = 0; i < length; i++) {
+            h = 31 * h + buffer.get(offset + i);
+        }
+        int slot = (h ^ (h >>> 16)) & (NAME_CACHE_SIZE - 1);
+        ChatRoom cached = byUtf8Name[slot];
+        if (cached != null && cached.nameEquals(buffer, offset, length) && get(cached.getName()) == cached) {
+            return cached;
+        }
+        byte[] name = new byte[length];
+        for (int i = 0; i < length; i++) {
+            name[i] = buffer.get(offset + i);
+        }
+        ChatRoom room = get(new String(name, StandardCharsets.UTF_8));
+        if (room != null) {
+            byUtf8Name[slot] = room;
+        }
+        return room;
+    }
+
+    // Вход в комнату (комната создается при первом входе). Возвращает комнату или null,
+    // если сессия уже в ней состоит
+    ChatRoom join(String room, ChatSession session) {
+        Shard shard = shardFor(room);
+        shard.lock.lock();
+        try {
+            ChatRoom chatRoom = shard.rooms.computeIfAbsent(room, ChatRoom::new);
+            return chatRoom.add(session) ? chatRoom : null;
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    // Выход из комнаты (пустая комната удаляется). Возвращает комнату или null,
+    // если сессия в ней не состояла
+    ChatRoom leave(String room, ChatSession session) {
+        Shard shard = shardFor(room);
+        shard.lock.lock();
+        try {
+            ChatRoom chatRoom = shard.rooms.get(room);
+            if (chatRoom == null || !chatRoom.remove(session)) {
+                return null;
+            }
+            if (chatRoom.size() == 0) {
+                shard.rooms.remove(room);
+            }
+            return chatRoom;
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    // Имена всех непустых комнат
+    List<String> names() {
+        List<String> names = new ArrayList<>();
+        for (Shard shard : shards) {
+            names.addAll(shard.rooms.keySet());
+        }
+        return names;
+    }
+
+    private static final class Shard {
+        final ReentrantLock lock = new ReentrantLock();
+        final ConcurrentMap<String, ChatRoom> rooms = new ConcurrentHashMap<>();
+    }
+}
@@ -1,45 +1,209 @@
 package ru.yaga;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.ServerSocket;
 import java.net.Socket;
-import javax.swing.JOptionPane;
+import java.nio.file.Paths;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ChatServer {
-    private static final int MAX_USERS = 5;
-    private static int connectedUsers = 0;
+    private static final AtomicInteger connectedUsers = new AtomicInteger();
+    private static volatile Closeable listener; // Сокет приема подключений текущего режима
+    private static volatile boolean stopping; // Идет штатная остановка
 
-    public static synchronized void incrementConnectedUsers() {
-        connectedUsers++;
+    public static void incrementConnectedUsers() {
+        connectedUsers.incrementAndGet();
+        if (ChatMetrics.firstConnectionMillis == 0) {
+            ChatMetrics.firstConnectionMillis = ManagementFactory.getRuntimeMXBean().getUptime();
+            ServerLog.info("first_connection", "millisSinceStart", ChatMetrics.firstConnectionMillis);
+        }
     }
 
-    public static synchronized void decrementConnectedUsers() {
-        connectedUsers--;
+    public static void decrementConnectedUsers() {
+        connectedUsers.decrementAndGet();
     }
 
-    public static synchronized int getConnectedUsers() {
-        return connectedUsers;
+    public static int getConnectedUsers() {
+        return connectedUsers.get();
     }
 
+    // Режим работы выбирается первым аргументом или свойством chat.mode:
+    // "blocking" (по умолчанию, платформенный поток на клиента), "virtual" (виртуальный поток на клиента) или "nio".
+    // Если предыдущий запуск завершился штатно, состояние восстанавливается из снимка (см. ServerSnapshot)
     public static void main(String[] args) {
+        String mode = args.length > 0 ? args[0] : ServerConfig.MODE;
+        if (ServerConfig.NODE_ID < 0 || ServerConfig.NODE_ID > ChatHandler.MAX_NODE_ID) {
+            // Номер узла занимает старшие биты идентификаторов пользователей и не должен задевать знаковый бит
+            ServerLog.warn("server_not_started", "reason", "node_id", "nodeId", ServerConfig.NODE_ID, "max", ChatHandler.MAX_NODE_ID);
+            return;
+        }
+        if (ServerConfig.TLS) {
+            try {
+                ChatTls.serverContext(); // Ошибка в ключе или пароле видна до приема подключений
+            } catch (IOException e) {
+                ServerLog.warn("server_not_started", "reason", "tls", "error", e.getMessage());
+                return;
+            }
+        }
+        ServerSnapshot snapshot = ServerConfig.SNAPSHOT_FILE.isEmpty() ? null : ServerSnapshot.load(Paths.get(ServerConfig.SNAPSHOT_FILE));
+        if (snapshot != null) {
+            ChatMetrics.restore(snapshot.counters); // До запуска расчета скоростей, чтобы не было скачка
+        }
+        ChatMetrics.startReporter(ServerConfig.METRICS_INTERVAL);
+        MetricsExporter.start(ServerConfig.METRICS_PORT);
+        long initStart = System.nanoTime();
+        ChatHandler.init(snapshot); // История, журнал и узел кластера готовы до приема первого клиента
+        ServerLog.info("server_initialized", "millis", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - initStart),
+                "snapshot", snapshot != null ? "age=" + (System.currentTimeMillis() - snapshot.savedAt) + "ms" : "none");
+        Runtime.getRuntime().addShutdownHook(new Thread(ChatServer::shutdown, "chat-shutdown"));
+        if (mode.equals("nio")) {
+            try {
+                new NioChatServer(ServerConfig.PORT, ServerConfig.NIO_THREADS).start();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        } else if (mode.equals("virtual")) {
+            runThreadPerConnection(newVirtualThreadExecutor());
+        } else {
+            runThreadPerConnection(task -> new Thread(task).start());
+        }
+    }
+
+    // Сокет приема готов: время от запуска JVM в журнал и метрики. Вызывается циклом приема любого режима
+    static void listening(Closeable socket) throws IOException {
+        listener = socket;
+        ChatMetrics.startupMillis = ManagementFactory.getRuntimeMXBean().getUptime();
+        ServerLog.info("server_listening", "port", ServerConfig.PORT, "startupMillis", ChatMetrics.startupMillis);
+        if (stopping) {
+            socket.close(); // Остановка началась во время запуска
+        }
+    }
+
+    static boolean isStopping() {
+        return stopping;
+    }
+
+    // Штатная остановка по SIGTERM или Ctrl+C (обработчик завершения JVM): прием подключений прекращается,
+    // клиенты получают кадр SHUTDOWN и свои очереди, журнал и история сбрасываются на диск,
+    // и сохраняется снимок для быстрого перезапуска
+    private static void shutdown() {
+        long start = System.nanoTime();
+        stopping = true;
+        ServerLog.info("server_stopping", "clients", getConnectedUsers());
+        try {
+            Closeable socket = listener;
+            if (socket != null) {
+                socket.close();
+            }
+            ServerSnapshot snapshot = ChatHandler.shutdown(ServerConfig.SHUTDOWN_DRAIN_MS, ServerConfig.SHUTDOWN_FLUSH_MS);
+            if (!ServerConfig.SNAPSHOT_FILE.isEmpty()) {
+                snapshot.save(Paths.get(ServerConfig.SNAPSHOT_FILE));
+            }
+        } catch (IOException e) {
+            ServerLog.warn("shutdown_failed", "error", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        ServerLog.info("server_stopped", "millis", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    // Исполнитель с виртуальным потоком на задачу. Метод появился в Java 21, поэтому вызывается через отражение,
+    // а на более старых JVM используется пул платформенных потоков
+    private static Executor newVirtualThreadExecutor() {
+        try {
+            return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            ServerLog.warn("virtual_threads_unavailable", "fallback", "platform_threads");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    // Параметры сокета клиента из ServerConfig (общие для всех режимов)
+    static void configureSocket(Socket socket) throws IOException {
+        socket.setTcpNoDelay(ServerConfig.TCP_NODELAY);
+        if (ServerConfig.SEND_BUFFER_BYTES > 0) {
+            socket.setSendBufferSize(ServerConfig.SEND_BUFFER_BYTES);
+        }
+    }
+
+    // Проверка нового подключения в цикле приема (общая для всех режимов): частота подключений с адреса
+    // и MAX_USERS. Возвращает кадр ошибки для клиента или null, если подключение можно принять
+    static byte[] admissionError(Socket socket) {
+        if (!RateLimiter.allowConnection(socket.getInetAddress())) {
+            ChatMetrics.connectionsRejected.increment();
+            ServerLog.warn("connection_rejected", "reason", "connection_rate", "remote", socket.getInetAddress());
+            return ChatHandler.error("Слишком частые подключения с вашего адреса. Попробуйте подключиться позже.");
+        }
+        if (getConnectedUsers() >= ServerConfig.MAX_USERS) {
+            ChatMetrics.connectionsRejected.increment();
+            ServerLog.warn("connection_rejected", "reason", "max_users", "remote", socket.getInetAddress(), "limit", ServerConfig.MAX_USERS);
+            return ChatHandler.error("Достигнуто максимальное количество пользователей (" + ServerConfig.MAX_USERS + "). Попробуйте подключиться позже.");
+        }
+        return null;
+    }
+
+    // Рукопожатие и работа обработчика чата в потоке соединения, чтобы медленный или молчащий клиент
+    // (в том числе рукопожатие TLS) не задерживал прием остальных. Ожидание кадра HELLO ограничено HANDSHAKE_TIMEOUT_MS
+    private static void serve(Socket socket, Executor executor) {
+        ChatHandler chatHandler;
+        try {
+            configureSocket(socket);
+            socket.setSoTimeout(ServerConfig.HANDSHAKE_TIMEOUT_MS);
+            // При TLS рукопожатие выполняется при чтении кадра HELLO в конструкторе обработчика
+            Socket client = ServerConfig.TLS ? ChatTls.serverSocket(socket) : socket;
+            chatHandler = new ChatHandler(client, executor); // Создание обработчика чата для клиента (снимает ограничение времени)
+        } catch (IOException e) {
+            // Ошибка или истечение времени рукопожатия (например, занятое имя) разрывает только это соединение
+            ServerLog.warn("connection_rejected", "reason", "handshake", "remote", socket.getInetAddress(), "error", e.getMessage());
+            ChatMetrics.connectionsRejected.increment();
+            decrementConnectedUsers();
+            try {
+                socket.close();
+            } catch (IOException closeError) {
+                closeError.printStackTrace();
+            }
+            return;
+        }
+        ChatMetrics.connectionsAccepted.increment();
+        chatHandler.run();
+    }
+
+    // Поток (платформенный или виртуальный) на каждое подключение, в котором выполняется ChatHandler
+    private static void runThreadPerConnection(Executor executor) {
         ServerSocket serverSocket = null; // Серверный сокет для прослушивания подключений
         try {
-            serverSocket = new ServerSocket(8082); // Создание серверного сокета на порту 8082
+            serverSocket = new ServerSocket(ServerConfig.PORT); // Создание серверного сокета на настроенном порту
+            listening(serverSocket);
             while (true) {
-                Socket socket = serverSocket.accept(); // Принятие подключения от клиента
+                Socket socket = serverSocket.accept(); // Принятие подключения от клиента (исключение после закрытия при остановке)
 
-                if (getConnectedUsers() < MAX_USERS) {
+                byte[] refusal = admissionError(socket);
+                if (refusal == null) {
                     incrementConnectedUsers();
                     System.out.println("Принято от: " + socket.getInetAddress()); // Вывод информации о подключившемся клиенте
-                    ChatHandler chatHandler = new ChatHandler(socket); // Создание обработчика чата для клиента
-                    chatHandler.start(); // Запуск потока обработчика чата
+                    executor.execute(() -> serve(socket, executor)); // Рукопожатие и обработчик чата в отдельном потоке
                 } else {
-                    JOptionPane.showMessageDialog(null, "Достигнуто максимальное количество пользователей (5).", "Предупреждение", JOptionPane.WARNING_MESSAGE);
-                    socket.close(); // Закрываем сокет, так как максимальное количество пользователей достигнуто
+                    try {
+                        // Кадр ошибки помещается в буфер отправки нового сокета, поэтому запись не блокирует прием.
+                        // При TLS кадр потребовал бы рукопожатия в потоке приема, поэтому соединение просто закрывается
+                        if (!ServerConfig.TLS) {
+                            socket.getOutputStream().write(refusal);
+                        }
+                    } catch (IOException e) {
+                        // Клиент уже отключился
+                    }
+                    socket.close(); // Закрываем сокет, так как подключение не принято
                 }
             }
         } catch (IOException e) {
-            e.printStackTrace(); // Вывод стека вызовов в случае исключения
+            if (!stopping) {
+                e.printStackTrace(); // Вывод стека вызовов в случае исключения
+            }
         } finally {
             try {
                 if (serverSocket != null) {
@@ -0,0 +1,40 @@
+package ru.yaga;
+
+import java.util.Set;
+
+// Подключенный клиент чата, независимо от режима работы сервера (блокирующий или NIO)
+public interface ChatSession {
+    // Имя пользователя, полученное при рукопожатии
+    String getUsername();
+
+    // Идентификатор пользователя, назначенный сервером при рукопожатии
+    int getUserId();
+
+    // Имена комнат, в которых состоит клиент (изменяется ChatHandler при входе и выходе)
+    Set<String> getRooms();
+
+    // Ограничения частоты сообщений соединения (назначаются при рукопожатии)
+    RateLimiter.Client getRateLimit();
+
+    // Включено ли сжатие кадров для клиента (согласуется при рукопожатии)
+    boolean acceptsCompression();
+
+    // Постановка закодированного кадра в исходящую очередь клиента без блокировки.
+    // Кадр кодируется один раз и разделяется между всеми получателями, поэтому изменять его нельзя:
+    // очередь удерживает ссылку на кадр (SharedFrame.retain) и отпускает ее после записи в сокет.
+    // Ссылка вызывающего остается у него. Клиенту со сжатием длинный кадр отправляется сжатым
+    // (уже сжатый кадр - без изменений)
+    void send(SharedFrame frame);
+
+    // Постановка кадра, закодированного для одного получателя или вне пула (служебные кадры, история)
+    default void send(byte[] frame) {
+        send(SharedFrame.wrap(frame));
+    }
+
+    // Разрыв соединения (например, если клиент не успевает читать). Может вызываться из любого потока
+    void close();
+
+    // Закрытие соединения после отправки всех кадров, уже стоящих в очереди (остановка сервера).
+    // Может вызываться из любого потока
+    void drainAndClose();
+}
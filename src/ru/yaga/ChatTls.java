@@ -0,0 +1,128 @@
+package ru.yaga;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+// Контексты TLS сервера и клиентов (-Dchat.tls=true). Сервер NIO шифрует соединения через SSLEngine (см. TlsChannel),
+// блокирующий сервер, клиент и нагрузочные тесты - через SSLSocket из того же контекста.
+// Сессии возобновляются: клиент хранит их в кэше своего контекста по адресу сервера и при переподключении
+// обходится без проверки сертификата и подписи сервера. Самоподписанный ключ для localhost (EC P-256 дешевле RSA
+// при рукопожатии) и хранилище доверенных сертификатов для клиентов:
+// keytool -genkeypair -alias chat -keyalg EC -groupname secp256r1 -validity 365 -dname CN=localhost
+//         -ext san=dns:localhost,ip:127.0.0.1 -keystore chat-server.p12 -storetype PKCS12 -storepass changeit
+// keytool -exportcert -alias chat -keystore chat-server.p12 -storepass changeit -file chat.crt
+// keytool -importcert -noprompt -alias chat -file chat.crt -keystore chat-trust.p12 -storetype PKCS12 -storepass changeit
+// Клиент: -Dchat.tls=true -Dchat.tlsTrustStore=chat-trust.p12 (без него - доверенные сертификаты JVM)
+final class ChatTls {
+    private static final String TRUST_STORE = System.getProperty("chat.tlsTrustStore", "");
+    private static final String TRUST_STORE_PASSWORD = System.getProperty("chat.tlsTrustStorePassword", "changeit");
+
+    private static SSLContext serverContext;
+    private static SSLContext clientContext;
+    private static Executor handshakeExecutor;
+
+    private ChatTls() {
+    }
+
+    // Контекст сервера с ключом из TLS_KEY_STORE. Первый вызов загружает хранилище, поэтому сервер
+    // вызывает его до приема подключений, чтобы ошибка настройки была видна сразу
+    static synchronized SSLContext serverContext() throws IOException {
+        if (serverContext == null) {
+            try {
+                char[] password = ServerConfig.TLS_KEY_STORE_PASSWORD.toCharArray();
+                KeyStore keyStore = KeyStore.getInstance(new File(ServerConfig.TLS_KEY_STORE), password);
+                KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+                keyManagers.init(keyStore, password);
+                SSLContext context = SSLContext.getInstance("TLS");
+                context.init(keyManagers.getKeyManagers(), null, null);
+                SSLSessionContext sessions = context.getServerSessionContext();
+                sessions.setSessionCacheSize(ServerConfig.TLS_SESSION_CACHE_SIZE);
+                sessions.setSessionTimeout(ServerConfig.TLS_SESSION_TIMEOUT);
+                serverContext = context;
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Ошибка загрузки ключа TLS из " + ServerConfig.TLS_KEY_STORE + ": " + e.getMessage(), e);
+            }
+        }
+        return serverContext;
+    }
+
+    // Контекст клиентов одного процесса: общий кэш сессий для возобновления при переподключении
+    static synchronized SSLContext clientContext() throws IOException {
+        if (clientContext == null) {
+            try {
+                if (TRUST_STORE.isEmpty()) {
+                    clientContext = SSLContext.getDefault();
+                } else {
+                    KeyStore trustStore = KeyStore.getInstance(new File(TRUST_STORE), TRUST_STORE_PASSWORD.toCharArray());
+                    TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+                    trustManagers.init(trustStore);
+                    SSLContext context = SSLContext.getInstance("TLS");
+                    context.init(null, trustManagers.getTrustManagers(), null);
+                    clientContext = context;
+                }
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Ошибка загрузки доверенных сертификатов TLS из " + TRUST_STORE + ": " + e.getMessage(), e);
+            }
+        }
+        return clientContext;
+    }
+
+    // Пул для задач рукопожатий соединений NIO (см. TlsChannel)
+    static synchronized Executor handshakeExecutor() {
+        if (handshakeExecutor == null) {
+            handshakeExecutor = Executors.newFixedThreadPool(Math.max(1, ServerConfig.TLS_HANDSHAKE_THREADS), task -> {
+                Thread thread = new Thread(task, "tls-handshake");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return handshakeExecutor;
+    }
+
+    // Серверная сторона TLS для соединения NIO
+    static SSLEngine serverEngine() throws IOException {
+        SSLEngine engine = serverContext().createSSLEngine();
+        engine.setUseClientMode(false);
+        return engine;
+    }
+
+    // Серверная сторона TLS поверх принятого сокета блокирующего сервера. Рукопожатие выполняется при первом чтении
+    static Socket serverSocket(Socket socket) throws IOException {
+        SSLSocket tls = (SSLSocket) serverContext().getSocketFactory().createSocket(socket, null, socket.getPort(), true);
+        tls.setUseClientMode(false);
+        return tls;
+    }
+
+    // Клиентская сторона TLS поверх подключенного сокета: рукопожатие с проверкой, что сертификат выдан на host.
+    // Сессия сохраняется в кэше по host и port и возобновляется при следующем подключении
+    static Socket clientSocket(Socket socket, String host, int port) throws IOException {
+        SSLSocket tls = (SSLSocket) clientContext().getSocketFactory().createSocket(socket, host, port, true);
+        SSLParameters parameters = tls.getSSLParameters();
+        parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        tls.setSSLParameters(parameters);
+        tls.startHandshake();
+        return tls;
+    }
+
+    // Наибольший размер расшифрованной записи TLS: буфер, в который она расшифровывается, должен ее вместить
+    static int applicationBufferSize() throws IOException {
+        return serverEngine().getSession().getApplicationBufferSize();
+    }
+
+    // Наибольший размер зашифрованной записи TLS
+    static int packetBufferSize() throws IOException {
+        return serverEngine().getSession().getPacketBufferSize();
+    }
+}
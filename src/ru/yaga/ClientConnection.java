@@ -0,0 +1,283 @@
+package ru.yaga;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+
+// Сетевое соединение ChatClient. Чтение и переподключение выполняются в потоке run, запись - в отдельном
+// потоке записи из очереди, поэтому поток обработки событий Swing никогда не ждет сеть. При обрыве связи
+// клиент переподключается с экспоненциально растущей паузой, повторяет рукопожатие под тем же именем,
+// возвращается в свои комнаты с показом пропущенных сообщений и отправляет неотправленные сообщения.
+// Сообщение считается отправленным после сброса буфера в сокет, поэтому после обрыва оно может прийти дважды
+final class ClientConnection {
+    private static final int MAX_FRAME_BYTES = 16 * 1024 * 1024; // Максимальная длина кадра от сервера
+    // Сжатие длинных сообщений: запрашивается у сервера при рукопожатии (-Dchat.compression=false - не запрашивать)
+    private static final boolean REQUEST_COMPRESSION = Boolean.parseBoolean(System.getProperty("chat.compression", "true"));
+    private static final int COMPRESSION_THRESHOLD = 512;
+    private static final int COMPRESSION_LEVEL = 6;
+    // Шифрование соединения (-Dchat.tls=true, доверенные сертификаты - см. ChatTls). Сессия TLS возобновляется
+    // при переподключении, поэтому повторное рукопожатие дешевле первого
+    private static final boolean TLS = Boolean.parseBoolean(System.getProperty("chat.tls", "false"));
+    // Очередь отправки: сколько сообщений хранить, пока нет связи
+    private static final int QUEUE_CAPACITY = Integer.getInteger("chat.clientQueueCapacity", 1000);
+    private static final int WRITE_BATCH = 64; // Сообщений за один сброс буфера в сокет
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    // Пауза перед переподключением: начальная, удваивается после каждой неудачи до наибольшей
+    private static final long RECONNECT_INITIAL_MS = Long.getLong("chat.reconnectInitialMs", 500);
+    private static final long RECONNECT_MAX_MS = Long.getLong("chat.reconnectMaxMs", 30000);
+
+    // Сообщение в очереди отправки. Адресат приватного сообщения хранится по имени: после переподключения
+    // идентификаторы пользователей назначаются сервером заново
+    private static final class Outgoing {
+        final byte opcode;
+        final String target;
+        final long timestamp;
+        final String room;
+        final String text;
+
+        Outgoing(byte opcode, String target, long timestamp, String room, String text) {
+            this.opcode = opcode;
+            this.target = target;
+            this.timestamp = timestamp;
+            this.room = room;
+            this.text = text;
+        }
+    }
+
+    private final String host;
+    private final int port;
+    private final String username;
+    private final BlockingQueue<Outgoing> outbound = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final List<Outgoing> inFlight = new ArrayList<>(); // Записанные, но не подтвержденные сбросом (только поток записи)
+    private final ConcurrentMap<String, Integer> userIds = new ConcurrentHashMap<>(); // Пользователи текущего соединения
+    private final Set<String> rooms = new LinkedHashSet<>(); // Комнаты клиента в порядке входа (только поток run)
+    private volatile boolean compression; // Сервер подтвердил сжатие в текущем соединении
+    private long lastTimestamp; // Время последнего полученного сообщения (только поток run)
+    private Consumer<Frame> sink; // Получатель кадров от сервера и уведомлений о состоянии связи
+
+    ClientConnection(String host, int port, String username) {
+        this.host = host;
+        this.port = port;
+        this.username = username;
+    }
+
+    String username() {
+        return username;
+    }
+
+    // Постановка сообщения в очередь отправки из любого потока. target - имя адресата приватного сообщения.
+    // Возвращает false, если очередь переполнена (связи долго нет)
+    boolean send(byte opcode, String target, long timestamp, String room, String text) {
+        return outbound.offer(new Outgoing(opcode, target, timestamp, room, text));
+    }
+
+    // Работа соединения: подключение, чтение кадров и передача их в sink до завершения потока.
+    // При обрыве связи - пауза и переподключение. sink вызывается в потоке соединения
+    void run(Consumer<Frame> sink) {
+        this.sink = sink;
+        long delay = RECONNECT_INITIAL_MS;
+        boolean resumed = false; // Было ли уже установлено соединение (переподключение, а не первый вход)
+        while (!Thread.currentThread().isInterrupted()) {
+            Socket socket = new Socket();
+            Thread writer = null;
+            try {
+                socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+                socket.setKeepAlive(true);
+                socket.setTcpNoDelay(true);
+                if (TLS) {
+                    socket = ChatTls.clientSocket(socket, host, port);
+                }
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                compression = false;
+
+                // Рукопожатие; при переподключении сервер покажет сообщения, пришедшие после последнего полученного
+                byte helloFlags = REQUEST_COMPRESSION ? Frame.FLAG_COMPRESSION : 0;
+                long since = resumed ? lastTimestamp + 1 : 0;
+                out.write(FrameCodec.encode(Frame.HELLO, helloFlags, 0, since, username, "", ""));
+                out.flush();
+
+                while (true) {
+                    Frame frame = FrameCodec.read(in, MAX_FRAME_BYTES);
+                    // Рукопожатие завершено, когда сервер сообщает о входе клиента в комнату по умолчанию
+                    if (writer == null && frame.opcode == Frame.ROOM_JOIN && frame.name.equals(username)) {
+                        writer = startWriter(socket, out, restoreRooms(frame.room, resumed));
+                        lastTimestamp = Math.max(lastTimestamp, frame.timestamp);
+                        if (resumed) {
+                            notice("Соединение восстановлено.");
+                        }
+                        resumed = true;
+                        delay = RECONNECT_INITIAL_MS;
+                    } else if (frame.opcode == Frame.SHUTDOWN && writer != null) {
+                        // Сервер останавливается: новые сообщения остаются в очереди и уйдут после переподключения
+                        writer.interrupt();
+                    } else {
+                        track(frame);
+                    }
+                    // Ошибка рукопожатия (например, имя еще занято прежним соединением) не прерывает переподключение
+                    sink.accept(writer == null && frame.opcode == Frame.ERROR
+                            ? new Frame(Frame.NOTICE, (byte) 0, 0, frame.timestamp, "", "", frame.body)
+                            : frame);
+                }
+            } catch (IOException e) {
+                System.out.println("Соединение с сервером потеряно: " + e);
+            } finally {
+                closeQuietly(socket);
+                if (writer != null) {
+                    writer.interrupt();
+                    try {
+                        writer.join();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                // Список пользователей в сети будет заново получен от сервера после переподключения
+                for (Map.Entry<String, Integer> user : userIds.entrySet()) {
+                    sink.accept(new Frame(Frame.PRESENCE_LEAVE, (byte) 0, user.getValue(), System.currentTimeMillis(), user.getKey(), "", ""));
+                }
+                userIds.clear();
+            }
+            // Пауза со случайной добавкой, чтобы клиенты не переподключались к серверу одновременно
+            long pause = delay + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+            notice((resumed ? "Соединение потеряно" : "Нет связи с сервером") + ". Повторное подключение через "
+                    + (pause + 500) / 1000 + " с.");
+            try {
+                Thread.sleep(pause);
+            } catch (InterruptedException e) {
+                return;
+            }
+            delay = Math.min(delay * 2, RECONNECT_MAX_MS);
+        }
+    }
+
+    // Учет кадра сервера, нужный для переподключения: сжатие, идентификаторы пользователей,
+    // комнаты клиента и время последнего сообщения
+    private void track(Frame frame) {
+        switch (frame.opcode) {
+            case Frame.HELLO:
+                compression = frame.hasFlag(Frame.FLAG_COMPRESSION);
+                break;
+            case Frame.PRESENCE_JOIN:
+                userIds.put(frame.name, frame.userId);
+                break;
+            case Frame.PRESENCE_LIST:
+                userIds.putAll(frame.listedUsers());
+                break;
+            case Frame.PRESENCE_LEAVE:
+                userIds.remove(frame.name);
+                break;
+            case Frame.ROOM_JOIN:
+                if (frame.name.equals(username)) {
+                    rooms.remove(frame.room);
+                    rooms.add(frame.room);
+                }
+                break;
+            case Frame.ROOM_LEAVE:
+                if (frame.name.equals(username)) {
+                    rooms.remove(frame.room);
+                }
+                break;
+            case Frame.CHAT:
+                if (!frame.hasFlag(Frame.FLAG_HISTORY) && !frame.hasFlag(Frame.FLAG_SEARCH)) {
+                    lastTimestamp = Math.max(lastTimestamp, frame.timestamp);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    // Кадры возврата в комнаты прежнего соединения после рукопожатия: сервер помещает клиента только
+    // в комнату по умолчанию defaultRoom. Остальные комнаты запрашиваются с пропущенными сообщениями
+    private List<Outgoing> restoreRooms(String defaultRoom, boolean resumed) {
+        List<Outgoing> frames = new ArrayList<>();
+        if (resumed) {
+            if (!rooms.contains(defaultRoom)) {
+                frames.add(new Outgoing(Frame.ROOM_LEAVE, null, 0, defaultRoom, ""));
+            }
+            for (String room : rooms) {
+                if (!room.equals(defaultRoom)) {
+                    frames.add(new Outgoing(Frame.ROOM_JOIN, null, lastTimestamp + 1, room, ""));
+                }
+            }
+        }
+        rooms.clear();
+        rooms.add(defaultRoom);
+        return frames;
+    }
+
+    private Thread startWriter(Socket socket, DataOutputStream out, List<Outgoing> first) {
+        Thread writer = new Thread(() -> writeLoop(socket, out, first), "chat-client-writer");
+        writer.setDaemon(true);
+        writer.start();
+        return writer;
+    }
+
+    // Поток записи: сначала возврат в комнаты, затем сообщения, не подтвержденные в прежнем соединении,
+    // затем очередь. Сообщения удаляются из inFlight только после успешного сброса буфера в сокет
+    private void writeLoop(Socket socket, DataOutputStream out, List<Outgoing> first) {
+        try {
+            for (Outgoing message : first) {
+                write(out, message);
+            }
+            out.flush();
+            while (true) {
+                if (inFlight.isEmpty()) {
+                    inFlight.add(outbound.take());
+                    outbound.drainTo(inFlight, WRITE_BATCH - 1);
+                }
+                for (Outgoing message : inFlight) {
+                    write(out, message);
+                }
+                out.flush();
+                inFlight.clear();
+            }
+        } catch (IOException e) {
+            // Поток чтения получит ошибку закрытого сокета и начнет переподключение
+            closeQuietly(socket);
+        } catch (InterruptedException e) {
+            // Соединение закрыто потоком чтения
+        }
+    }
+
+    private void write(DataOutputStream out, Outgoing message) throws IOException {
+        int userId = 0;
+        if (message.target != null) {
+            Integer id = userIds.get(message.target);
+            if (id == null) {
+                notice("Пользователь " + message.target + " не в сети, сообщение не отправлено.");
+                return;
+            }
+            userId = id;
+        }
+        byte[] frame = FrameCodec.encode(message.opcode, (byte) 0, userId, message.timestamp, username, message.room, message.text);
+        if (compression) {
+            frame = FrameCompression.compress(frame, COMPRESSION_THRESHOLD, COMPRESSION_LEVEL);
+        }
+        out.write(frame);
+    }
+
+    // Уведомление о состоянии связи в окне клиента
+    private void notice(String text) {
+        sink.accept(new Frame(Frame.NOTICE, (byte) 0, 0, System.currentTimeMillis(), "Клиент", "", text));
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package ru.yaga;
+
+import java.io.IOException;
+
+// Шина между узлами кластера. Сообщения шины непрозрачны для нее (формат задает ChatCluster);
+// порядок сообщений от одного узла к другому сохраняется. Реализация выбирается настройкой chat.clusterBus
+interface ClusterBus {
+    // Запуск шины: прием сообщений от других узлов и подключение к ним
+    void start(Listener listener) throws IOException;
+
+    // Отправка сообщения всем остальным узлам
+    void publish(byte[] message);
+
+    // Отправка сообщения одному узлу (например, приватное сообщение пользователю этого узла)
+    void send(int nodeId, byte[] message);
+
+    // Получатель событий шины. Методы вызываются потоками шины
+    interface Listener {
+        // Появилась связь с узлом nodeId: ему можно отправить снимок локального состояния
+        void onPeerConnected(int nodeId);
+
+        // Сообщение от узла nodeId
+        void onMessage(int nodeId, byte[] message);
+
+        // Узел nodeId отключился: его пользователи больше недоступны
+        void onPeerDisconnected(int nodeId);
+    }
+}
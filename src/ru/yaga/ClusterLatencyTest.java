@@ -0,0 +1,230 @@
+package ru.yaga;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+// Задержка доставки между узлами кластера. Запускает на этой машине N узлов ChatServer
+// (отдельные процессы с шиной TcpClusterBus через loopback, каждый в своем каталоге node-i),
+// подключает к каждому узлу клиентов, и один клиент первого узла отправляет сообщения
+// с отметкой System.nanoTime(). Задержка считается по получении у клиентов своего
+// узла (локальная доставка) и остальных узлов (через шину).
+// Запуск: java ru.yaga.ClusterLatencyTest [узлов] [клиентов на узел] [сообщений]
+public class ClusterLatencyTest {
+    private static final int CLIENT_PORT_BASE = 8090;
+    private static final int CLUSTER_PORT_BASE = 9090;
+    private static final long SEND_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(1); // Без очередей из-за пачек
+    private static final int STARTUP_TIMEOUT_MS = 30000;
+
+    public static void main(String[] args) throws Exception {
+        int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int clientsPerNode = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int messages = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+
+        List<Process> processes = new ArrayList<>();
+        List<Socket> sockets = new ArrayList<>();
+        try {
+            for (int i = 0; i < nodes; i++) {
+                processes.add(startNode(i, nodes));
+            }
+            for (int i = 0; i < nodes; i++) {
+                awaitPort(CLIENT_PORT_BASE + i);
+            }
+
+            // Подключение клиентов: по clientsPerNode к каждому узлу
+            int total = nodes * clientsPerNode;
+            long[][] latencies = new long[total][messages];
+            int[] received = new int[total];
+            List<DataInputStream> inputs = new ArrayList<>();
+            DataOutputStream senderOutput = null;
+            for (int i = 0; i < total; i++) {
+                Socket socket = new Socket("localhost", CLIENT_PORT_BASE + i / clientsPerNode);
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(STARTUP_TIMEOUT_MS);
+                sockets.add(socket);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                out.write(FrameCodec.encode(Frame.HELLO, (byte) 0, 0, 0, clientName(i, clientsPerNode), "", ""));
+                out.flush();
+                inputs.add(new DataInputStream(new BufferedInputStream(socket.getInputStream())));
+                if (i == 0) {
+                    senderOutput = out;
+                }
+            }
+
+            // Кластер собран, когда отправитель видит в сети всех клиентов всех узлов
+            Set<String> online = new HashSet<>();
+            while (online.size() < total) {
+                Frame frame = FrameCodec.read(inputs.get(0), ServerConfig.MAX_FRAME_BYTES);
+                if (frame.opcode == Frame.PRESENCE_JOIN) {
+                    online.add(frame.name);
+                } else if (frame.opcode == Frame.PRESENCE_LIST) {
+                    online.addAll(frame.listedUsers().keySet());
+                }
+            }
+            // Исходящие соединения шины могут подключиться позже входящих: пробные сообщения
+            // отправляются, пока их не получит каждый клиент
+            warmUp(senderOutput, clientName(0, clientsPerNode), inputs);
+            System.out.println("Кластер из " + nodes + " узлов собран, клиентов: " + total);
+
+            // Читатели: задержка каждого полученного сообщения
+            CountDownLatch done = new CountDownLatch(total);
+            for (int i = 0; i < total; i++) {
+                int client = i;
+                Thread reader = new Thread(() -> {
+                    try {
+                        while (received[client] < messages) {
+                            Frame frame = FrameCodec.read(inputs.get(client), ServerConfig.MAX_FRAME_BYTES);
+                            if (frame.opcode == Frame.CHAT && frame.body.startsWith("t")) {
+                                latencies[client][received[client]++] = System.nanoTime() - Long.parseLong(frame.body.substring(1));
+                            }
+                        }
+                    } catch (IOException e) {
+                        System.out.println("Клиент " + client + " получил " + received[client] + " сообщений: " + e.getMessage());
+                    } finally {
+                        done.countDown();
+                    }
+                }, "reader-" + i);
+                reader.setDaemon(true);
+                reader.start();
+            }
+
+            long next = System.nanoTime();
+            for (int m = 0; m < messages; m++) {
+                long pause = next - System.nanoTime();
+                if (pause > 0) {
+                    LockSupport.parkNanos(pause);
+                }
+                senderOutput.write(FrameCodec.encode(Frame.CHAT, (byte) 0, 0, 0, clientName(0, clientsPerNode), "", "t" + System.nanoTime()));
+                senderOutput.flush();
+                next += SEND_INTERVAL_NANOS;
+            }
+            done.await(STARTUP_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+            report("Локальная доставка (узел 0)", latencies, received, 0, clientsPerNode);
+            report("Через шину (узлы 1.." + (nodes - 1) + ")", latencies, received, clientsPerNode, total);
+        } finally {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+            for (Process process : processes) {
+                process.destroy();
+            }
+        }
+    }
+
+    private static void warmUp(DataOutputStream senderOutput, String senderName, List<DataInputStream> inputs) throws IOException {
+        for (DataInputStream in : inputs) {
+            while (true) {
+                senderOutput.write(FrameCodec.encode(Frame.CHAT, (byte) 0, 0, 0, senderName, "", "w"));
+                senderOutput.flush();
+                if (awaitWarmUp(in)) {
+                    break;
+                }
+            }
+        }
+    }
+
+    // Чтение кадров до пробного сообщения или до паузы без кадров
+    private static boolean awaitWarmUp(DataInputStream in) throws IOException {
+        long deadline = System.currentTimeMillis() + 200;
+        while (System.currentTimeMillis() < deadline) {
+            if (in.available() == 0) {
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+                continue;
+            }
+            Frame frame = FrameCodec.read(in, ServerConfig.MAX_FRAME_BYTES);
+            if (frame.opcode == Frame.CHAT && frame.body.equals("w")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String clientName(int client, int clientsPerNode) {
+        return "n" + client / clientsPerNode + "-c" + client % clientsPerNode;
+    }
+
+    // Процесс узла node с тем же classpath, что и у теста
+    private static Process startNode(int node, int nodes) throws IOException {
+        StringBuilder peers = new StringBuilder();
+        for (int i = 0; i < nodes; i++) {
+            if (i != node) {
+                peers.append(peers.length() > 0 ? "," : "").append("localhost:").append(CLUSTER_PORT_BASE + i);
+            }
+        }
+        StringBuilder classpath = new StringBuilder();
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            classpath.append(classpath.length() > 0 ? File.pathSeparator : "").append(new File(entry).getAbsolutePath());
+        }
+        File dir = new File("node-" + node);
+        dir.mkdirs();
+        ProcessBuilder builder = new ProcessBuilder(
+                new File(System.getProperty("java.home"), "bin/java").getPath(),
+                "-Djava.awt.headless=true",
+                "-Dchat.maxUsers=100000",
+                "-Dchat.nodeId=" + (node + 1),
+                "-Dchat.port=" + (CLIENT_PORT_BASE + node),
+                "-Dchat.clusterPort=" + (CLUSTER_PORT_BASE + node),
+                "-Dchat.clusterPeers=" + peers,
+                "-cp", classpath.toString(),
+                "ru.yaga.ChatServer", "nio");
+        builder.directory(dir);
+        builder.redirectErrorStream(true);
+        builder.redirectOutput(new File(dir, "server.log"));
+        return builder.start();
+    }
+
+    private static void awaitPort(int port) throws InterruptedException, IOException {
+        long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT_MS;
+        while (true) {
+            try {
+                new Socket("localhost", port).close();
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IOException("Узел на порту " + port + " не запустился", e);
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    // Перцентили задержки клиентов [from, to)
+    private static void report(String title, long[][] latencies, int[] received, int from, int to) {
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            count += received[i];
+        }
+        long[] all = new long[count];
+        int pos = 0;
+        for (int i = from; i < to; i++) {
+            System.arraycopy(latencies[i], 0, all, pos, received[i]);
+            pos += received[i];
+        }
+        if (count == 0) {
+            System.out.println(title + ": нет данных");
+            return;
+        }
+        Arrays.sort(all);
+        System.out.printf("%s: сообщений %d, p50 %.1f мкс, p99 %.1f мкс, p99.9 %.1f мкс, макс %.1f мкс%n", title, count,
+                all[(int) (count * 0.50)] / 1000.0, all[(int) (count * 0.99)] / 1000.0,
+                all[Math.min(count - 1, (int) (count * 0.999))] / 1000.0, all[count - 1] / 1000.0);
+    }
+}
@@ -0,0 +1,318 @@
+package ru.yaga;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Фильтр запрещенных слов на автомате Ахо-Корасик. Словарь загружается из файла один раз и
+// перезагружается при изменении времени модификации файла. Проверка сообщения - один проход по символам
+// (или прямо по байтам UTF-8 из буфера кадра) без выделения памяти, время не зависит от размера словаря.
+// Построение автомата для большого словаря занимает секунды, поэтому при перезапуске готовый автомат
+// берется из снимка сервера (ServerSnapshot)
+class ForbiddenWordsFilter {
+    private static final long RELOAD_CHECK_INTERVAL_MS = 1000; // Как часто проверять изменение файла
+    private static final long UNREADABLE = -1; // Признак того, что файл не удалось прочитать
+
+    private final Path file;
+    private final AtomicBoolean reloading = new AtomicBoolean();
+    private volatile Automaton automaton = Automaton.build(new ArrayList<>());
+    private volatile long lastModified = Long.MIN_VALUE;
+    private volatile long nextCheck;
+
+    ForbiddenWordsFilter(Path file) {
+        this(file, null);
+    }
+
+    // Фильтр с автоматом из снимка (см. snapshot), если файл словаря с тех пор не изменялся.
+    // snapshot - null или поврежденный снимок: словарь загружается из файла
+    ForbiddenWordsFilter(Path file, ByteBuffer snapshot) {
+        this.file = file;
+        if (snapshot != null) {
+            try {
+                long modified = snapshot.getLong();
+                if (modified == Files.getLastModifiedTime(file).toMillis()) {
+                    automaton = Automaton.read(snapshot);
+                    lastModified = modified;
+                    nextCheck = System.currentTimeMillis() + RELOAD_CHECK_INTERVAL_MS;
+                    System.out.println("Список запрещенных слов восстановлен из снимка: " + automaton.words);
+                    return;
+                }
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Снимок списка запрещенных слов не используется: " + e);
+            }
+        }
+        reloadIfModified();
+    }
+
+    // Проверка, содержит ли сообщение хотя бы одно запрещенное слово (без учета регистра)
+    boolean hasForbiddenWords(String message) {
+        if (System.currentTimeMillis() >= nextCheck) {
+            reloadIfModified();
+        }
+        return automaton.matches(message);
+    }
+
+    // То же для текста в UTF-8 прямо из буфера кадра (length байт с offset) без создания строки
+    boolean hasForbiddenWords(ByteBuffer utf8, int offset, int length) {
+        if (System.currentTimeMillis() >= nextCheck) {
+            reloadIfModified();
+        }
+        return automaton.matches(utf8, offset, length);
+    }
+
+    // Количество слов в текущем словаре
+    int size() {
+        return automaton.words;
+    }
+
+    // Снимок текущего автомата: [long время изменения файла][массивы автомата] или null, если словарь
+    // не загружен из файла. Время читается до автомата: при одновременной перезагрузке снимок получит
+    // прежнее время, и при запуске словарь будет построен из файла заново
+    ByteBuffer snapshot() {
+        long modified = lastModified;
+        if (modified == Long.MIN_VALUE || modified == UNREADABLE) {
+            return null;
+        }
+        Automaton current = automaton;
+        ByteBuffer buffer = ByteBuffer.allocate(8 + current.snapshotBytes());
+        buffer.putLong(modified);
+        current.write(buffer);
+        return buffer.flip();
+    }
+
+    // Перезагрузка словаря, если файл изменился. Новый автомат подменяет старый атомарно
+    void reloadIfModified() {
+        if (!reloading.compareAndSet(false, true)) {
+            return; // Проверку уже выполняет другой поток
+        }
+        try {
+            nextCheck = System.currentTimeMillis() + RELOAD_CHECK_INTERVAL_MS;
+            long modified = Files.getLastModifiedTime(file).toMillis();
+            if (modified != lastModified) {
+                automaton = Automaton.build(Files.readAllLines(file, StandardCharsets.UTF_8));
+                lastModified = modified;
+                System.out.println("Загружен список запрещенных слов: " + automaton.words);
+            }
+        } catch (IOException e) {
+            // Сообщаем об ошибке один раз, а не при каждой проверке; прежний словарь остается в силе
+            if (lastModified != UNREADABLE) {
+                System.out.println("Не удалось загрузить список запрещенных слов: " + e);
+                lastModified = UNREADABLE;
+            }
+        } finally {
+            reloading.set(false);
+        }
+    }
+
+    // Неизменяемый автомат в плоских массивах: переходы состояния s - элементы [edgeStart[s], edgeStart[s + 1])
+    // массивов edgeKeys (символы по возрастанию) и edgeTargets. Несколько больших массивов вместо
+    // массива на состояние компактнее в памяти и целиком записываются в снимок и читаются из него
+    private static final class Automaton {
+        private final int[] edgeStart;
+        private final char[] edgeKeys;
+        private final int[] edgeTargets;
+        private final int[] fail; // Суффиксные ссылки
+        private final boolean[] terminal; // Заканчивается ли в состоянии (или его суффиксе) запрещенное слово
+        private final int words;
+
+        private Automaton(int[] edgeStart, char[] edgeKeys, int[] edgeTargets, int[] fail, boolean[] terminal, int words) {
+            this.edgeStart = edgeStart;
+            this.edgeKeys = edgeKeys;
+            this.edgeTargets = edgeTargets;
+            this.fail = fail;
+            this.terminal = terminal;
+            this.words = words;
+        }
+
+        static Automaton build(List<String> lines) {
+            // Построение бора
+            List<TreeMap<Character, Integer>> trie = new ArrayList<>();
+            List<Boolean> ends = new ArrayList<>();
+            trie.add(new TreeMap<>());
+            ends.add(false);
+            int words = 0;
+            int edges = 0;
+            for (String line : lines) {
+                if (line.isEmpty()) {
+                    continue; // Пустая строка совпала бы с любым сообщением
+                }
+                int state = 0;
+                for (int i = 0; i < line.length(); i++) {
+                    char c = Character.toLowerCase(line.charAt(i));
+                    Integer next = trie.get(state).get(c);
+                    if (next == null) {
+                        next = trie.size();
+                        trie.add(new TreeMap<>());
+                        ends.add(false);
+                        trie.get(state).put(c, next);
+                        edges++;
+                    }
+                    state = next;
+                }
+                ends.set(state, true);
+                words++;
+            }
+
+            int size = trie.size();
+            int[] edgeStart = new int[size + 1];
+            char[] edgeKeys = new char[edges];
+            int[] edgeTargets = new int[edges];
+            boolean[] terminal = new boolean[size];
+            int edge = 0;
+            for (int state = 0; state < size; state++) {
+                edgeStart[state] = edge;
+                for (Map.Entry<Character, Integer> entry : trie.get(state).entrySet()) {
+                    edgeKeys[edge] = entry.getKey();
+                    edgeTargets[edge] = entry.getValue();
+                    edge++;
+                }
+                terminal[state] = ends.get(state);
+            }
+            edgeStart[size] = edge;
+
+            // Суффиксные ссылки обходом в ширину
+            int[] fail = new int[size];
+            Automaton automaton = new Automaton(edgeStart, edgeKeys, edgeTargets, fail, terminal, words);
+            ArrayDeque<Integer> queue = new ArrayDeque<>();
+            for (int i = edgeStart[0]; i < edgeStart[1]; i++) {
+                queue.add(edgeTargets[i]);
+            }
+            while (!queue.isEmpty()) {
+                int state = queue.poll();
+                for (int i = edgeStart[state]; i < edgeStart[state + 1]; i++) {
+                    char c = edgeKeys[i];
+                    int child = edgeTargets[i];
+                    int f = fail[state];
+                    int next;
+                    while ((next = automaton.transition(f, c)) < 0 && f != 0) {
+                        f = fail[f];
+                    }
+                    fail[child] = next >= 0 ? next : 0;
+                    terminal[child] |= terminal[fail[child]];
+                    queue.add(child);
+                }
+            }
+            return automaton;
+        }
+
+        // Поиск перехода по символу или -1
+        private int transition(int state, char c) {
+            int index = Arrays.binarySearch(edgeKeys, edgeStart[state], edgeStart[state + 1], c);
+            return index >= 0 ? edgeTargets[index] : -1;
+        }
+
+        boolean matches(String message) {
+            int state = 0;
+            for (int i = 0; i < message.length(); i++) {
+                state = step(state, message.charAt(i));
+                if (terminal[state]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // Поиск по тексту в UTF-8 (length байт с offset в buffer) без декодирования в строку: символы
+        // собираются из байтов по ходу поиска. Недопустимая последовательность дает символ U+FFFD, как при
+        // декодировании строки, поэтому результат тот же, что у matches(String) для той же строки
+        boolean matches(ByteBuffer utf8, int offset, int length) {
+            int state = 0;
+            int end = offset + length;
+            int i = offset;
+            while (i < end) {
+                int b = utf8.get(i++);
+                int codePoint = b;
+                if (b < 0) {
+                    int extra = (b & 0xE0) == 0xC0 ? 1 : (b & 0xF0) == 0xE0 ? 2 : (b & 0xF8) == 0xF0 ? 3 : 0;
+                    codePoint = b & (0x3F >> extra);
+                    int read = 0;
+                    while (read < extra && i < end && (utf8.get(i) & 0xC0) == 0x80) {
+                        codePoint = (codePoint << 6) | (utf8.get(i++) & 0x3F);
+                        read++;
+                    }
+                    int min = extra == 1 ? 0x80 : extra == 2 ? 0x800 : 0x10000;
+                    if (extra == 0 || read < extra || codePoint < min || codePoint > Character.MAX_CODE_POINT
+                            || (codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE)) {
+                        codePoint = 0xFFFD;
+                    }
+                }
+                if (codePoint >= Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+                    state = step(state, Character.highSurrogate(codePoint));
+                    if (terminal[state]) {
+                        return true;
+                    }
+                    state = step(state, Character.lowSurrogate(codePoint));
+                } else {
+                    state = step(state, (char) codePoint);
+                }
+                if (terminal[state]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // Переход автомата по очередному символу текста (без учета регистра) с откатом по ссылкам неудачи
+        private int step(int state, char c) {
+            c = Character.toLowerCase(c);
+            int next;
+            while ((next = transition(state, c)) < 0 && state != 0) {
+                state = fail[state];
+            }
+            return next >= 0 ? next : 0;
+        }
+
+        // Размер записи автомата в снимке в байтах
+        int snapshotBytes() {
+            return 4 + 4 + 4 + edgeStart.length * 4 + edgeKeys.length * 2 + edgeTargets.length * 4 + fail.length * 4 + terminal.length;
+        }
+
+        // Запись массивов автомата: [int слов][int состояний][int переходов][edgeStart][edgeKeys][edgeTargets][fail][terminal]
+        void write(ByteBuffer out) {
+            out.putInt(words).putInt(fail.length).putInt(edgeKeys.length);
+            out.asIntBuffer().put(edgeStart);
+            out.position(out.position() + edgeStart.length * 4);
+            out.asCharBuffer().put(edgeKeys);
+            out.position(out.position() + edgeKeys.length * 2);
+            out.asIntBuffer().put(edgeTargets);
+            out.position(out.position() + edgeTargets.length * 4);
+            out.asIntBuffer().put(fail);
+            out.position(out.position() + fail.length * 4);
+            for (boolean end : terminal) {
+                out.put(end ? (byte) 1 : 0);
+            }
+        }
+
+        static Automaton read(ByteBuffer in) {
+            int words = in.getInt();
+            int size = in.getInt();
+            int edges = in.getInt();
+            int[] edgeStart = new int[size + 1];
+            char[] edgeKeys = new char[edges];
+            int[] edgeTargets = new int[edges];
+            int[] fail = new int[size];
+            boolean[] terminal = new boolean[size];
+            in.asIntBuffer().get(edgeStart);
+            in.position(in.position() + edgeStart.length * 4);
+            in.asCharBuffer().get(edgeKeys);
+            in.position(in.position() + edgeKeys.length * 2);
+            in.asIntBuffer().get(edgeTargets);
+            in.position(in.position() + edgeTargets.length * 4);
+            in.asIntBuffer().get(fail);
+            in.position(in.position() + fail.length * 4);
+            for (int i = 0; i < size; i++) {
+                terminal[i] = in.get() != 0;
+            }
+            return new Automaton(edgeStart, edgeKeys, edgeTargets, fail, terminal, words);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package ru.yaga;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Кадр протокола чата. Вид сообщения задается кодом операции, а не префиксами в тексте.
+// userId и name описывают пользователя, к которому относится кадр: отправителя сообщения,
+// собеседника в приватной переписке или подключившегося/отключившегося пользователя.
+// room - комната общего сообщения или события участника комнаты (пусто - комната по умолчанию)
+final class Frame {
+    // Коды операций
+    static final byte HELLO = 1;          // Клиент -> сервер: рукопожатие, name - имя пользователя,
+                                          // timestamp - показать историю с этого момента (0 - последние сообщения).
+                                          // Сервер -> клиент (только в ответ на HELLO с FLAG_COMPRESSION): userId - свой идентификатор
+    static final byte CHAT = 2;           // Общее сообщение, body - текст
+    static final byte PRIVATE = 3;        // Приватное сообщение. От клиента userId - адресат
+    static final byte PRESENCE_JOIN = 4;  // Пользователь userId/name в сети
+    static final byte PRESENCE_LEAVE = 5; // Пользователь userId/name отключился
+    static final byte NOTICE = 6;         // Служебное сообщение сервера, body - текст
+    static final byte ROOM_JOIN = 7;      // Клиент -> сервер: войти в комнату room, timestamp - как в HELLO;
+                                          // сервер -> клиент: userId/name в комнате room
+    static final byte ROOM_LEAVE = 8;     // Клиент -> сервер: выйти из комнаты room; сервер -> клиент: userId/name вышел из room
+    static final byte ROOM_LIST = 9;      // Клиент -> сервер: запрос списка комнат; ответ: body - имена комнат через перевод строки
+    static final byte ERROR = 10;         // Сервер -> клиент: ошибка, после которой сервер закрывает соединение, body - текст
+    static final byte HISTORY = 11;       // Клиент -> сервер: страница истории комнаты room до момента timestamp или
+                                          // до курсора body из предыдущего ответа. Ответ: сообщения CHAT с FLAG_HISTORY,
+                                          // затем HISTORY с курсором следующей страницы в body (пусто - история закончилась)
+    static final byte SEARCH = 12;        // Клиент -> сервер: поиск в истории комнаты room, body - запрос (см. SearchIndex.Query).
+                                          // Ответ: найденные сообщения CHAT с FLAG_SEARCH от старых к новым,
+                                          // затем SEARCH с числом найденных в body
+    static final byte SHUTDOWN = 13;      // Сервер -> клиент: сервер останавливается, body - текст. После отправки очереди
+                                          // соединение закрывается; клиент переподключается и досылает неотправленное
+    static final byte PRESENCE_LIST = 14; // Сервер -> клиент при подключении: пользователи в сети, body - строки "userId<TAB>name".
+                                          // Длинный список приходит несколькими кадрами; пользователь с переводом строки
+                                          // в имени приходит отдельным кадром PRESENCE_JOIN
+
+    // Флаги
+    static final byte FLAG_OUTGOING = 1;  // Копия приватного сообщения отправителю: userId/name - адресат
+    static final byte FLAG_COMPRESSION = 2; // В HELLO: клиент поддерживает сжатие; в ответном HELLO сервера: сжатие включено
+    static final byte FLAG_COMPRESSED = 4;  // Тело кадра сжато (см. FrameCompression)
+    static final byte FLAG_HISTORY = 8;     // Сообщение из страницы истории, запрошенной кадром HISTORY
+    static final byte FLAG_SEARCH = 16;     // Сообщение, найденное по запросу SEARCH
+
+    final byte opcode;
+    final byte flags;
+    final int userId;
+    final long timestamp; // Время в миллисекундах от эпохи
+    final String name;
+    final String room;
+    final String body;
+
+    Frame(byte opcode, byte flags, int userId, long timestamp, String name, String room, String body) {
+        this.opcode = opcode;
+        this.flags = flags;
+        this.userId = userId;
+        this.timestamp = timestamp;
+        this.name = name;
+        this.room = room;
+        this.body = body;
+    }
+
+    boolean hasFlag(byte flag) {
+        return (flags & flag) != 0;
+    }
+
+    // Пользователи из тела кадра PRESENCE_LIST: имя -> userId в порядке списка
+    Map<String, Integer> listedUsers() {
+        Map<String, Integer> users = new LinkedHashMap<>();
+        int start = 0;
+        while (start < body.length()) {
+            int end = body.indexOf('\n', start);
+            if (end < 0) {
+                end = body.length();
+            }
+            int tab = body.indexOf('\t', start);
+            if (tab > start && tab < end) {
+                users.put(body.substring(tab + 1, end), Integer.parseInt(body, start, tab, 10));
+            }
+            start = end + 1;
+        }
+        return users;
+    }
+}
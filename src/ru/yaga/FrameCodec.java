@@ -0,0 +1,220 @@
+package ru.yaga;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Кодирование кадров протокола, общее для ChatClient и сервера. Формат (big-endian):
+// [int длина остатка][byte код][byte флаги][int userId][long время]
+// [short длина имени][имя UTF-8][short длина комнаты][комната UTF-8][тело UTF-8]
+// Длина тела определяется длиной кадра, поэтому ограничения writeUTF в 64 КБ больше нет
+final class FrameCodec {
+    static final int LENGTH_BYTES = 4; // Префикс длины кадра
+    static final int HEADER_BYTES = 1 + 1 + 4 + 8 + 2 + 2; // Заголовок после префикса длины, включая длины строк
+    static final int MAX_NAME_BYTES = 0xFFFF;
+    private static final int NAME_LENGTH_OFFSET = 1 + 1 + 4 + 8; // Длина имени в кадре без префикса длины
+
+    private FrameCodec() {
+    }
+
+    static byte[] encode(Frame frame) {
+        return encode(frame.opcode, frame.flags, frame.userId, frame.timestamp, frame.name, frame.room, frame.body);
+    }
+
+    // Кодирование кадра целиком, включая префикс длины
+    static byte[] encode(byte opcode, byte flags, int userId, long timestamp, String name, String room, String body) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        byte[] roomBytes = room.getBytes(StandardCharsets.UTF_8);
+        byte[] bodyBytes = body.getBytes(StandardCharsets.UTF_8);
+        if (nameBytes.length > MAX_NAME_BYTES || roomBytes.length > MAX_NAME_BYTES) {
+            throw new IllegalArgumentException("Слишком длинное имя: " + Math.max(nameBytes.length, roomBytes.length) + " байт");
+        }
+        int length = HEADER_BYTES + nameBytes.length + roomBytes.length + bodyBytes.length;
+        ByteBuffer buffer = ByteBuffer.allocate(LENGTH_BYTES + length);
+        buffer.putInt(length)
+                .put(opcode)
+                .put(flags)
+                .putInt(userId)
+                .putLong(timestamp)
+                .putShort((short) nameBytes.length)
+                .put(nameBytes)
+                .putShort((short) roomBytes.length)
+                .put(roomBytes)
+                .put(bodyBytes);
+        return buffer.array();
+    }
+
+    // Длина кадра без префикса длины, как при кодировании, но без выделения памяти
+    static int encodedLength(Frame frame) {
+        return HEADER_BYTES + utf8Length(frame.name) + utf8Length(frame.room) + utf8Length(frame.body);
+    }
+
+    // Длина строки в UTF-8, как у getBytes: одиночный суррогат кодируется знаком '?'
+    private static int utf8Length(String value) {
+        int bytes = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                bytes++;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                bytes++;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+
+    // Запись строки в UTF-8 с позиции position, как getBytes, но без выделения памяти. Возвращает позицию после строки
+    private static int putUtf8(String value, byte[] array, int position) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                array[position++] = (byte) c;
+            } else if (c < 0x800) {
+                array[position++] = (byte) (0xC0 | (c >> 6));
+                array[position++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                array[position++] = (byte) (0xF0 | (codePoint >> 18));
+                array[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                array[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                array[position++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                array[position++] = '?';
+            } else {
+                array[position++] = (byte) (0xE0 | (c >> 12));
+                array[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                array[position++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return position;
+    }
+
+    // Общее сообщение в разделяемый кадр (см. SharedFrame) для рассылки всем получателям. Тело копируется
+    // из кадра клиента в buffer (bodyLength байт с bodyOffset) без декодирования и повторного кодирования,
+    // отправитель, время и комната (room в UTF-8) задаются сервером
+    static SharedFrame encodeChat(int userId, long timestamp, String name, byte[] room, ByteBuffer buffer, int bodyOffset, int bodyLength) {
+        int nameLength = utf8Length(name);
+        int length = HEADER_BYTES + nameLength + room.length + bodyLength;
+        SharedFrame frame = SharedFrame.allocate(LENGTH_BYTES + length);
+        ByteBuffer out = ByteBuffer.wrap(frame.bytes);
+        out.putInt(length)
+                .put(Frame.CHAT)
+                .put((byte) 0)
+                .putInt(userId)
+                .putLong(timestamp)
+                .putShort((short) nameLength);
+        int position = putUtf8(name, frame.bytes, out.position());
+        out.position(position);
+        out.putShort((short) room.length).put(room);
+        copy(buffer, bodyOffset, frame.bytes, out.position(), bodyLength);
+        return frame;
+    }
+
+    // Копирование length байт буфера с offset в массив, не меняя позицию буфера (в Java 11 нет
+    // абсолютного чтения в массив). Для прямого буфера это одно копирование памяти
+    private static void copy(ByteBuffer buffer, int offset, byte[] target, int targetOffset, int length) {
+        int position = buffer.position();
+        int limit = buffer.limit();
+        buffer.limit(offset + length).position(offset);
+        buffer.get(target, targetOffset, length);
+        buffer.limit(limit).position(position);
+    }
+
+    // Смещение длины имени комнаты в кадре клиента (length байт без префикса длины с offset в buffer).
+    // Проверяет, что имя отправителя и комнаты не выходят за границы кадра
+    static int roomLengthOffset(ByteBuffer buffer, int offset, int length) throws IOException {
+        int end = offset + length;
+        int roomLengthOffset = offset + NAME_LENGTH_OFFSET + 2 + (buffer.getShort(offset + NAME_LENGTH_OFFSET) & 0xFFFF);
+        if (roomLengthOffset + 2 > end) {
+            throw new IOException("Кадр обрывается перед именем комнаты");
+        }
+        int roomLength = buffer.getShort(roomLengthOffset) & 0xFFFF;
+        if (roomLengthOffset + 2 + roomLength > end) {
+            throw new IOException("Длина строки выходит за границы кадра: " + roomLength);
+        }
+        return roomLengthOffset;
+    }
+
+    // Декодирование кадра без префикса длины из буфера (в том числе прямого), не меняя его позицию
+    static Frame decode(ByteBuffer buffer, int offset, int length) throws IOException {
+        return decode(buffer, offset, length, FrameCompression.MAX_INFLATED_BYTES);
+    }
+
+    // То же с ограничением длины распакованного тела сжатого кадра (0 - сжатые кадры не принимаются)
+    static Frame decode(ByteBuffer buffer, int offset, int length, int maxInflatedBytes) throws IOException {
+        if (buffer.hasArray()) {
+            return decode(buffer.array(), buffer.arrayOffset() + offset, length, maxInflatedBytes);
+        }
+        byte[] bytes = new byte[length];
+        copy(buffer, offset, bytes, 0, length);
+        return decode(bytes, 0, length, maxInflatedBytes);
+    }
+
+    // Декодирование кадра без префикса длины: length байт начиная с offset
+    static Frame decode(byte[] array, int offset, int length) throws IOException {
+        return decode(array, offset, length, FrameCompression.MAX_INFLATED_BYTES);
+    }
+
+    // Сервер передает ограничение MAX_FRAME_BYTES для клиентов со сжатием и 0 для остальных
+    // (и для HELLO, до согласования сжатия)
+    static Frame decode(byte[] array, int offset, int length, int maxInflatedBytes) throws IOException {
+        if (length < HEADER_BYTES) {
+            throw new IOException("Слишком короткий кадр: " + length + " байт");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(array, offset, length);
+        byte opcode = buffer.get();
+        byte flags = buffer.get();
+        int userId = buffer.getInt();
+        long timestamp = buffer.getLong();
+        String name = readString(buffer);
+        if (buffer.remaining() < 2) {
+            throw new IOException("Кадр обрывается перед именем комнаты");
+        }
+        String room = readString(buffer);
+        if ((flags & Frame.FLAG_COMPRESSED) != 0) {
+            if (maxInflatedBytes <= 0) {
+                throw new IOException("Сжатый кадр без согласованного сжатия");
+            }
+            // Кадр с распакованным телом: флаг снимается, чтобы повторное кодирование не пометило несжатое тело
+            String body = FrameCompression.inflateBody(array, buffer.position(), buffer.remaining(), maxInflatedBytes);
+            return new Frame(opcode, (byte) (flags & ~Frame.FLAG_COMPRESSED), userId, timestamp, name, room, body);
+        }
+        String body = new String(array, buffer.position(), buffer.remaining(), StandardCharsets.UTF_8);
+        return new Frame(opcode, flags, userId, timestamp, name, room, body);
+    }
+
+    // Строка с префиксом длины (short) из буфера кадра
+    private static String readString(ByteBuffer buffer) throws IOException {
+        int length = buffer.getShort() & 0xFFFF;
+        if (length > buffer.remaining()) {
+            throw new IOException("Длина строки выходит за границы кадра: " + length);
+        }
+        String value = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    // Чтение одного кадра из потока. Кадры длиннее maxLength считаются ошибкой протокола
+    static Frame read(DataInputStream in, int maxLength) throws IOException {
+        return read(in, maxLength, FrameCompression.MAX_INFLATED_BYTES);
+    }
+
+    // То же с ограничением длины распакованного тела, как в decode
+    static Frame read(DataInputStream in, int maxLength, int maxInflatedBytes) throws IOException {
+        int length = in.readInt();
+        if (length < HEADER_BYTES || length > maxLength) {
+            throw new IOException("Недопустимая длина кадра: " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return decode(bytes, 0, length, maxInflatedBytes);
+    }
+}
@@ -0,0 +1,316 @@
+package ru.yaga;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.Random;
+
+// Проверка кодирования кадров случайными данными. Для каждого случайного кадра (код, флаги, userId, время,
+// имя, комната и тело со смесью символов из 1-4 байт UTF-8, одиночными суррогатами, пустыми строками и строками
+// наибольшей длины) проверяется, что декодирование возвращает исходный кадр: из массива, из прямого буфера,
+// из потока, после encodeChat (putUtf8 и utf8Length) и после сжатия FrameCompression. Затем кадр обрезается
+// и портится: декодирование должно либо вернуть кадр, либо бросить IOException, но не другое исключение.
+// Запуск: java ru.yaga.FrameCodecFuzzTest [кадров] [seed]. Код выхода 1, если найдены ошибки
+public class FrameCodecFuzzTest {
+    private static final int MAX_REPORTED = 20;
+    private static final int CORRUPTIONS_PER_FRAME = 8;
+    // Символы на границах длин UTF-8 и типичные символы чата
+    private static final char[] BOUNDARY_CHARS = {0, 'a', 0x7F, 0x80, 'я', 0x7FF, 0x800, '中', 0xFFFD, 0xFFFF};
+
+    private static Random random;
+    private static int failures;
+
+    public static void main(String[] args) {
+        int frames = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : System.nanoTime();
+        random = new Random(seed);
+        System.out.println("Кадров: " + frames + ", seed: " + seed);
+
+        checkNameLimit();
+        for (int i = 0; i < frames; i++) {
+            Frame frame = randomFrame();
+            byte[] encoded = roundTrip(frame, i);
+            if (encoded != null) {
+                roundTripChat(frame, i);
+                roundTripCompressed(encoded, frame, i);
+                corrupt(encoded, i);
+            }
+        }
+
+        System.out.println(failures == 0 ? "Ошибок нет" : "Ошибок: " + failures);
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    // Имя и комната наибольшей длины кодируются, на байт длиннее - отклоняются
+    private static void checkNameLimit() {
+        String longest = repeat('a', FrameCodec.MAX_NAME_BYTES);
+        roundTrip(new Frame(Frame.CHAT, (byte) 0, 1, 2, longest, longest, ""), -1);
+        try {
+            FrameCodec.encode(Frame.CHAT, (byte) 0, 1, 2, longest + "a", "", "");
+            fail(-1, "имя длиннее " + FrameCodec.MAX_NAME_BYTES + " байт закодировано");
+        } catch (IllegalArgumentException e) {
+            // Ожидаемо
+        }
+    }
+
+    // Кодирование и декодирование всеми способами; возвращает закодированный кадр или null при ошибке
+    private static byte[] roundTrip(Frame frame, int iteration) {
+        Frame expected = normalized(frame);
+        try {
+            byte[] encoded = FrameCodec.encode(frame);
+            int length = encoded.length - FrameCodec.LENGTH_BYTES;
+            if (ByteBuffer.wrap(encoded).getInt() != length || FrameCodec.encodedLength(frame) != length) {
+                fail(iteration, "длина кадра " + length + ", в префиксе " + ByteBuffer.wrap(encoded).getInt()
+                        + ", encodedLength " + FrameCodec.encodedLength(frame));
+            }
+            check(iteration, "decode(byte[])", expected, FrameCodec.decode(encoded, FrameCodec.LENGTH_BYTES, length));
+
+            // Кадр в середине прямого буфера, как в буфере чтения соединения NIO
+            ByteBuffer direct = ByteBuffer.allocateDirect(encoded.length + 16);
+            direct.position(7);
+            direct.put(encoded);
+            check(iteration, "decode(ByteBuffer)", expected, FrameCodec.decode(direct, 7 + FrameCodec.LENGTH_BYTES, length));
+            if (length >= FrameCodec.HEADER_BYTES) {
+                int roomLengthOffset = FrameCodec.roomLengthOffset(direct, 7 + FrameCodec.LENGTH_BYTES, length);
+                String room = utf8(direct, roomLengthOffset + 2, direct.getShort(roomLengthOffset) & 0xFFFF);
+                if (!room.equals(expected.room)) {
+                    fail(iteration, "roomLengthOffset: комната \"" + room + "\" вместо \"" + expected.room + "\"");
+                }
+            }
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(encoded));
+            check(iteration, "read", expected, FrameCodec.read(in, Integer.MAX_VALUE));
+            return encoded;
+        } catch (IOException | RuntimeException e) {
+            fail(iteration, "кадр не декодирован: " + e);
+            return null;
+        }
+    }
+
+    // Общее сообщение, собранное сервером из тела кадра клиента, совпадает с кадром, закодированным encode
+    private static void roundTripChat(Frame frame, int iteration) {
+        byte[] room = frame.room.getBytes(StandardCharsets.UTF_8);
+        byte[] body = frame.body.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(body.length + 3);
+        buffer.position(3);
+        buffer.put(body);
+        SharedFrame shared = FrameCodec.encodeChat(frame.userId, frame.timestamp, frame.name, room, buffer, 3, body.length);
+        try {
+            byte[] expected = FrameCodec.encode(Frame.CHAT, (byte) 0, frame.userId, frame.timestamp, frame.name, frame.room, frame.body);
+            if (shared.length != expected.length || !Arrays.equals(Arrays.copyOf(shared.bytes, shared.length), expected)) {
+                fail(iteration, "encodeChat отличается от encode для имени " + describe(frame.name));
+            }
+        } finally {
+            shared.release();
+        }
+    }
+
+    // Сжатый кадр (если сжатие уменьшает его) декодируется в исходный без флага сжатия
+    private static void roundTripCompressed(byte[] encoded, Frame frame, int iteration) {
+        byte[] compressed = FrameCompression.compress(encoded, 0, 1 + random.nextInt(9));
+        if (compressed == encoded) {
+            return;
+        }
+        try {
+            Frame decoded = FrameCodec.decode(compressed, FrameCodec.LENGTH_BYTES, compressed.length - FrameCodec.LENGTH_BYTES);
+            check(iteration, "сжатый кадр", normalized(frame), decoded);
+            corrupt(compressed, iteration);
+        } catch (IOException | RuntimeException e) {
+            fail(iteration, "сжатый кадр не декодирован: " + e);
+        }
+    }
+
+    // Обрезанный и испорченный кадр: только IOException или успешное декодирование
+    private static void corrupt(byte[] encoded, int iteration) {
+        for (int i = 0; i < CORRUPTIONS_PER_FRAME; i++) {
+            byte[] damaged = encoded.clone();
+            int length = damaged.length - FrameCodec.LENGTH_BYTES;
+            if (random.nextBoolean()) {
+                length = random.nextInt(length + 1);
+            }
+            int flips = 1 + random.nextInt(4);
+            for (int f = 0; f < flips; f++) {
+                int position = FrameCodec.LENGTH_BYTES + random.nextInt(damaged.length - FrameCodec.LENGTH_BYTES);
+                damaged[position] = (byte) random.nextInt(256);
+            }
+            ByteBuffer.wrap(damaged).putInt(0, length);
+            decodeDamaged(damaged, length, iteration);
+        }
+    }
+
+    private static void decodeDamaged(byte[] damaged, int length, int iteration) {
+        try {
+            FrameCodec.decode(damaged, FrameCodec.LENGTH_BYTES, length);
+        } catch (IOException e) {
+            // Ожидаемо
+        } catch (RuntimeException e) {
+            fail(iteration, "decode испорченного кадра: " + e);
+        }
+        try {
+            FrameCodec.read(new DataInputStream(new ByteArrayInputStream(damaged)), Integer.MAX_VALUE);
+        } catch (IOException e) {
+            // Ожидаемо
+        } catch (RuntimeException e) {
+            fail(iteration, "read испорченного кадра: " + e);
+        }
+        // Сервер проверяет длину кадра не меньше HEADER_BYTES до разбора (ChatHandler, NioConnection)
+        if (length >= FrameCodec.HEADER_BYTES) {
+            try {
+                FrameCodec.roomLengthOffset(ByteBuffer.wrap(damaged), FrameCodec.LENGTH_BYTES, length);
+            } catch (IOException e) {
+                // Ожидаемо
+            } catch (RuntimeException e) {
+                fail(iteration, "roomLengthOffset испорченного кадра: " + e);
+            }
+        }
+    }
+
+    private static Frame randomFrame() {
+        byte opcode = (byte) random.nextInt(256);
+        byte flags = (byte) (random.nextInt(256) & ~Frame.FLAG_COMPRESSED);
+        int userId = random.nextInt(4) == 0 ? pick(0, -1, Integer.MIN_VALUE, Integer.MAX_VALUE) : random.nextInt();
+        long timestamp = random.nextInt(4) == 0 ? pick(0L, -1L, Long.MIN_VALUE, Long.MAX_VALUE) : random.nextLong();
+        return new Frame(opcode, flags, userId, timestamp, randomName(), randomName(), randomBody());
+    }
+
+    // Имя или комната: пустая, обычная или близкая к наибольшей длине в байтах
+    private static String randomName() {
+        switch (random.nextInt(8)) {
+            case 0:
+                return "";
+            case 1:
+                return limitBytes(randomString(FrameCodec.MAX_NAME_BYTES), FrameCodec.MAX_NAME_BYTES);
+            default:
+                return randomString(random.nextInt(24));
+        }
+    }
+
+    // Тело: пустое, короткое, длинное или сжимаемое (повторяющиеся слова)
+    private static String randomBody() {
+        switch (random.nextInt(6)) {
+            case 0:
+                return "";
+            case 1:
+                return randomString(2000 + random.nextInt(70000));
+            case 2:
+                StringBuilder text = new StringBuilder();
+                int words = 20 + random.nextInt(400);
+                for (int i = 0; i < words; i++) {
+                    text.append(pick("привет", "сообщение", "hello", "😀", "комната", ":)")).append(' ');
+                }
+                return text.toString();
+            default:
+                return randomString(random.nextInt(300));
+        }
+    }
+
+    // Строка из символов всех длин UTF-8, пар суррогатов и изредка одиночных суррогатов
+    private static String randomString(int chars) {
+        StringBuilder value = new StringBuilder(chars);
+        while (value.length() < chars) {
+            int kind = random.nextInt(20);
+            if (kind < 6) {
+                value.append((char) (0x20 + random.nextInt(0x5F)));
+            } else if (kind < 9) {
+                value.append((char) (0x80 + random.nextInt(0x780)));
+            } else if (kind < 12) {
+                value.append(randomBmpChar());
+            } else if (kind < 15) {
+                value.appendCodePoint(0x10000 + random.nextInt(0x100000));
+            } else if (kind < 17) {
+                value.append(BOUNDARY_CHARS[random.nextInt(BOUNDARY_CHARS.length)]);
+            } else if (kind == 17) {
+                value.append((char) (Character.MIN_HIGH_SURROGATE + random.nextInt(0x400)));
+            } else if (kind == 18) {
+                value.append((char) (Character.MIN_LOW_SURROGATE + random.nextInt(0x400)));
+            } else {
+                value.append("😀"); // Пара суррогатов в конце строки и после одиночного суррогата
+            }
+        }
+        return value.toString();
+    }
+
+    private static char randomBmpChar() {
+        char c;
+        do {
+            c = (char) (0x800 + random.nextInt(0x10000 - 0x800));
+        } while (Character.isSurrogate(c));
+        return c;
+    }
+
+    // Начало строки, которое в UTF-8 занимает не больше maxBytes (пара суррогатов не разрывается)
+    private static String limitBytes(String value, int maxBytes) {
+        int bytes = 0;
+        int end = 0;
+        while (end < value.length()) {
+            int codePoint = value.codePointAt(end);
+            int chars = Character.charCount(codePoint);
+            int size = chars == 2 ? 4 : codePoint < 0x80 ? 1 : codePoint < 0x800 ? 2 : Character.isSurrogate((char) codePoint) ? 1 : 3;
+            if (bytes + size > maxBytes) {
+                break;
+            }
+            bytes += size;
+            end += chars;
+        }
+        return value.substring(0, end);
+    }
+
+    // Кадр, который должен получиться при декодировании: строки после UTF-8 (одиночный суррогат становится '?')
+    private static Frame normalized(Frame frame) {
+        return new Frame(frame.opcode, frame.flags, frame.userId, frame.timestamp,
+                utf8(frame.name), utf8(frame.room), utf8(frame.body));
+    }
+
+    private static String utf8(String value) {
+        return new String(value.getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8);
+    }
+
+    private static String utf8(ByteBuffer buffer, int offset, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(offset + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void check(int iteration, String method, Frame expected, Frame actual) {
+        if (expected.opcode != actual.opcode || expected.flags != actual.flags || expected.userId != actual.userId
+                || expected.timestamp != actual.timestamp || !Objects.equals(expected.name, actual.name)
+                || !Objects.equals(expected.room, actual.room) || !Objects.equals(expected.body, actual.body)) {
+            fail(iteration, method + ": кадр " + describe(actual) + " вместо " + describe(expected));
+        }
+    }
+
+    private static void fail(int iteration, String message) {
+        failures++;
+        if (failures <= MAX_REPORTED) {
+            System.out.println("Кадр " + iteration + ": " + message);
+        }
+    }
+
+    private static String describe(Frame frame) {
+        return "[код " + frame.opcode + ", флаги " + frame.flags + ", userId " + frame.userId + ", время " + frame.timestamp
+                + ", имя " + describe(frame.name) + ", комната " + describe(frame.room) + ", тело " + describe(frame.body) + "]";
+    }
+
+    private static String describe(String value) {
+        return value.length() <= 40 ? "\"" + value + "\"" : value.length() + " знаков";
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    @SafeVarargs
+    private static <T> T pick(T... values) {
+        return values[random.nextInt(values.length)];
+    }
+}
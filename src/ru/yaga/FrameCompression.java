@@ -0,0 +1,162 @@
+package ru.yaga;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Сжатие тела кадра (DEFLATE без заголовка zlib, с общим словарем). Сжимается только тело и только
+// в кадрах не короче порога, флаг Frame.FLAG_COMPRESSED в заголовке отмечает сжатое тело:
+// [int длина исходного тела][данные DEFLATE]. Словарь - типичные слова и служебные строки чата,
+// одинаковые у клиента и сервера, поэтому даже сообщения в несколько сотен байт сжимаются заметно.
+// Deflater и Inflater хранят память вне кучи, поэтому они не создаются на каждое сообщение,
+// а берутся из пула вместе с буфером сжатия и возвращаются в него после reset
+final class FrameCompression {
+    private static final int FLAGS_OFFSET = FrameCodec.LENGTH_BYTES + 1;
+    private static final int NAME_LENGTH_OFFSET = FrameCodec.LENGTH_BYTES + 1 + 1 + 4 + 8;
+    static final int MAX_INFLATED_BYTES = 16 * 1024 * 1024; // Защита от кадров от сервера, распаковывающихся в гигабайты
+    private static final int MAX_POOLED = 64; // Сверх этого числа освободившиеся кодеки закрываются
+    private static final int MAX_POOLED_BUFFER = 256 * 1024; // Больший буфер после редкого длинного кадра не хранится
+
+    static final byte[] DICTIONARY = (
+            "ЛС для комнаты комната general пользователь пользователи сообщение сообщения сервер подключился отключился "
+            + "привет Привет всем спасибо Спасибо пожалуйста хорошо сегодня завтра вчера сейчас только когда почему "
+            + "потому что который которые это было будет может можно нужно очень тоже уже еще если или как так "
+            + "вот там тут где кто что чем для при про над под без через после перед между "
+            + "https:// http:// www. .ru .com ok OK :) :( ? ! , . ... — - "
+            + "Да да Нет нет и в не на я с он а то все она так его но ты к у же вы за бы по ее мне "
+            + "\n").getBytes(StandardCharsets.UTF_8);
+
+    private static final BlockingQueue<Compressor> compressors = new ArrayBlockingQueue<>(MAX_POOLED);
+    private static final BlockingQueue<Inflater> inflaters = new ArrayBlockingQueue<>(MAX_POOLED);
+
+    private FrameCompression() {
+    }
+
+    // Сжатый вариант закодированного кадра (с префиксом длины) или сам кадр, если он короче
+    // threshold байт, уже сжат или сжатие не уменьшает его
+    static byte[] compress(byte[] frame, int threshold, int level) {
+        if (frame.length < threshold || (frame[FLAGS_OFFSET] & Frame.FLAG_COMPRESSED) != 0) {
+            return frame;
+        }
+        int bodyOffset = bodyOffset(frame);
+        int bodyLength = frame.length - bodyOffset;
+        Compressor compressor = borrowCompressor(level, bodyLength);
+        try {
+            Deflater deflater = compressor.deflater;
+            deflater.setInput(frame, bodyOffset, bodyLength);
+            deflater.finish();
+            // Буфер размером с исходное тело: если сжатое тело в него не помещается, сжатие бесполезно
+            int compressed = 0;
+            while (!deflater.finished() && compressed < bodyLength) {
+                // Первый вызов после смены уровня может только применить параметры и ничего не вернуть
+                compressed += deflater.deflate(compressor.buffer, compressed, bodyLength - compressed);
+            }
+            if (!deflater.finished() || 4 + compressed >= bodyLength) {
+                return frame;
+            }
+            byte[] result = Arrays.copyOf(frame, bodyOffset + 4 + compressed);
+            ByteBuffer header = ByteBuffer.wrap(result);
+            header.putInt(0, result.length - FrameCodec.LENGTH_BYTES);
+            header.putInt(bodyOffset, bodyLength);
+            result[FLAGS_OFFSET] |= Frame.FLAG_COMPRESSED;
+            System.arraycopy(compressor.buffer, 0, result, bodyOffset + 4, compressed);
+            return result;
+        } finally {
+            release(compressor);
+        }
+    }
+
+    // Распаковка сжатого тела кадра: length байт начиная с offset. Длина распакованного тела задана отправителем,
+    // и память под него выделяется до распаковки, поэтому она не может превышать maxInflatedBytes
+    static String inflateBody(byte[] array, int offset, int length, int maxInflatedBytes) throws IOException {
+        if (length < 4) {
+            throw new IOException("Сжатое тело короче заголовка: " + length + " байт");
+        }
+        int rawLength = ByteBuffer.wrap(array, offset, 4).getInt();
+        if (rawLength < 0 || rawLength > maxInflatedBytes) {
+            throw new IOException("Недопустимая длина распакованного тела: " + rawLength);
+        }
+        byte[] raw = new byte[rawLength];
+        Inflater inflater = borrowInflater();
+        try {
+            inflater.setInput(array, offset + 4, length - 4);
+            int filled = 0;
+            while (filled < rawLength) {
+                int n = inflater.inflate(raw, filled, rawLength - filled);
+                if (n == 0) {
+                    break;
+                }
+                filled += n;
+            }
+            if (filled != rawLength || !inflater.finished()) {
+                throw new IOException("Сжатое тело повреждено");
+            }
+            return new String(raw, StandardCharsets.UTF_8);
+        } catch (DataFormatException e) {
+            throw new IOException("Сжатое тело повреждено: " + e.getMessage());
+        } finally {
+            release(inflater);
+        }
+    }
+
+    // Начало тела в закодированном кадре: после заголовка, имени и комнаты
+    private static int bodyOffset(byte[] frame) {
+        int nameLength = ((frame[NAME_LENGTH_OFFSET] & 0xFF) << 8) | (frame[NAME_LENGTH_OFFSET + 1] & 0xFF);
+        int roomLengthOffset = NAME_LENGTH_OFFSET + 2 + nameLength;
+        int roomLength = ((frame[roomLengthOffset] & 0xFF) << 8) | (frame[roomLengthOffset + 1] & 0xFF);
+        return roomLengthOffset + 2 + roomLength;
+    }
+
+    // Сжатие без заголовка zlib: словарь задается явно после каждого reset, у клиента и сервера он один
+    private static Compressor borrowCompressor(int level, int bodyLength) {
+        Compressor compressor = compressors.poll();
+        if (compressor == null) {
+            compressor = new Compressor();
+        }
+        compressor.deflater.setLevel(level);
+        compressor.deflater.setDictionary(DICTIONARY);
+        if (compressor.buffer.length < bodyLength) {
+            compressor.buffer = new byte[Math.max(bodyLength, compressor.buffer.length * 2)];
+        }
+        return compressor;
+    }
+
+    private static Inflater borrowInflater() {
+        Inflater inflater = inflaters.poll();
+        if (inflater == null) {
+            inflater = new Inflater(true);
+        }
+        inflater.setDictionary(DICTIONARY);
+        return inflater;
+    }
+
+    // Возврат в пул; если пул заполнен, память вне кучи освобождается сразу
+    private static void release(Compressor compressor) {
+        compressor.deflater.reset();
+        if (compressor.buffer.length > MAX_POOLED_BUFFER) {
+            compressor.buffer = new byte[MAX_POOLED_BUFFER];
+        }
+        if (!compressors.offer(compressor)) {
+            compressor.deflater.end();
+        }
+    }
+
+    private static void release(Inflater inflater) {
+        inflater.reset();
+        if (!inflaters.offer(inflater)) {
+            inflater.end();
+        }
+    }
+
+    // Deflater с буфером для сжатого тела
+    private static final class Compressor {
+        final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        byte[] buffer = new byte[4096];
+    }
+}
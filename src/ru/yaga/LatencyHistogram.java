@@ -0,0 +1,81 @@
+package ru.yaga;
+
+// Гистограмма задержек с логарифмически-линейными интервалами (как в HdrHistogram):
+// каждая степень двойки делится на 64 равных интервала, поэтому относительная погрешность
+// не превышает 1/64 во всем диапазоне от наносекунд до часов. Не потокобезопасна:
+// каждый поток ведет свою гистограмму, а в конце они складываются методом add
+final class LatencyHistogram {
+    private static final int SUB_BITS = 7; // Значения меньше 2^7 хранятся точно
+    private static final int SUB_HALF = 1 << (SUB_BITS - 1);
+
+    private final long[] counts = new long[(64 - SUB_BITS + 2) * SUB_HALF];
+    private long total;
+    private long max;
+    private double sum;
+
+    void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts[indexOf(value)]++;
+        total++;
+        sum += value;
+        if (value > max) {
+            max = value;
+        }
+    }
+
+    void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        total += other.total;
+        sum += other.sum;
+        max = Math.max(max, other.max);
+    }
+
+    long count() {
+        return total;
+    }
+
+    long max() {
+        return max;
+    }
+
+    double mean() {
+        return total == 0 ? 0 : sum / total;
+    }
+
+    // Значение, не меньше которого percent процентов записей (верхняя граница интервала)
+    long percentile(double percent) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * percent / 100.0));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max);
+            }
+        }
+        return max;
+    }
+
+    private static int indexOf(long value) {
+        if (value < (1 << SUB_BITS)) {
+            return (int) value;
+        }
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return (shift + 1) * SUB_HALF + (int) (value >>> shift) - SUB_HALF;
+    }
+
+    private static long upperBound(int index) {
+        if (index < (1 << SUB_BITS)) {
+            return index;
+        }
+        int shift = index / SUB_HALF - 1;
+        long sub = index % SUB_HALF + SUB_HALF;
+        return ((sub + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,328 @@
+package ru.yaga;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+// Журнал сообщений с групповой записью. Потоки обработчиков только добавляют сообщение в очередь,
+// а единственный поток записи собирает их в пакеты и пишет в FileChannel: пакет записывается,
+// когда набралось N сообщений или прошло M мс с первого незаписанного. Порядок записей совпадает
+// с порядком добавления в очередь. При превышении размера файл переименовывается и начинается новый.
+// Общее сообщение передается в журнал тем же разделяемым кадром, что и получателям: строки для журнала
+// и поискового индекса декодирует поток записи, а не поток рассылки. Кадры общих сообщений тот же поток
+// дописывает в историю (MessageStore) для показа при подключении и в поисковый индекс (SearchIndex).
+// При остановке сервера close дописывает очередь, а затем сбрасывает журнал и историю на диск
+// независимо от политики. Добавление не блокирует отправителя (в том числе цикл событий NIO):
+// если очередь заполнена или поток записи остановлен, сообщение отбрасывается (ChatMetrics.journalDropped)
+class MessageJournal {
+    // Политика принудительного сброса на диск
+    enum FsyncPolicy {
+        NONE,  // Сброс на диск выполняет операционная система
+        BATCH  // FileChannel.force после каждого записанного пакета
+    }
+
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+    private static final Entry STOP = new Entry(0, null, null, null, null); // Последняя запись очереди при остановке
+
+    private final Path file;
+    private final int batchSize;
+    private final long flushIntervalNanos;
+    private final FsyncPolicy fsyncPolicy;
+    private final long maxFileBytes;
+    private final MessageStore history; // null, если история отключена
+    private final SearchIndex searchIndex; // null, если поиск отключен
+    private final BlockingQueue<Entry> queue;
+    private final List<Entry> batch;
+    private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024); // Буфер пакета, переиспользуется
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss"); // Только в потоке записи
+    private final StringBuilder line = new StringBuilder();
+    private FileChannel channel;
+    private final CountDownLatch stopped = new CountDownLatch(1); // Поток записи завершился
+    private volatile boolean closing; // Новые сообщения не принимаются, поток записи дописывает очередь
+    private volatile boolean flushed; // Очередь записана и сброшена на диск при остановке
+    private volatile boolean failed; // Поток записи остановлен ошибкой, очередь больше никто не читает
+
+    MessageJournal(Path file, MessageStore history, SearchIndex searchIndex, int batchSize, long flushIntervalMillis, FsyncPolicy fsyncPolicy,
+                   long maxFileBytes, int queueCapacity) {
+        this.file = file;
+        this.history = history;
+        this.searchIndex = searchIndex;
+        this.batchSize = batchSize;
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+        this.fsyncPolicy = fsyncPolicy;
+        this.maxFileBytes = maxFileBytes;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity); // Без узла очереди на каждое сообщение
+        this.batch = new ArrayList<>(batchSize);
+    }
+
+    // Журнал с настройками из ServerConfig и запущенным потоком записи
+    static MessageJournal start(Path file, MessageStore history, SearchIndex searchIndex) {
+        MessageJournal journal = new MessageJournal(file, history, searchIndex, ServerConfig.JOURNAL_BATCH_SIZE, ServerConfig.JOURNAL_FLUSH_MS,
+                ServerConfig.JOURNAL_FSYNC, ServerConfig.JOURNAL_MAX_BYTES, ServerConfig.JOURNAL_QUEUE_CAPACITY);
+        Thread writer = new Thread(journal::writeLoop, "message-journal");
+        writer.setDaemon(true);
+        writer.start();
+        return journal;
+    }
+
+    // Добавление общего сообщения: кадр CHAT записывается в журнал, историю и поисковый индекс.
+    // Журнал удерживает ссылку на кадр до записи. Строка журнала форматируется потоком записи
+    void append(SharedFrame roomMessage) {
+        if (closing) {
+            return;
+        }
+        if (failed) {
+            ChatMetrics.journalDropped.increment();
+            return;
+        }
+        put(new Entry(0, null, null, null, roomMessage.retain()));
+    }
+
+    // Добавление приватного сообщения от sender для recipient (в историю оно не попадает)
+    void append(long timestamp, String sender, String recipient, String text) {
+        if (closing) {
+            return;
+        }
+        if (failed) {
+            ChatMetrics.journalDropped.increment();
+            return;
+        }
+        put(new Entry(timestamp, sender, recipient, text, null));
+    }
+
+    // Постановка записи в очередь без ожидания: при заполненной очереди (диск не успевает за потоком
+    // сообщений) запись отбрасывается. Сообщение, пришедшее после остановки журнала, не сохраняется:
+    // если поток записи завершился, пока запись ставилась в очередь, записи очереди отбрасываются,
+    // потому что их уже никто не запишет
+    private void put(Entry entry) {
+        if (!queue.offer(entry)) {
+            ChatMetrics.journalDropped.increment();
+            discard(entry);
+            return;
+        }
+        if (stopped.getCount() == 0) {
+            discardQueue();
+        }
+    }
+
+    // Остановка журнала: записи очереди дописываются, журнал и история сбрасываются на диск.
+    // Возвращает false, если поток записи не успел за timeoutMillis или остановлен ошибкой записи
+    boolean close(long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        closing = true;
+        if (!queue.offer(STOP, timeoutMillis, TimeUnit.MILLISECONDS)) {
+            return false;
+        }
+        return stopped.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS) && flushed;
+    }
+
+    // Поток записи: ожидание первого сообщения, добор пакета до batchSize или до истечения интервала, запись
+    private void writeLoop() {
+        try {
+            openChannel();
+            while (true) {
+                batch.add(queue.take());
+                long deadline = System.nanoTime() + flushIntervalNanos;
+                while (batch.size() < batchSize && !closing) {
+                    if (queue.drainTo(batch, batchSize - batch.size()) > 0) {
+                        continue;
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0 || !pollInto(batch, remaining)) {
+                        break;
+                    }
+                }
+                boolean last = batch.remove(STOP);
+                if (!batch.isEmpty()) {
+                    writeBatch();
+                }
+                if (last) {
+                    finish();
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException | RuntimeException e) {
+            ServerLog.warn("journal_stopped", "file", file, "error", e);
+            failed = true;
+        } finally {
+            // Записи, добавленные после STOP или после ошибки, отбрасываются. Признак завершения
+            // выставляется раньше: запись, поставленная в очередь позже, отбрасывается в put
+            stopped.countDown();
+            discardQueue();
+        }
+    }
+
+    // Отбрасывание записей очереди после завершения потока записи: кадры возвращаются в пул
+    private void discardQueue() {
+        Entry entry;
+        while ((entry = queue.poll()) != null) {
+            if (entry != STOP) {
+                ChatMetrics.journalDropped.increment();
+                discard(entry);
+            }
+        }
+    }
+
+    private static void discard(Entry entry) {
+        if (entry.frame != null) {
+            entry.frame.release();
+        }
+    }
+
+    // Сброс журнала и истории на диск и закрытие файла при остановке
+    private void finish() throws IOException {
+        channel.force(false);
+        channel.close();
+        if (history != null) {
+            history.force();
+        }
+        flushed = true;
+    }
+
+    // Ожидание следующего сообщения не дольше remainingNanos
+    private boolean pollInto(List<Entry> target, long remainingNanos) throws InterruptedException {
+        Entry entry = queue.poll(remainingNanos, TimeUnit.NANOSECONDS);
+        if (entry == null) {
+            return false;
+        }
+        target.add(entry);
+        return true;
+    }
+
+    // Запись пакета одним вызовом write и сброс на диск по политике. Кадры пакета возвращаются в пул
+    // и при ошибке разбора
+    private void writeBatch() throws IOException {
+        buffer.clear();
+        try {
+            for (Entry entry : batch) {
+                if (entry.frame != null) {
+                    entry.decode();
+                }
+                byte[] bytes = format(entry).getBytes(StandardCharsets.UTF_8);
+                ensureCapacity(bytes.length + LINE_SEPARATOR.length);
+                buffer.put(bytes).put(LINE_SEPARATOR);
+            }
+            appendHistory();
+        } finally {
+            for (Entry entry : batch) {
+                discard(entry);
+            }
+            batch.clear();
+        }
+        buffer.flip();
+
+        long start = System.nanoTime();
+        if (channel.size() + buffer.remaining() > maxFileBytes && channel.size() > 0) {
+            rollFile();
+        }
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        if (fsyncPolicy == FsyncPolicy.BATCH) {
+            channel.force(false);
+        }
+        ChatMetrics.journalWriteMicros.record((System.nanoTime() - start) / 1000);
+    }
+
+    // Строка журнала: "2024-01-01 12:00:00 имя: текст", "... [комната] имя: текст"
+    // (кроме комнаты по умолчанию) или "... имя (ЛС для адресат): текст"
+    private String format(Entry entry) {
+        line.setLength(0);
+        line.append(dateFormat.format(new Date(entry.timestamp))).append(' ');
+        if (entry.room != null && !entry.room.equals(ServerConfig.DEFAULT_ROOM)) {
+            line.append('[').append(entry.room).append("] ");
+        }
+        line.append(entry.sender);
+        if (entry.recipient != null) {
+            line.append(" (ЛС для ").append(entry.recipient).append(')');
+        }
+        return line.append(": ").append(entry.text).toString();
+    }
+
+    // Запись кадров пакета в историю. Ошибка истории не останавливает текстовый журнал
+    private void appendHistory() {
+        if (history == null) {
+            return;
+        }
+        try {
+            for (Entry entry : batch) {
+                if (entry.frame != null) {
+                    long seq = history.append(entry.frame.bytes, entry.frame.length);
+                    if (searchIndex != null) {
+                        searchIndex.add(seq, entry.sender, entry.room, entry.text);
+                    }
+                }
+            }
+            if (fsyncPolicy == FsyncPolicy.BATCH) {
+                history.force();
+            }
+        } catch (IOException e) {
+            ServerLog.warn("history_write_failed", "error", e);
+        }
+    }
+
+    private void ensureCapacity(int extra) {
+        if (buffer.remaining() < extra) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + extra));
+            buffer.flip();
+            larger.put(buffer);
+            buffer = larger;
+        }
+    }
+
+    // Завершение текущего файла: переименование в messages.txt.<время> и открытие нового
+    private void rollFile() throws IOException {
+        channel.force(false);
+        channel.close();
+        Path rolled = file.resolveSibling(file.getFileName() + "." + System.currentTimeMillis());
+        Files.move(file, rolled, StandardCopyOption.ATOMIC_MOVE);
+        openChannel();
+    }
+
+    private void openChannel() throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    // Сообщение в очереди журнала: приватное (поля заданы при добавлении) или общее (кадр frame,
+    // поля заполняет поток записи)
+    private static final class Entry {
+        long timestamp;
+        String sender;
+        final String recipient;
+        String room;
+        String text;
+        final SharedFrame frame;
+
+        Entry(long timestamp, String sender, String recipient, String text, SharedFrame frame) {
+            this.timestamp = timestamp;
+            this.sender = sender;
+            this.recipient = recipient;
+            this.text = text;
+            this.frame = frame;
+        }
+
+        // Заполнение полей из кадра общего сообщения (в потоке записи)
+        void decode() throws IOException {
+            Frame message = FrameCodec.decode(frame.bytes, FrameCodec.LENGTH_BYTES, frame.length - FrameCodec.LENGTH_BYTES);
+            timestamp = message.timestamp;
+            sender = message.name;
+            room = message.room;
+            text = message.body;
+        }
+    }
+}
@@ -0,0 +1,482 @@
+package ru.yaga;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// История сообщений: сегментированный двоичный журнал с разреженным индексом.
+// Сегмент - файл <номер первой записи>.log с записями [длина][номер][время][кадр]
+// и файл .idx с каждой indexInterval-й записью (номер, время, позиция).
+// Чтение идет через отображенные в память сегменты: поиск начала - двоичным поиском по сегментам
+// и индексу, затем короткий проход вперед, поэтому объем истории на время поиска почти не влияет.
+// Файл активного сегмента растет блоками по MAP_CHUNK_BYTES (хвост заполнен нулями), и отображение
+// расширяется сразу на блок, а не при каждом чтении после новой записи. Нулевая длина записи - конец данных.
+// Запись выполняет только один поток (поток журнала сообщений)
+class MessageStore {
+    private static final int HEADER_BYTES = 4 + 8 + 8; // Длина кадра, номер записи, время
+    private static final int INDEX_ENTRY_BYTES = 8 + 8 + 8;
+    private static final String LOG_SUFFIX = ".log";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final long MAP_CHUNK_BYTES = 1024 * 1024;
+
+    private final Path directory;
+    private final long segmentBytes;
+    private final int indexInterval;
+    private final List<Segment> segments = new ArrayList<>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+    private final ByteBuffer indexEntry = ByteBuffer.allocate(INDEX_ENTRY_BYTES);
+    private long nextSeq;
+    private long lastTimestamp; // Время последней добавленной записи (только поток журнала)
+
+    private MessageStore(Path directory, long segmentBytes, int indexInterval) {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.indexInterval = indexInterval;
+    }
+
+    // Открытие хранилища с восстановлением последнего сегмента после аварийного завершения
+    static MessageStore open(Path directory, long segmentBytes, int indexInterval) throws IOException {
+        Files.createDirectories(directory);
+        MessageStore store = new MessageStore(directory, segmentBytes, indexInterval);
+
+        List<Path> logs = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + LOG_SUFFIX)) {
+            stream.forEach(logs::add);
+        }
+        logs.sort(null); // Имена дополнены нулями, поэтому лексикографический порядок совпадает с числовым
+        for (Path log : logs) {
+            String name = log.getFileName().toString();
+            store.segments.add(Segment.load(directory, Long.parseLong(name.substring(0, name.length() - LOG_SUFFIX.length()))));
+        }
+
+        if (store.segments.isEmpty()) {
+            store.segments.add(Segment.create(directory, 0));
+        } else {
+            // Не только последний сегмент: при аварии во время перехода к новому сегменту
+            // у предыдущего остается хвост из нулей
+            for (Segment segment : store.segments) {
+                store.nextSeq = store.recover(segment);
+            }
+            for (int i = 0; i < store.segments.size() - 1; i++) {
+                store.segments.get(i).seal();
+            }
+        }
+        return store;
+    }
+
+    // Номер следующей записи
+    long nextSeq() {
+        lock.readLock().lock();
+        try {
+            return nextSeq;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static long frameTimestamp(byte[] frame, int length) {
+        int offset = FrameCodec.LENGTH_BYTES + 1 + 1 + 4; // Код, флаги, userId
+        return length >= offset + 8 ? ByteBuffer.wrap(frame).getLong(offset) : System.currentTimeMillis();
+    }
+
+    // Добавление кадра в конец истории; возвращает номер записи. Вызывается только потоком журнала
+    long append(byte[] frame) throws IOException {
+        return append(frame, frame.length);
+    }
+
+    // Добавление кадра, занимающего первые length байт массива (кадр из пула, см. SharedFrame)
+    long append(byte[] frame, int length) throws IOException {
+        Segment active = segments.get(segments.size() - 1);
+        if (active.size > 0 && active.size + HEADER_BYTES + length > segmentBytes) {
+            active = roll(active);
+        }
+
+        long seq = nextSeq;
+        // Время записи - время сообщения из кадра, а не момент записи пакета журнала, чтобы readSince
+        // и seqAt отбирали сообщения по тому же времени, что видят клиенты. Время не убывает,
+        // иначе поиск по индексу пропустил бы записи с более поздним временем (кадры с других узлов)
+        long timestamp = Math.max(lastTimestamp, frameTimestamp(frame, length));
+        lastTimestamp = timestamp;
+        long position = active.size;
+        active.allocate(position + HEADER_BYTES + length);
+        header.clear();
+        header.putInt(length).putLong(seq).putLong(timestamp).flip();
+        ByteBuffer[] record = {header, ByteBuffer.wrap(frame, 0, length)};
+        active.log.position(position);
+        while (record[1].hasRemaining()) {
+            active.log.write(record);
+        }
+
+        boolean indexed = (seq - active.baseSeq) % indexInterval == 0;
+        if (indexed) {
+            indexEntry.clear();
+            indexEntry.putLong(seq).putLong(timestamp).putLong(position).flip();
+            while (indexEntry.hasRemaining()) {
+                active.index.write(indexEntry);
+            }
+        }
+
+        // Публикация записи для читателей
+        lock.writeLock().lock();
+        try {
+            if (indexed) {
+                active.addIndexEntry(seq, timestamp, position);
+            }
+            active.size = position + HEADER_BYTES + length;
+            nextSeq = seq + 1;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return seq;
+    }
+
+    // Сброс записанных данных на диск
+    void force() throws IOException {
+        Segment active = segments.get(segments.size() - 1);
+        active.log.force(false);
+        active.index.force(false);
+    }
+
+    // Последние count кадров в порядке записи
+    List<byte[]> readLast(int count) throws IOException {
+        lock.readLock().lock();
+        try {
+            long firstSeq = segments.get(0).baseSeq;
+            return readFrom(Math.max(firstSeq, nextSeq - count), Long.MIN_VALUE, count);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Кадры, записанные начиная с момента timestamp (не более limit)
+    List<byte[]> readSince(long timestamp, int limit) throws IOException {
+        lock.readLock().lock();
+        try {
+            return readFrom(indexedSeqBefore(timestamp), timestamp, limit);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Номер первой записи
+    long firstSeq() {
+        lock.readLock().lock();
+        try {
+            return segments.get(0).baseSeq;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Номер первой записи, сохраненной не раньше момента timestamp (nextSeq, если таких нет)
+    long seqAt(long timestamp) {
+        lock.readLock().lock();
+        try {
+            long fromSeq = indexedSeqBefore(timestamp);
+            for (int i = segmentFor(fromSeq); i < segments.size(); i++) {
+                Segment segment = segments.get(i);
+                ByteBuffer mapped = segment.mapped();
+                long position = segment.baseSeq <= fromSeq ? segment.positionOf(fromSeq) : 0;
+                while (position < segment.size) {
+                    long seq = mapped.getLong((int) position + 4);
+                    if (seq >= fromSeq && mapped.getLong((int) position + 12) >= timestamp) {
+                        return seq;
+                    }
+                    position += HEADER_BYTES + mapped.getInt((int) position);
+                }
+            }
+            return nextSeq;
+        } catch (IOException e) {
+            return nextSeq;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Кадры записей с номерами из [fromSeq, toSeq) в порядке записи
+    List<byte[]> readRange(long fromSeq, long toSeq) throws IOException {
+        lock.readLock().lock();
+        try {
+            fromSeq = Math.max(fromSeq, segments.get(0).baseSeq);
+            toSeq = Math.min(toSeq, nextSeq);
+            return fromSeq < toSeq ? readFrom(fromSeq, Long.MIN_VALUE, (int) (toSeq - fromSeq)) : new ArrayList<>();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Номер проиндексированной записи, с которой нужно начать поиск момента timestamp
+    private long indexedSeqBefore(long timestamp) {
+        // Последний сегмент, начавшийся не позже timestamp
+        int segmentIndex = 0;
+        for (int low = 0, high = segments.size() - 1; low <= high; ) {
+            int mid = (low + high) >>> 1;
+            Segment segment = segments.get(mid);
+            if (segment.indexCount > 0 && segment.indexTimestamps[0] <= timestamp) {
+                segmentIndex = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        Segment segment = segments.get(segmentIndex);
+        int entry = segment.lastIndexBefore(timestamp);
+        return entry >= 0 ? segment.indexSeqs[entry] : segment.baseSeq;
+    }
+
+    // Чтение кадров начиная с записи fromSeq, пропуская записи раньше minTimestamp
+    private List<byte[]> readFrom(long fromSeq, long minTimestamp, int limit) throws IOException {
+        List<byte[]> frames = new ArrayList<>();
+        int segmentIndex = segmentFor(fromSeq);
+        for (int i = segmentIndex; i < segments.size() && frames.size() < limit; i++) {
+            Segment segment = segments.get(i);
+            ByteBuffer mapped = segment.mapped();
+            long position = i == segmentIndex ? segment.positionOf(fromSeq) : 0;
+            while (position < segment.size && frames.size() < limit) {
+                int length = mapped.getInt((int) position);
+                long seq = mapped.getLong((int) position + 4);
+                long timestamp = mapped.getLong((int) position + 12);
+                if (seq >= fromSeq && timestamp >= minTimestamp) {
+                    byte[] frame = new byte[length];
+                    ByteBuffer view = mapped.duplicate();
+                    view.position((int) position + HEADER_BYTES);
+                    view.get(frame);
+                    frames.add(frame);
+                }
+                position += HEADER_BYTES + length;
+            }
+        }
+        return frames;
+    }
+
+    // Индекс сегмента, содержащего запись seq (двоичный поиск по номерам первых записей)
+    private int segmentFor(long seq) {
+        int low = 0;
+        int high = segments.size() - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (segments.get(mid).baseSeq <= seq) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    // Завершение заполненного сегмента и создание следующего
+    private Segment roll(Segment active) throws IOException {
+        active.log.force(false);
+        active.index.force(false);
+        Segment next = Segment.create(directory, nextSeq);
+        lock.writeLock().lock();
+        try {
+            segments.add(next);
+            active.seal(); // Под блокировкой, чтобы читатели не отображали закрываемый канал
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return next;
+    }
+
+    // Проход по хвосту сегмента от последней проиндексированной записи: дописывает недостающие
+    // записи индекса и отрезает недописанную запись и нули после данных. Запись с длиной не больше нуля
+    // считается концом данных. Если проиндексированная запись сама оказалась недописанной, ее запись индекса
+    // удаляется и проход начинается с предыдущей. Возвращает номер следующей записи
+    private long recover(Segment segment) throws IOException {
+        long fileSize = segment.log.size();
+        segment.dropIndexEntriesBeyond(fileSize);
+        while (segment.indexCount > 0) {
+            long indexed = segment.indexPositions[segment.indexCount - 1];
+            if (recordLength(segment, indexed, fileSize) > 0) {
+                break;
+            }
+            segment.dropIndexEntriesBeyond(indexed);
+        }
+        long position = segment.indexCount > 0 ? segment.indexPositions[segment.indexCount - 1] : 0;
+        long seq = segment.baseSeq;
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES);
+        while (position + HEADER_BYTES <= fileSize) {
+            buffer.clear();
+            segment.log.read(buffer, position);
+            buffer.flip();
+            int length = buffer.getInt();
+            long recordSeq = buffer.getLong();
+            long timestamp = buffer.getLong();
+            if (length <= 0 || position + HEADER_BYTES + length > fileSize) {
+                break;
+            }
+            if ((recordSeq - segment.baseSeq) % indexInterval == 0
+                    && (segment.indexCount == 0 || segment.indexSeqs[segment.indexCount - 1] < recordSeq)) {
+                indexEntry.clear();
+                indexEntry.putLong(recordSeq).putLong(timestamp).putLong(position).flip();
+                segment.index.write(indexEntry);
+                segment.addIndexEntry(recordSeq, timestamp, position);
+            }
+            seq = recordSeq + 1;
+            position += HEADER_BYTES + length;
+        }
+        segment.log.truncate(position);
+        segment.size = position;
+        segment.allocated = position;
+        return seq;
+    }
+
+    // Длина записи в позиции position или 0, если запись недописана
+    private static int recordLength(Segment segment, long position, long fileSize) throws IOException {
+        ByteBuffer length = ByteBuffer.allocate(4);
+        segment.log.read(length, position);
+        int value = length.flip().remaining() == 4 ? length.getInt() : 0;
+        return value > 0 && position + HEADER_BYTES + value <= fileSize ? value : 0;
+    }
+
+    // Один сегмент истории
+    private static final class Segment {
+        final long baseSeq;
+        FileChannel log;
+        FileChannel index;
+        volatile long size;
+        volatile long allocated; // Длина файла: данные и заполненный нулями запас для следующих записей
+        long[] indexSeqs = new long[16];
+        long[] indexTimestamps = new long[16];
+        long[] indexPositions = new long[16];
+        int indexCount;
+        // Отображение начала сегмента (его размер - capacity), публикуется одной записью
+        private volatile MappedByteBuffer mapped;
+
+        private Segment(long baseSeq) {
+            this.baseSeq = baseSeq;
+        }
+
+        static Segment create(Path directory, long baseSeq) throws IOException {
+            Segment segment = new Segment(baseSeq);
+            segment.openChannels(directory);
+            return segment;
+        }
+
+        static Segment load(Path directory, long baseSeq) throws IOException {
+            Segment segment = create(directory, baseSeq);
+            segment.size = segment.log.size();
+            segment.allocated = segment.size;
+            ByteBuffer entries = ByteBuffer.allocate((int) (segment.index.size() / INDEX_ENTRY_BYTES * INDEX_ENTRY_BYTES));
+            segment.index.read(entries, 0);
+            entries.flip();
+            while (entries.remaining() >= INDEX_ENTRY_BYTES) {
+                segment.addIndexEntry(entries.getLong(), entries.getLong(), entries.getLong());
+            }
+            segment.index.position(segment.indexCount * (long) INDEX_ENTRY_BYTES);
+            return segment;
+        }
+
+        private void openChannels(Path directory) throws IOException {
+            String name = String.format("%020d", baseSeq);
+            log = FileChannel.open(directory.resolve(name + LOG_SUFFIX),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            index = FileChannel.open(directory.resolve(name + INDEX_SUFFIX),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        void addIndexEntry(long seq, long timestamp, long position) {
+            if (indexCount == indexSeqs.length) {
+                indexSeqs = Arrays.copyOf(indexSeqs, indexCount * 2);
+                indexTimestamps = Arrays.copyOf(indexTimestamps, indexCount * 2);
+                indexPositions = Arrays.copyOf(indexPositions, indexCount * 2);
+            }
+            indexSeqs[indexCount] = seq;
+            indexTimestamps[indexCount] = timestamp;
+            indexPositions[indexCount] = position;
+            indexCount++;
+        }
+
+        // Удаление записей индекса, указывающих за конец файла (индекс записан, а данные - нет)
+        void dropIndexEntriesBeyond(long fileSize) throws IOException {
+            while (indexCount > 0 && indexPositions[indexCount - 1] + HEADER_BYTES > fileSize) {
+                indexCount--;
+            }
+            index.truncate(indexCount * (long) INDEX_ENTRY_BYTES);
+            index.position(indexCount * (long) INDEX_ENTRY_BYTES);
+        }
+
+        // Позиция ближайшей проиндексированной записи с номером не больше seq
+        long positionOf(long seq) {
+            int low = 0;
+            int high = indexCount - 1;
+            int found = -1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (indexSeqs[mid] <= seq) {
+                    found = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return found >= 0 ? indexPositions[found] : 0;
+        }
+
+        // Последняя запись индекса со временем строго раньше timestamp или -1
+        int lastIndexBefore(long timestamp) {
+            int low = 0;
+            int high = indexCount - 1;
+            int found = -1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (indexTimestamps[mid] < timestamp) {
+                    found = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return found;
+        }
+
+        // Запас места в файле для записи, заканчивающейся в end: файл удлиняется до границы блока
+        // (поток журнала, до публикации записи)
+        void allocate(long end) throws IOException {
+            if (end > allocated) {
+                long length = (end + MAP_CHUNK_BYTES - 1) / MAP_CHUNK_BYTES * MAP_CHUNK_BYTES;
+                log.write(ByteBuffer.allocate(1), length - 1);
+                allocated = length;
+            }
+        }
+
+        // Отображение сегмента в память (читатели под блокировкой чтения, size не меняется). Активный сегмент
+        // переотображается, когда он вырос за отображение, сразу до конца выделенного блока. Из отображений,
+        // созданных читателями одновременно, остается наибольшее
+        ByteBuffer mapped() throws IOException {
+            MappedByteBuffer current = mapped;
+            long currentSize = size;
+            if (current != null && current.capacity() >= currentSize) {
+                return current;
+            }
+            MappedByteBuffer larger = log.map(FileChannel.MapMode.READ_ONLY, 0, Math.max(currentSize, allocated));
+            synchronized (this) {
+                if (mapped == null || mapped.capacity() < larger.capacity()) {
+                    mapped = larger;
+                }
+            }
+            return larger;
+        }
+
+        // Сегмент больше не изменяется (под блокировкой записи): запас после данных отрезается,
+        // каналы записи закрываются, отображение остается
+        void seal() throws IOException {
+            log.truncate(size);
+            allocated = size;
+            mapped = log.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            log.close();
+            index.close();
+        }
+    }
+}
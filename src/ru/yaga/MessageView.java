@@ -0,0 +1,274 @@
+package ru.yaga;
+
+import javax.swing.*;
+import javax.swing.text.*;
+import java.awt.*;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Vector;
+
+import static javax.swing.text.DefaultStyledDocument.ElementSpec;
+
+// Область вывода сообщений клиента. В документе хранится ограниченное окно сообщений: при чтении
+// новых сообщений - не более capacity последних, при просмотре более ранней истории - не более
+// 2 * capacity, поэтому память не растет с длительностью сеанса. Стили создаются один раз, пачка
+// сообщений вставляется в документ одним изменением, а при прокрутке к началу запрашивается
+// более ранняя история. Все методы вызываются только в потоке обработки событий Swing
+final class MessageView {
+    // Сообщение для вывода: отметка времени сервера, подпись отправителя и текст
+    static final class Line {
+        final long timestamp;
+        final String user;
+        final String text;
+
+        Line(long timestamp, String user, String text) {
+            this.timestamp = timestamp;
+            this.user = user;
+            this.text = text;
+        }
+    }
+
+    // Строка документа: отметка времени сообщения и длина в символах, включая перевод строки
+    private static final class Row {
+        final long timestamp;
+        final int length;
+
+        Row(long timestamp, int length) {
+            this.timestamp = timestamp;
+            this.length = length;
+        }
+    }
+
+    // Документ с пакетной вставкой элементов (insert(int, ElementSpec[]) в DefaultStyledDocument защищен)
+    private static final class ViewDocument extends DefaultStyledDocument {
+        private static final long serialVersionUID = 1L;
+
+        ViewDocument() {
+            super(new ViewContent(), new StyleContext());
+        }
+
+        void insertLines(int offset, List<ElementSpec> specs) throws BadLocationException {
+            insert(offset, specs.toArray(new ElementSpec[0]));
+        }
+    }
+
+    // Текст документа без сохранения позиций удаляемого фрагмента для отмены. GapContent собирает их
+    // при каждом удалении, и при удалении ранних строк это основная часть работы; отмена в окне
+    // сообщений не используется (у документа нет слушателей UndoableEdit)
+    private static final class ViewContent extends GapContent {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        @SuppressWarnings("rawtypes") // Сигнатура GapContent
+        protected Vector getPositionsInRange(Vector v, int offset, int length) {
+            return v != null ? v : new Vector();
+        }
+    }
+
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd ").withZone(ZoneId.systemDefault());
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss ").withZone(ZoneId.systemDefault());
+    private static final int TRIM_DIVISOR = 8; // Доля окна, удаляемая за раз при его переполнении
+    private static final int BOTTOM_SLACK_PIXELS = 16; // Допуск, при котором окно считается прокрученным до конца
+
+    private final int capacity;
+    private final ViewDocument document = new ViewDocument();
+    private final JTextPane textPane = new JTextPane(document);
+    private final JScrollPane scrollPane = new JScrollPane(textPane);
+    private final ArrayDeque<Row> rows = new ArrayDeque<>(); // Строки документа сверху вниз
+    private final SimpleAttributeSet dateStyle = style(Color.BLUE);
+    private final SimpleAttributeSet timeStyle = style(Color.GREEN);
+    private final SimpleAttributeSet usernameStyle = style(Color.RED);
+    private final SimpleAttributeSet textStyle = style(Color.BLACK);
+    private final List<ElementSpec> specs = new ArrayList<>(); // Переиспользуемый список элементов пачки
+    private Runnable olderHistoryRequest; // Запрос более ранней истории у сервера
+    private boolean loadingOlder; // Запрос отправлен, ответ еще не получен
+    private boolean historyExhausted; // Сервер сообщил, что более ранних сообщений нет
+    private String historyCursor = ""; // Курсор сервера для следующей страницы истории (пусто - от самой ранней строки)
+
+    MessageView(int capacity) {
+        this.capacity = capacity;
+        textPane.setEditable(false);
+        // Прокрутка управляется явно: к концу - только если пользователь читал новые сообщения
+        ((DefaultCaret) textPane.getCaret()).setUpdatePolicy(DefaultCaret.NEVER_UPDATE);
+        JScrollBar bar = scrollPane.getVerticalScrollBar();
+        bar.addAdjustmentListener(e -> {
+            if (!e.getValueIsAdjusting() && bar.getValue() == bar.getMinimum() && bar.getMaximum() > bar.getVisibleAmount()) {
+                requestOlder();
+            }
+        });
+        // Колесо мыши вверх в начале окна (в том числе когда сообщения помещаются целиком)
+        scrollPane.addMouseWheelListener(e -> {
+            if (e.getWheelRotation() < 0 && bar.getValue() == bar.getMinimum()) {
+                requestOlder();
+            }
+        });
+    }
+
+    private static SimpleAttributeSet style(Color color) {
+        SimpleAttributeSet style = new SimpleAttributeSet();
+        StyleConstants.setForeground(style, color);
+        return style;
+    }
+
+    JComponent component() {
+        return scrollPane;
+    }
+
+    StyledDocument document() {
+        return document;
+    }
+
+    int lineCount() {
+        return rows.size();
+    }
+
+    // Обработчик запроса более ранней истории; вызывается при прокрутке к началу окна
+    void setOlderHistoryRequest(Runnable request) {
+        olderHistoryRequest = request;
+    }
+
+    // Отметка времени самой ранней строки окна (0 - окно пусто)
+    long oldestTimestamp() {
+        Row first = rows.peekFirst();
+        return first != null ? first.timestamp : 0;
+    }
+
+    String historyCursor() {
+        return historyCursor;
+    }
+
+    // Сброс состояния истории, например при смене комнаты: следующая страница запрашивается от самой ранней строки
+    void resetHistory() {
+        historyCursor = "";
+        historyExhausted = false;
+        loadingOlder = false;
+    }
+
+    // Добавление пачки сообщений в конец одним изменением документа
+    void appendAll(List<Line> lines) {
+        if (lines.isEmpty()) {
+            return;
+        }
+        boolean followLatest = isAtBottom();
+        // Из пачки длиннее окна показываются только последние строки
+        int from = Math.max(0, lines.size() - capacity);
+        specs.clear();
+        for (int i = from; i < lines.size(); i++) {
+            specs.add(new ElementSpec(null, ElementSpec.EndTagType));
+            specs.add(new ElementSpec(null, ElementSpec.StartTagType));
+            Line line = lines.get(i);
+            rows.addLast(new Row(line.timestamp, addContent(line)));
+        }
+        try {
+            document.insertLines(document.getLength(), specs);
+        } catch (BadLocationException e) {
+            e.printStackTrace();
+        }
+        specs.clear();
+        // При чтении новых сообщений окно сокращается до capacity, при просмотре истории - до 2 * capacity
+        trimTop(followLatest ? capacity : 2 * capacity);
+        if (followLatest) {
+            SwingUtilities.invokeLater(() -> {
+                JScrollBar bar = scrollPane.getVerticalScrollBar();
+                bar.setValue(bar.getMaximum());
+            });
+        }
+    }
+
+    // Вставка страницы более ранней истории в начало одним изменением документа.
+    // cursor - курсор следующей страницы или пустая строка, если история закончилась
+    void prependOlder(List<Line> lines, String cursor) {
+        loadingOlder = false;
+        historyExhausted = cursor.isEmpty();
+        historyCursor = cursor;
+        // Окно не растет больше 2 * capacity: из страницы остаются самые поздние строки
+        int from = Math.max(0, lines.size() - Math.max(0, 2 * capacity - rows.size()));
+        if (from > 0) {
+            // Часть страницы отброшена - следующая страница запрашивается от самой ранней строки окна
+            historyCursor = "";
+            historyExhausted = false;
+        }
+        if (from == lines.size()) {
+            return;
+        }
+        specs.clear();
+        ArrayDeque<Row> added = new ArrayDeque<>();
+        for (int i = from; i < lines.size(); i++) {
+            Line line = lines.get(i);
+            Row row = new Row(line.timestamp, addContent(line));
+            specs.add(new ElementSpec(null, ElementSpec.EndTagType));
+            specs.add(new ElementSpec(null, ElementSpec.StartTagType));
+            added.addLast(row);
+        }
+        JScrollBar bar = scrollPane.getVerticalScrollBar();
+        int oldMaximum = bar.getMaximum();
+        try {
+            document.insertLines(0, specs);
+        } catch (BadLocationException e) {
+            e.printStackTrace();
+        }
+        specs.clear();
+        while (!added.isEmpty()) {
+            rows.addFirst(added.pollLast());
+        }
+        // Видимые сообщения остаются на месте: позиция сдвигается на высоту вставленных строк
+        SwingUtilities.invokeLater(() -> bar.setValue(bar.getValue() + bar.getMaximum() - oldMaximum));
+    }
+
+    // Элементы текста строки (дата, время, отправитель, текст с переводом строки). Возвращает длину строки
+    private int addContent(Line line) {
+        Instant instant = Instant.ofEpochMilli(line.timestamp);
+        return addRun(dateStyle, DATE_FORMAT.format(instant))
+                + addRun(timeStyle, TIME_FORMAT.format(instant))
+                + addRun(usernameStyle, line.user)
+                + addRun(textStyle, ": " + line.text + "\n");
+    }
+
+    private int addRun(AttributeSet style, String text) {
+        char[] chars = text.toCharArray();
+        specs.add(new ElementSpec(style, ElementSpec.ContentType, chars, 0, chars.length));
+        return chars.length;
+    }
+
+    // Удаление самых ранних строк, если их больше limit, одним изменением документа. Удаляется сразу
+    // limit / TRIM_DIVISOR строк с запасом: удаление из начала сдвигает весь текст и все позиции
+    // документа, поэтому его стоимость не должна приходиться на каждое новое сообщение
+    private void trimTop(int limit) {
+        if (rows.size() <= limit) {
+            return;
+        }
+        int length = 0;
+        while (rows.size() > limit - limit / TRIM_DIVISOR) {
+            length += rows.pollFirst().length;
+        }
+        if (length == 0) {
+            return;
+        }
+        try {
+            document.remove(0, length);
+        } catch (BadLocationException e) {
+            e.printStackTrace();
+        }
+        // Начало окна больше не совпадает с курсором истории
+        historyCursor = "";
+        historyExhausted = false;
+    }
+
+    private boolean isAtBottom() {
+        JScrollBar bar = scrollPane.getVerticalScrollBar();
+        return bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum() - BOTTOM_SLACK_PIXELS;
+    }
+
+    private void requestOlder() {
+        // В заполненное до 2 * capacity окно история больше не добавляется
+        if (loadingOlder || historyExhausted || olderHistoryRequest == null || rows.isEmpty() || rows.size() >= 2 * capacity) {
+            return;
+        }
+        loadingOlder = true;
+        olderHistoryRequest.run();
+    }
+}
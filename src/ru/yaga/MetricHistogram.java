@@ -0,0 +1,80 @@
+package ru.yaga;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// Потокобезопасная гистограмма метрик сервера с интервалами по степеням двойки:
+// интервал i содержит значения из (2^(i-1), 2^i], последний - все значения больше 2^(buckets-1).
+// Запись не создает объектов и не берет блокировок (LongAdder на интервал), поэтому
+// ее можно вызывать на пути каждого сообщения. В отличие от LatencyHistogram точность
+// ограничена границей интервала, зато гистограмму можно читать во время записи
+final class MetricHistogram {
+    private final LongAdder[] counts;
+    private final LongAdder sum = new LongAdder();
+
+    // buckets конечных интервалов с границами 1, 2, 4, ..., 2^(buckets-1) и интервал переполнения
+    MetricHistogram(int buckets) {
+        counts = new LongAdder[buckets + 1];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        int index = value <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(value - 1);
+        counts[Math.min(index, counts.length - 1)].increment();
+        sum.add(value);
+    }
+
+    // Количество конечных интервалов (без интервала переполнения)
+    int buckets() {
+        return counts.length - 1;
+    }
+
+    // Верхняя граница конечного интервала
+    static long upperBound(int bucket) {
+        return 1L << bucket;
+    }
+
+    // Количество значений в интервале (buckets() - интервал переполнения)
+    long countAt(int bucket) {
+        return counts[bucket].sum();
+    }
+
+    long count() {
+        long total = 0;
+        for (LongAdder count : counts) {
+            total += count.sum();
+        }
+        return total;
+    }
+
+    long sum() {
+        return sum.sum();
+    }
+
+    // Верхняя граница интервала, в который попадает percent процентов значений
+    // (для интервала переполнения - Long.MAX_VALUE)
+    long percentile(double percent) {
+        long[] snapshot = new long[counts.length];
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            snapshot[i] = counts[i].sum();
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * percent / 100.0));
+        long seen = 0;
+        for (int i = 0; i < buckets(); i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return upperBound(i);
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+}
@@ -0,0 +1,263 @@
+package ru.yaga;
+
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+
+// Публикация ChatMetrics: MXBean ru.yaga:type=ChatMetrics и HTTP-страница /metrics
+// в текстовом формате Prometheus на встроенном в JDK HttpServer. Значения читаются
+// только при запросе, запись метрик на пути сообщений при этом не меняется
+final class MetricsExporter {
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private MetricsExporter() {
+    }
+
+    // Регистрация MXBean и запуск HTTP-сервера метрик (порт 0 - без HTTP). Первое обращение к платформенному
+    // MBeanServer создает его (сотни мс), поэтому MXBean регистрируется в фоне и не задерживает запуск сервера
+    static void start(int httpPort) {
+        ChatMetrics.startRateSampler();
+        Thread registrar = new Thread(MetricsExporter::registerMBean, "metrics-mbean");
+        registrar.setDaemon(true);
+        registrar.start();
+        if (httpPort <= 0) {
+            return;
+        }
+        try {
+            HttpServer server = HttpServer.create(new InetSocketAddress(httpPort), 0);
+            server.createContext("/metrics", exchange -> {
+                byte[] body = prometheus().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            server.start(); // Запросы обслуживает поток самого HttpServer
+            System.out.println("Метрики Prometheus: http://localhost:" + httpPort + "/metrics");
+        } catch (IOException e) {
+            System.out.println("Не удалось запустить HTTP-сервер метрик на порту " + httpPort + ": " + e);
+        }
+    }
+
+    private static void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new Bean(), new ObjectName("ru.yaga:type=ChatMetrics"));
+        } catch (JMException e) {
+            System.out.println("Не удалось зарегистрировать MXBean метрик: " + e);
+        }
+    }
+
+        // Все метрики в текстовом формате Prometheus
+    static String prometheus() {
+        StringBuilder out = new StringBuilder(4096);
+        gauge(out, "chat_connected_users", "Connected users on this node", ChatServer.getConnectedUsers());
+        counter(out, "chat_connections_accepted_total", "Accepted client connections", ChatMetrics.connectionsAccepted);
+        counter(out, "chat_connections_rejected_total", "Rejected client connections (user limit, handshake errors, duplicate names)", ChatMetrics.connectionsRejected);
+        counter(out, "chat_messages_in_total", "Chat and private messages received from clients", ChatMetrics.messagesIn);
+        counter(out, "chat_messages_out_total", "Frames written to client sockets", ChatMetrics.framesWritten);
+        counter(out, "chat_bytes_sent_total", "Bytes written to client sockets", ChatMetrics.bytesSent);
+        counter(out, "chat_socket_writes_total", "Socket write calls", ChatMetrics.socketWrites);
+        counter(out, "chat_forbidden_rejections_total", "Messages rejected by the forbidden words filter", ChatMetrics.forbiddenRejections);
+        counter(out, "chat_rate_limited_total", "Messages dropped by rate limits", ChatMetrics.rateLimited);
+        counter(out, "chat_rate_limit_disconnects_total", "Clients disconnected for repeatedly exceeding rate limits", ChatMetrics.rateLimitDisconnects);
+        counter(out, "chat_frames_enqueued_total", "Frames added to client outbound queues", ChatMetrics.framesEnqueued);
+        counter(out, "chat_frames_dropped_total", "Frames dropped by the DROP_OLDEST policy", ChatMetrics.framesDropped);
+        counter(out, "chat_slow_consumer_disconnects_total", "Clients disconnected by the DISCONNECT policy", ChatMetrics.slowConsumerDisconnects);
+        gauge(out, "chat_queued_frames", "Frames in all client outbound queues", ChatMetrics.queuedFrames.sum());
+        gauge(out, "chat_queued_bytes", "Bytes in all client outbound queues", ChatMetrics.queuedBytes.sum());
+        gauge(out, "chat_max_queue_depth", "Largest outbound queue depth of a single client since start", ChatMetrics.maxQueueDepth.get());
+        histogram(out, "chat_outbound_queue_depth", "Client outbound queue depth when a frame is added", ChatMetrics.queueDepth, 1);
+        histogram(out, "chat_broadcast_seconds", "Time to fan a message out to the members of a room", ChatMetrics.broadcastMicros, 1e-6);
+        histogram(out, "chat_journal_write_seconds", "Time to write one journal batch to disk", ChatMetrics.journalWriteMicros, 1e-6);
+        counter(out, "chat_journal_dropped_total", "Messages not journaled because the journal queue was full or the journal writer stopped", ChatMetrics.journalDropped);
+        counter(out, "chat_cluster_published_total", "Messages queued to other cluster nodes", ChatMetrics.clusterPublished);
+        counter(out, "chat_cluster_received_total", "Messages received from other cluster nodes", ChatMetrics.clusterReceived);
+        counter(out, "chat_cluster_dropped_total", "Messages to other cluster nodes dropped on overflow", ChatMetrics.clusterDropped);
+        gauge(out, "chat_startup_milliseconds", "Time from JVM start until the server accepted connections", ChatMetrics.startupMillis);
+        gauge(out, "chat_first_connection_milliseconds", "Time from JVM start until the first client connection was accepted", ChatMetrics.firstConnectionMillis);
+        return out.toString();
+    }
+
+    private static void counter(StringBuilder out, String name, String help, LongAdder value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" counter\n");
+        out.append(name).append(' ').append(value.sum()).append('\n');
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, long value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" gauge\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    // Гистограмма с накопленными значениями по интервалам; scale переводит единицы записи в единицы метрики
+    private static void histogram(StringBuilder out, String name, String help, MetricHistogram histogram, double scale) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" histogram\n");
+        long cumulative = 0;
+        for (int i = 0; i < histogram.buckets(); i++) {
+            cumulative += histogram.countAt(i);
+            out.append(name).append("_bucket{le=\"").append(bound(MetricHistogram.upperBound(i), scale)).append("\"} ")
+                    .append(cumulative).append('\n');
+        }
+        cumulative += histogram.countAt(histogram.buckets());
+        out.append(name).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+        out.append(name).append("_sum ").append(bound(histogram.sum(), scale)).append('\n');
+        out.append(name).append("_count ").append(cumulative).append('\n');
+    }
+
+    private static String bound(long value, double scale) {
+        return scale == 1 ? Long.toString(value) : Double.toString(value * scale);
+    }
+
+    // Реализация MXBean поверх статических счетчиков ChatMetrics
+    private static final class Bean implements ChatMetricsMXBean {
+        @Override
+        public int getConnectedUsers() {
+            return ChatServer.getConnectedUsers();
+        }
+
+        @Override
+        public long getConnectionsAccepted() {
+            return ChatMetrics.connectionsAccepted.sum();
+        }
+
+        @Override
+        public long getConnectionsRejected() {
+            return ChatMetrics.connectionsRejected.sum();
+        }
+
+        @Override
+        public long getMessagesIn() {
+            return ChatMetrics.messagesIn.sum();
+        }
+
+        @Override
+        public long getMessagesOut() {
+            return ChatMetrics.framesWritten.sum();
+        }
+
+        @Override
+        public double getMessagesInPerSecond() {
+            return ChatMetrics.messagesInPerSecond();
+        }
+
+        @Override
+        public double getMessagesOutPerSecond() {
+            return ChatMetrics.messagesOutPerSecond();
+        }
+
+        @Override
+        public long getBytesSent() {
+            return ChatMetrics.bytesSent.sum();
+        }
+
+        @Override
+        public double getBytesSentPerSecond() {
+            return ChatMetrics.bytesSentPerSecond();
+        }
+
+        @Override
+        public long getForbiddenWordRejections() {
+            return ChatMetrics.forbiddenRejections.sum();
+        }
+
+        @Override
+        public long getRateLimitedMessages() {
+            return ChatMetrics.rateLimited.sum();
+        }
+
+        @Override
+        public long getRateLimitDisconnects() {
+            return ChatMetrics.rateLimitDisconnects.sum();
+        }
+
+        @Override
+        public long getFramesDropped() {
+            return ChatMetrics.framesDropped.sum();
+        }
+
+        @Override
+        public long getSlowConsumerDisconnects() {
+            return ChatMetrics.slowConsumerDisconnects.sum();
+        }
+
+        @Override
+        public long getQueuedFrames() {
+            return ChatMetrics.queuedFrames.sum();
+        }
+
+        @Override
+        public long getQueuedBytes() {
+            return ChatMetrics.queuedBytes.sum();
+        }
+
+        @Override
+        public long getMaxQueueDepth() {
+            return ChatMetrics.maxQueueDepth.get();
+        }
+
+        @Override
+        public long getQueueDepthP99() {
+            return ChatMetrics.queueDepth.percentile(99);
+        }
+
+        @Override
+        public long getBroadcastP50Micros() {
+            return ChatMetrics.broadcastMicros.percentile(50);
+        }
+
+        @Override
+        public long getBroadcastP99Micros() {
+            return ChatMetrics.broadcastMicros.percentile(99);
+        }
+
+        @Override
+        public long getJournalWriteP50Micros() {
+            return ChatMetrics.journalWriteMicros.percentile(50);
+        }
+
+        @Override
+        public long getJournalWriteP99Micros() {
+            return ChatMetrics.journalWriteMicros.percentile(99);
+        }
+
+        @Override
+        public long getJournalDropped() {
+            return ChatMetrics.journalDropped.sum();
+        }
+
+        @Override
+        public long getClusterPublished() {
+            return ChatMetrics.clusterPublished.sum();
+        }
+
+        @Override
+        public long getClusterReceived() {
+            return ChatMetrics.clusterReceived.sum();
+        }
+
+        @Override
+        public long getClusterDropped() {
+            return ChatMetrics.clusterDropped.sum();
+        }
+
+        @Override
+        public long getStartupMillis() {
+            return ChatMetrics.startupMillis;
+        }
+
+        @Override
+        public long getFirstConnectionMillis() {
+            return ChatMetrics.firstConnectionMillis;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package ru.yaga;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+// Неблокирующий сервер чата: один поток принимает подключения,
+// а небольшой фиксированный пул циклов событий обслуживает все соединения
+public class NioChatServer {
+    private final int port;
+    private final NioEventLoop[] eventLoops;
+    private int nextLoop = 0; // Индекс цикла событий для следующего соединения (по кругу)
+
+    public NioChatServer(int port, int threads) {
+        this.port = port;
+        this.eventLoops = new NioEventLoop[threads];
+    }
+
+    // Запуск циклов событий и приема подключений. Метод возвращает управление после закрытия канала
+    // приема при остановке сервера; циклы событий продолжают работать, пока клиенты получают свои очереди
+    public void start() throws IOException {
+        for (int i = 0; i < eventLoops.length; i++) {
+            eventLoops[i] = new NioEventLoop(i);
+            Thread thread = new Thread(eventLoops[i], "nio-loop-" + i);
+            thread.start();
+        }
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
+            System.out.println("NIO-сервер запущен на порту " + port + ", циклов событий: " + eventLoops.length);
+            ChatServer.listening(serverChannel);
+            while (true) {
+                SocketChannel channel;
+                try {
+                    channel = serverChannel.accept(); // Принятие подключения от клиента
+                } catch (ClosedChannelException e) {
+                    if (ChatServer.isStopping()) {
+                        return;
+                    }
+                    throw e;
+                }
+
+                byte[] refusal = ChatServer.admissionError(channel.socket());
+                if (refusal == null) {
+                    ChatServer.incrementConnectedUsers();
+                    System.out.println("Принято от: " + channel.socket().getInetAddress());
+                    try {
+                        ChatServer.configureSocket(channel.socket());
+                        channel.configureBlocking(false);
+                    } catch (IOException e) {
+                        // Клиент отключился до настройки канала: закрывается только это соединение, прием продолжается
+                        ServerLog.warn("connection_rejected", "reason", "setup", "remote", channel.socket().getInetAddress(), "error", e.getMessage());
+                        ChatMetrics.connectionsRejected.increment();
+                        ChatServer.decrementConnectedUsers();
+                        try {
+                            channel.close();
+                        } catch (IOException closeError) {
+                            closeError.printStackTrace();
+                        }
+                        continue;
+                    }
+                    eventLoops[nextLoop].register(channel);
+                    nextLoop = (nextLoop + 1) % eventLoops.length;
+                } else {
+                    try {
+                        // Блокирующий канал: кадр ошибки помещается в буфер отправки нового сокета.
+                        // При TLS кадр потребовал бы рукопожатия в потоке приема, поэтому соединение просто закрывается
+                        if (!ServerConfig.TLS) {
+                            channel.write(ByteBuffer.wrap(refusal));
+                        }
+                    } catch (IOException e) {
+                        // Клиент уже отключился
+                    }
+                    channel.close();
+                }
+            }
+        }
+    }
+}
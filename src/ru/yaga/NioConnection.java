@@ -0,0 +1,338 @@
+package ru.yaga;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Неблокирующее соединение с клиентом. Читает кадры протокола (см. FrameCodec)
+// по частям, по мере поступления данных. Буферы чтения и записи - прямые буферы из пула цикла событий:
+// соединение держит их, только пока есть недочитанный кадр или неотправленные данные.
+// При TLS данные сокета проходят через TlsChannel, а буферы чтения и записи содержат расшифрованные кадры
+class NioConnection implements ChatSession {
+    private final NioEventLoop eventLoop;
+    private final SocketChannel channel;
+    private final TlsChannel tls; // null без TLS
+    private final OutboundQueue outbound = new OutboundQueue(); // Очередь исходящих кадров
+    private final AtomicBoolean writeScheduled = new AtomicBoolean(); // Запрошена ли уже запись у цикла событий
+    NioConnection nextPendingWrite; // Следующее соединение в стеке запросов записи цикла событий
+    private ByteBuffer readBuffer; // null, пока нет недочитанных данных
+    private ByteBuffer writeBuffer; // null, пока нет неотправленных данных (режим заполнения)
+    private SelectionKey key;
+    private volatile String username; // null до завершения рукопожатия
+    private volatile int userId;
+    private final Set<String> rooms = ConcurrentHashMap.newKeySet(); // Комнаты пользователя
+    private volatile boolean closed;
+    long handshakeDeadline; // Время (System.nanoTime), до которого клиент должен прислать HELLO. Только поток цикла
+    private boolean closeWhenFlushed; // Закрыть соединение после отправки очереди
+    private boolean draining; // Остановка сервера: закрыть после отправки очереди, продолжая читать кадры клиента
+    private RateLimiter.Client rateLimit; // Ограничения частоты сообщений, null до завершения рукопожатия
+    private volatile boolean compression; // Клиент получает длинные кадры сжатыми
+
+    NioConnection(NioEventLoop eventLoop, SocketChannel channel) throws IOException {
+        this.eventLoop = eventLoop;
+        this.channel = channel;
+        this.tls = ServerConfig.TLS
+                ? new TlsChannel(channel, ChatTls.serverEngine(), eventLoop.tlsBuffers(), eventLoop::execute, this::resumeHandshake)
+                : null;
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    @Override
+    public String getUsername() {
+        return username;
+    }
+
+    @Override
+    public int getUserId() {
+        return userId;
+    }
+
+    @Override
+    public Set<String> getRooms() {
+        return rooms;
+    }
+
+    @Override
+    public RateLimiter.Client getRateLimit() {
+        return rateLimit;
+    }
+
+    @Override
+    public boolean acceptsCompression() {
+        return compression;
+    }
+
+    // Постановка кадра в очередь на отправку. Может вызываться из любого потока
+    @Override
+    public void send(SharedFrame frame) {
+        if (closed) {
+            return;
+        }
+        if (!outbound.offer(compression ? ChatHandler.compress(frame) : frame.retain())) {
+            System.out.println("Клиент " + username + " не успевает читать сообщения. Соединение будет разорвано.");
+            ChatMetrics.slowConsumerDisconnects.increment();
+            close();
+            return;
+        }
+        if (writeScheduled.compareAndSet(false, true)) {
+            eventLoop.requestWrite(this);
+        } else if (outbound.queuedBytes() >= ServerConfig.WRITE_BATCH_BYTES) {
+            eventLoop.flushWritesNow(); // Пакет набран, ждать окончания окна объединения незачем
+        }
+    }
+
+    // Закрытие соединения из любого потока: само закрытие выполняется в цикле событий
+    @Override
+    public void close() {
+        eventLoop.execute(this::closeNow);
+    }
+
+    // Закрытие после отправки очереди выполняется в цикле событий: сразу, если запись не запрошена,
+    // иначе - в onWritable, когда очередь опустеет
+    @Override
+    public void drainAndClose() {
+        eventLoop.execute(() -> {
+            if (writeScheduled.get()) {
+                draining = true;
+            } else {
+                closeNow();
+            }
+        });
+    }
+
+    // Чтение доступных данных и разбор всех полностью полученных кадров прямо в буфере чтения.
+    // При TLS расшифровка может остановиться, когда буфер заполнен, тогда чтение повторяется после разбора кадров
+    void onReadable() throws IOException {
+        while (true) {
+            if (readBuffer == null) {
+                readBuffer = eventLoop.buffers().acquire();
+            }
+            int read = tls == null ? channel.read(readBuffer) : tls.read(readBuffer);
+            if (read < 0) {
+                closeNow();
+                return;
+            }
+            if (tls == null) {
+                readFrames();
+                return;
+            }
+            if (tls.hasPendingOutput() && writeScheduled.compareAndSet(false, true)) {
+                enableWriteInterest(); // Сообщения рукопожатия
+            }
+            if (read == 0 && tls.overflowed() && !closeWhenFlushed) {
+                // Остаток незавершенного кадра не оставил места для записи TLS
+                ByteBuffer larger = ByteBuffer.allocate(readBuffer.position() + eventLoop.buffers().bufferBytes());
+                readBuffer.flip();
+                larger.put(readBuffer);
+                eventLoop.buffers().release(readBuffer);
+                readBuffer = larger;
+                continue;
+            }
+            readFrames();
+            if (closed || closeWhenFlushed || !tls.overflowed()) {
+                return;
+            }
+        }
+    }
+
+    // Разбор полностью полученных кадров в буфере чтения; незавершенный кадр остается в начале буфера
+    private void readFrames() throws IOException {
+        readBuffer.flip();
+        int required = 0;
+        while (!closed && !closeWhenFlushed && readBuffer.remaining() >= FrameCodec.LENGTH_BYTES) {
+            int position = readBuffer.position();
+            int length = readBuffer.getInt(position);
+            if (length < FrameCodec.HEADER_BYTES || length > ServerConfig.MAX_FRAME_BYTES) {
+                throw new IOException("Недопустимая длина кадра: " + length);
+            }
+            int frameLength = FrameCodec.LENGTH_BYTES + length;
+            if (readBuffer.remaining() < frameLength) {
+                required = frameLength;
+                break;
+            }
+            readBuffer.position(position + frameLength);
+            onFrame(position + FrameCodec.LENGTH_BYTES, length);
+        }
+        if (closed) {
+            return; // Буферы уже возвращены в пул
+        }
+        readBuffer.compact();
+
+        if (required > readBuffer.capacity()) {
+            // Незавершенный кадр длиннее буфера из пула: буфер по размеру кадра, после него - снова из пула
+            ByteBuffer larger = ByteBuffer.allocate(required);
+            readBuffer.flip();
+            larger.put(readBuffer);
+            eventLoop.buffers().release(readBuffer);
+            readBuffer = larger;
+        } else if (readBuffer.position() == 0) {
+            eventLoop.buffers().release(readBuffer);
+            readBuffer = null;
+        }
+    }
+
+    // Запись исходящих кадров, пока сокет их принимает. Кадры копируются из очереди в буфер записи
+    // и уходят одним вызовом записи на буфер (до IO_BUFFER_BYTES); опустевший буфер возвращается в пул
+    void onWritable() throws IOException {
+        if (tls != null) {
+            if (tls.tasksRunning()) {
+                key.interestOps(SelectionKey.OP_READ); // Запись возобновит resumeHandshake
+                return;
+            }
+            if (!tls.flush()) {
+                return; // Сокет еще не принял прежние зашифрованные данные
+            }
+            if (tls.hasBufferedInput()) {
+                onReadable(); // Рукопожатие ждало отправки своих сообщений
+                if (closed) {
+                    return;
+                }
+            }
+        }
+        while (true) {
+            if (writeBuffer == null) {
+                writeBuffer = eventLoop.buffers().acquire();
+            }
+            ChatMetrics.framesWritten.add(outbound.fill(writeBuffer));
+            if (writeBuffer.position() == 0) {
+                eventLoop.buffers().release(writeBuffer);
+                writeBuffer = null;
+                break;
+            }
+            writeBuffer.flip();
+            ChatMetrics.bytesSent.add(tls == null ? channel.write(writeBuffer) : tls.write(writeBuffer));
+            ChatMetrics.socketWrites.increment();
+            writeBuffer.compact();
+            if (writeBuffer.position() > 0 || tls != null && tls.hasPendingOutput()) {
+                return; // Буфер отправки сокета заполнен, продолжим при следующей готовности
+            }
+        }
+        if (closeWhenFlushed || draining) {
+            closeNow();
+            return;
+        }
+        key.interestOps(SelectionKey.OP_READ);
+        writeScheduled.set(false);
+        // Кадры, добавленные другим потоком между опустошением очереди и сбросом флага
+        if (!outbound.isEmpty() && writeScheduled.compareAndSet(false, true)) {
+            enableWriteInterest();
+        }
+    }
+
+    void enableWriteInterest() {
+        if (key != null && key.isValid()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+    }
+
+    // Продолжение рукопожатия TLS после его задач в пуле (в потоке цикла событий): расшифровка принятых
+    // за это время данных, отправка ответа клиенту и отложенная запись
+    private void resumeHandshake() {
+        if (closed) {
+            return;
+        }
+        try {
+            onReadable();
+            if (!closed && writeScheduled.get()) {
+                enableWriteInterest();
+            }
+        } catch (IOException e) {
+            closeNow();
+        } catch (RuntimeException e) {
+            fail(e);
+        }
+    }
+
+    // Ошибка в коде сервера при обработке соединения (а не ошибка ввода-вывода): соединение закрывается,
+    // чтобы одно соединение не остановило поток цикла событий со всеми остальными
+    void fail(RuntimeException e) {
+        ServerLog.warn("connection_error", "user", username, "remote", remoteAddress(), "error", e);
+        e.printStackTrace();
+        closeNow();
+    }
+
+    // Обработка одного полного кадра (length байт без префикса длины с offset в буфере чтения):
+    // первый кадр - HELLO с именем пользователя, далее - сообщения
+    private void onFrame(int offset, int length) throws IOException {
+        if (username == null) {
+            Frame frame = FrameCodec.decode(readBuffer, offset, length, 0); // Сжатие еще не согласовано
+            if (frame.opcode != Frame.HELLO) {
+                throw new IOException("Ожидался кадр HELLO, получен " + frame.opcode);
+            }
+            userId = ChatHandler.nextUserId();
+            username = frame.name;
+            // Имя должно быть уникальным среди подключенных пользователей
+            if (!ChatHandler.addSession(this)) {
+                send(ChatHandler.error("Имя пользователя " + username + " уже занято."));
+                ServerLog.warn("connection_rejected", "reason", "duplicate_name", "user", username, "remote", channel.socket().getInetAddress());
+                ChatMetrics.connectionsRejected.increment();
+                closeWhenFlushed = true;
+                return;
+            }
+            ChatMetrics.connectionsAccepted.increment();
+            rateLimit = RateLimiter.acquire(username, channel.socket().getInetAddress());
+            compression = ChatHandler.negotiateCompression(frame);
+            if (compression) {
+                send(ChatHandler.welcome(this));
+            }
+            ChatHandler.announceJoin(this);
+            ChatHandler.joinRoom(this, ServerConfig.DEFAULT_ROOM, frame.timestamp);
+            return;
+        }
+
+        if (!ChatHandler.handleFrame(this, readBuffer, offset, length)) {
+            ChatHandler.removeSession(this); // Остальные клиенты сразу видят отключение
+            closeWhenFlushed = true;
+        }
+    }
+
+    InetAddress remoteAddress() {
+        return channel.socket().getInetAddress();
+    }
+
+    // Рукопожатие (HELLO, при TLS - и рукопожатие TLS) еще не завершено
+    boolean awaitingHello() {
+        return !closed && username == null;
+    }
+
+    // Закрытие соединения. Вызывается только из потока цикла событий
+    void closeNow() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        ChatHandler.removeSession(this);
+        if (rateLimit != null) {
+            RateLimiter.release(rateLimit);
+        }
+        ChatServer.decrementConnectedUsers();
+        if (key != null) {
+            key.cancel();
+        }
+        outbound.clear();
+        if (readBuffer != null) {
+            eventLoop.buffers().release(readBuffer);
+            readBuffer = null;
+        }
+        if (writeBuffer != null) {
+            eventLoop.buffers().release(writeBuffer);
+            writeBuffer = null;
+        }
+        if (tls != null) {
+            tls.close();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
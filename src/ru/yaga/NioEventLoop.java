@@ -0,0 +1,223 @@
+package ru.yaga;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Цикл событий: один поток и один селектор на множество соединений.
+// Запросы на запись накапливаются: селектор пробуждается один раз на пачку запросов, а при включенном
+// объединении (WRITE_COALESCE_MICROS) запись начинается не раньше конца окна, так что кадры нескольких
+// рассылок одному клиенту уходят одной записью. Буферы чтения и записи соединений (и зашифрованных данных при TLS)
+// берутся из пулов цикла. Соединение, не приславшее HELLO за HANDSHAKE_TIMEOUT_MS (в том числе не завершившее
+// рукопожатие TLS), закрывается
+class NioEventLoop implements Runnable {
+    private static final long COALESCE_NANOS = TimeUnit.MICROSECONDS.toNanos(ServerConfig.WRITE_COALESCE_MICROS);
+    private static final long HANDSHAKE_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(ServerConfig.HANDSHAKE_TIMEOUT_MS);
+
+    private final int id;
+    private final Selector selector;
+    private final Queue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>(); // Новые соединения от потока приема
+    // Стек соединений с новыми исходящими данными, связанный через NioConnection.nextPendingWrite: рассылка
+    // тысяче получателей не создает узел очереди на каждого. Соединение попадает в стек не более одного раза,
+    // пока у него взведен writeScheduled
+    private final AtomicReference<NioConnection> pendingWrites = new AtomicReference<>();
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>(); // Задачи из других потоков
+    private final AtomicBoolean writesRequested = new AtomicBoolean(); // Селектор уже пробуждается ради записи
+    private final AtomicBoolean flushNow = new AtomicBoolean(); // Набран полный пакет, окно объединения прерывается
+    private long writeDeadline; // Конец текущего окна объединения (0 - окна нет). Только поток цикла
+    // Соединения в порядке подключения, то есть по возрастанию срока рукопожатия; завершившие рукопожатие
+    // удаляются, когда оказываются первыми. Только поток цикла
+    private final ArrayDeque<NioConnection> handshakes = new ArrayDeque<>();
+    private final BufferPool buffers; // Только поток цикла
+    private final BufferPool tlsBuffers; // Буферы зашифрованных данных, null без TLS. Только поток цикла
+
+    NioEventLoop(int id) throws IOException {
+        this.id = id;
+        this.selector = Selector.open();
+        if (ServerConfig.TLS) {
+            // Запись TLS расшифровывается в буфер чтения целиком, поэтому он не меньше ее наибольшего размера
+            buffers = new BufferPool(Math.max(ServerConfig.IO_BUFFER_BYTES, ChatTls.applicationBufferSize()), ServerConfig.IO_BUFFERS_PER_LOOP);
+            tlsBuffers = new BufferPool(ChatTls.packetBufferSize(), ServerConfig.IO_BUFFERS_PER_LOOP);
+        } else {
+            buffers = new BufferPool(ServerConfig.IO_BUFFER_BYTES, ServerConfig.IO_BUFFERS_PER_LOOP);
+            tlsBuffers = null;
+        }
+    }
+
+    // Передача нового соединения в цикл событий (вызывается из потока приема)
+    void register(SocketChannel channel) {
+        pendingChannels.add(channel);
+        selector.wakeup();
+    }
+
+    // Запрос на запись исходящих данных соединения (вызывается из любого потока)
+    void requestWrite(NioConnection connection) {
+        NioConnection next;
+        do {
+            next = pendingWrites.get();
+            connection.nextPendingWrite = next;
+        } while (!pendingWrites.compareAndSet(next, connection));
+        if (writesRequested.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    // Немедленная запись без ожидания конца окна объединения (вызывается из любого потока)
+    void flushWritesNow() {
+        if (COALESCE_NANOS > 0 && flushNow.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    // Пул буферов ввода-вывода соединений этого цикла (только из потока цикла)
+    BufferPool buffers() {
+        return buffers;
+    }
+
+    // Пул буферов зашифрованных данных соединений TLS этого цикла (только из потока цикла)
+    BufferPool tlsBuffers() {
+        return tlsBuffers;
+    }
+
+    // Выполнение задачи в потоке цикла событий (вызывается из любого потока)
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                selector.select(selectTimeoutMillis());
+                registerPendingChannels();
+                enablePendingWrites();
+                runTasks();
+                closeExpiredHandshakes();
+
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    NioConnection connection = (NioConnection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            connection.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.onWritable();
+                        }
+                    } catch (IOException e) {
+                        connection.closeNow();
+                    } catch (RuntimeException e) {
+                        connection.fail(e);
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                ServerLog.warn("event_loop_error", "loop", id, "error", e);
+            }
+        }
+    }
+
+    // Регистрация новых соединений в селекторе этого цикла
+    private void registerPendingChannels() {
+        SocketChannel channel;
+        while ((channel = pendingChannels.poll()) != null) {
+            try {
+                NioConnection connection = new NioConnection(this, channel);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ, connection);
+                connection.setKey(key);
+                connection.handshakeDeadline = System.nanoTime() + HANDSHAKE_TIMEOUT_NANOS;
+                handshakes.add(connection);
+            } catch (ClosedChannelException e) {
+                ChatServer.decrementConnectedUsers();
+            } catch (IOException e) {
+                ServerLog.warn("connection_rejected", "reason", "setup", "remote", channel.socket().getInetAddress(), "error", e.getMessage());
+                ChatServer.decrementConnectedUsers();
+                try {
+                    channel.close();
+                } catch (IOException closeError) {
+                    closeError.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                ServerLog.warn("event_loop_task_failed", "loop", id, "error", e);
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Закрытие соединений, не завершивших рукопожатие в срок
+    private void closeExpiredHandshakes() {
+        long now = System.nanoTime();
+        NioConnection connection;
+        while ((connection = handshakes.peek()) != null) {
+            if (connection.awaitingHello()) {
+                if (now - connection.handshakeDeadline < 0) {
+                    return;
+                }
+                ServerLog.warn("connection_rejected", "reason", "handshake_timeout", "remote", connection.remoteAddress());
+                ChatMetrics.connectionsRejected.increment();
+                connection.closeNow();
+            }
+            handshakes.poll();
+        }
+    }
+
+    // Ожидание селектора: до конца окна объединения, если оно открыто, или до срока рукопожатия первого
+    // ожидающего соединения (0 - без ограничения). Точность select - миллисекунда, поэтому окно меньше 1 мс
+    // в режиме NIO округляется вверх
+    private long selectTimeoutMillis() {
+        long deadline = writeDeadline;
+        NioConnection first = handshakes.peek();
+        if (first != null && (deadline == 0 || first.handshakeDeadline - deadline < 0)) {
+            deadline = first.handshakeDeadline;
+        }
+        if (deadline == 0) {
+            return 0;
+        }
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+    }
+
+    // Подписка на готовность к записи для соединений, у которых появились исходящие данные.
+    // При объединении первый запрос открывает окно, а подписка выполняется по его окончании
+    private void enablePendingWrites() {
+        if (COALESCE_NANOS > 0 && !flushNow.getAndSet(false)) {
+            if (writeDeadline == 0) {
+                if (pendingWrites.get() == null) {
+                    return;
+                }
+                writeDeadline = System.nanoTime() + COALESCE_NANOS;
+            }
+            if (System.nanoTime() - writeDeadline < 0) {
+                return;
+            }
+        }
+        writeDeadline = 0;
+        writesRequested.set(false);
+        NioConnection connection = pendingWrites.getAndSet(null);
+        while (connection != null) {
+            NioConnection next = connection.nextPendingWrite;
+            connection.nextPendingWrite = null;
+            connection.enableWriteInterest();
+            connection = next;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package ru.yaga;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Ограниченная очередь исходящих кадров одного клиента: много производителей (рассылающие потоки),
+// один потребитель (поток записи соединения). Объем ограничен в байтах, при переполнении
+// применяется политика медленного получателя из ServerConfig. Кадры хранятся в кольцевом массиве
+// под блокировкой, а не в связной очереди, чтобы постановка кадра не создавала узел на каждого получателя.
+// Очередь владеет ссылками на свои кадры (SharedFrame) и отпускает их при отбрасывании и очистке
+class OutboundQueue {
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int SHRINK_CAPACITY = 1024; // Опустевший массив больше этого заменяется начальным
+
+    // Политика для клиента, который не успевает читать
+    enum SlowConsumerPolicy {
+        DROP_OLDEST, // Отбрасывать самые старые кадры, пока новый не поместится
+        DISCONNECT   // Разрывать соединение
+    }
+
+    private SharedFrame[] frames = new SharedFrame[INITIAL_CAPACITY]; // Кольцо [head, head + count), под блокировкой this
+    private int head;
+    private int count;
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final AtomicInteger depth = new AtomicInteger();
+    private final long maxQueuedBytes;
+    private final SlowConsumerPolicy policy;
+    // Кадр, скопированный в буфер записи не целиком (fill), и число скопированных байт. Только потребитель
+    private SharedFrame partial;
+    private int partialOffset;
+
+    OutboundQueue() {
+        this(ServerConfig.MAX_QUEUED_BYTES, ServerConfig.SLOW_CONSUMER_POLICY);
+    }
+
+    OutboundQueue(long maxQueuedBytes, SlowConsumerPolicy policy) {
+        this.maxQueuedBytes = maxQueuedBytes;
+        this.policy = policy;
+    }
+
+    // Добавление кадра вместе со ссылкой на него. Возвращает false, если клиента нужно отключить
+    // как медленного (ссылка тогда отпускается)
+    boolean offer(SharedFrame frame) {
+        long total = queuedBytes.addAndGet(frame.length);
+        if (total > maxQueuedBytes) {
+            if (policy == SlowConsumerPolicy.DISCONNECT) {
+                queuedBytes.addAndGet(-frame.length);
+                frame.release();
+                return false;
+            }
+            // Отбрасываем старые кадры, пока новый не поместится
+            while (queuedBytes.get() > maxQueuedBytes) {
+                SharedFrame dropped = poll();
+                if (dropped == null) {
+                    break;
+                }
+                dropped.release();
+                ChatMetrics.framesDropped.increment();
+            }
+        }
+        synchronized (this) {
+            if (count == frames.length) {
+                SharedFrame[] larger = new SharedFrame[frames.length * 2];
+                for (int i = 0; i < count; i++) {
+                    larger[i] = frames[(head + i) & (frames.length - 1)];
+                }
+                frames = larger;
+                head = 0;
+            }
+            frames[(head + count) & (frames.length - 1)] = frame;
+            count++;
+        }
+        ChatMetrics.onEnqueued(frame.length, depth.incrementAndGet());
+        return true;
+    }
+
+    // Извлечение следующего кадра вместе со ссылкой на него или null, если очередь пуста. Вызывается
+    // потоком записи, а при политике DROP_OLDEST - и производителями
+    SharedFrame poll() {
+        SharedFrame frame;
+        synchronized (this) {
+            frame = take();
+        }
+        if (frame != null) {
+            onDequeued(1, frame.length);
+        }
+        return frame;
+    }
+
+    // Копирование кадров в буфер записи, пока в нем есть место. Кадр, не поместившийся целиком,
+    // продолжается при следующем вызове, а отпускается, когда скопирован полностью. Кадры берутся
+    // под одной блокировкой на весь вызов, а не на каждый кадр.
+    // Возвращает число полностью скопированных кадров. Вызывается только потоком записи
+    int fill(ByteBuffer out) {
+        int completed = 0;
+        int taken = 0;
+        long takenBytes = 0;
+        synchronized (this) {
+            while (out.hasRemaining()) {
+                if (partial == null) {
+                    partial = take();
+                    if (partial == null) {
+                        break;
+                    }
+                    partialOffset = 0;
+                    taken++;
+                    takenBytes += partial.length;
+                }
+                int bytes = Math.min(out.remaining(), partial.length - partialOffset);
+                out.put(partial.bytes, partialOffset, bytes);
+                partialOffset += bytes;
+                if (partialOffset == partial.length) {
+                    partial.release();
+                    partial = null;
+                    completed++;
+                }
+            }
+        }
+        if (taken > 0) {
+            onDequeued(taken, takenBytes);
+        }
+        return completed;
+    }
+
+    // Снятие кадра с головы кольца. Вызывается под блокировкой this
+    private SharedFrame take() {
+        if (count == 0) {
+            return null;
+        }
+        SharedFrame frame = frames[head];
+        frames[head] = null;
+        head = (head + 1) & (frames.length - 1);
+        if (--count == 0 && frames.length > SHRINK_CAPACITY) {
+            frames = new SharedFrame[INITIAL_CAPACITY]; // Память после всплеска не удерживается
+            head = 0;
+        }
+        return frame;
+    }
+
+    private void onDequeued(int frameCount, long bytes) {
+        queuedBytes.addAndGet(-bytes);
+        depth.addAndGet(-frameCount);
+        ChatMetrics.onDequeued(frameCount, bytes);
+    }
+
+    // Пуста ли очередь, включая кадр, скопированный в буфер записи не целиком
+    boolean isEmpty() {
+        return partial == null && depth.get() == 0;
+    }
+
+    // Количество кадров в очереди
+    int depth() {
+        return depth.get();
+    }
+
+    // Объем кадров в очереди в байтах
+    long queuedBytes() {
+        return queuedBytes.get();
+    }
+
+    // Освобождение очереди при закрытии соединения, чтобы метрики не учитывали неотправленные кадры,
+    // а кадры из пула вернулись в него
+    void clear() {
+        SharedFrame frame;
+        while ((frame = poll()) != null) {
+            frame.release();
+        }
+        if (partial != null) {
+            partial.release();
+            partial = null;
+        }
+    }
+}
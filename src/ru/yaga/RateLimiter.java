@@ -0,0 +1,179 @@
+package ru.yaga;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+// Ограничение частоты сообщений (в штуках и байтах в секунду) по имени пользователя и по адресу клиента,
+// а также частоты подключений с одного адреса. Корзины хранятся в ConcurrentHashMap без общей блокировки:
+// соединение получает ссылки на свои корзины при рукопожатии, и проверка сообщения - несколько CAS.
+// Корзина имени сохраняется между переподключениями, поэтому переподключение не сбрасывает ограничение.
+// Неиспользуемые полные корзины удаляет фоновый поток
+final class RateLimiter {
+    private static final long SWEEP_INTERVAL_MS = 30_000;
+
+    // Результат проверки сообщения
+    enum Verdict {
+        ALLOWED,   // Сообщение обрабатывается
+        THROTTLED, // Сообщение отброшено, клиенту отправляется уведомление
+        DISCONNECT // Ограничение превышено слишком много раз подряд, соединение разрывается
+    }
+
+    private static final boolean USER_LIMITS = ServerConfig.USER_MESSAGES_PER_SECOND > 0 || ServerConfig.USER_BYTES_PER_SECOND > 0;
+    private static final boolean IP_LIMITS = ServerConfig.IP_MESSAGES_PER_SECOND > 0 || ServerConfig.IP_BYTES_PER_SECOND > 0;
+    private static final boolean CONNECTION_LIMITS = ServerConfig.IP_CONNECTIONS_PER_SECOND > 0;
+
+    private static final ConcurrentMap<String, Limits> users = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Limits> addresses = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, TokenBucket> connectionRates = new ConcurrentHashMap<>();
+
+    static {
+        if (USER_LIMITS || IP_LIMITS || CONNECTION_LIMITS) {
+            Thread sweeper = new Thread(RateLimiter::sweepLoop, "rate-limit-sweeper");
+            sweeper.setDaemon(true);
+            sweeper.start();
+        }
+    }
+
+    private RateLimiter() {
+    }
+
+    // Проверка частоты подключений с адреса в цикле приема
+    static boolean allowConnection(InetAddress address) {
+        if (!CONNECTION_LIMITS) {
+            return true;
+        }
+        return connectionRates.computeIfAbsent(address.getHostAddress(),
+                key -> new TokenBucket(ServerConfig.IP_CONNECTIONS_PER_SECOND, ServerConfig.IP_CONNECTION_BURST)).tryAcquire(1);
+    }
+
+    // Ограничения нового соединения после успешного рукопожатия. Парный вызов - release
+    static Client acquire(String username, InetAddress address) {
+        Limits user = USER_LIMITS ? retain(users, username, ServerConfig.USER_MESSAGES_PER_SECOND, ServerConfig.USER_MESSAGE_BURST,
+                ServerConfig.USER_BYTES_PER_SECOND, ServerConfig.USER_BYTE_BURST) : null;
+        Limits ip = IP_LIMITS ? retain(addresses, address.getHostAddress(), ServerConfig.IP_MESSAGES_PER_SECOND, ServerConfig.IP_MESSAGE_BURST,
+                ServerConfig.IP_BYTES_PER_SECOND, ServerConfig.IP_BYTE_BURST) : null;
+        return new Client(username, address.getHostAddress(), user, ip);
+    }
+
+    static void release(Client client) {
+        if (client.user != null) {
+            users.computeIfPresent(client.username, (key, limits) -> limits.release());
+        }
+        if (client.ip != null) {
+            addresses.computeIfPresent(client.address, (key, limits) -> limits.release());
+        }
+    }
+
+    private static Limits retain(ConcurrentMap<String, Limits> map, String key, long messagesPerSecond, long messageBurst,
+                                 long bytesPerSecond, long byteBurst) {
+        return map.compute(key, (k, limits) -> {
+            if (limits == null) {
+                limits = new Limits(messagesPerSecond, messageBurst, bytesPerSecond, byteBurst);
+            }
+            limits.connections++;
+            return limits;
+        });
+    }
+
+    // Удаление корзин без соединений, которые успели наполниться
+    private static void sweepLoop() {
+        while (true) {
+            try {
+                Thread.sleep(SWEEP_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            for (String key : users.keySet()) {
+                users.computeIfPresent(key, (k, limits) -> limits.isIdle() ? null : limits);
+            }
+            for (String key : addresses.keySet()) {
+                addresses.computeIfPresent(key, (k, limits) -> limits.isIdle() ? null : limits);
+            }
+            connectionRates.values().removeIf(TokenBucket::isFull);
+        }
+    }
+
+    // Корзины одного имени или адреса. connections изменяется только внутри compute для своего ключа
+    private static final class Limits {
+        final TokenBucket messages;
+        final TokenBucket bytes;
+        int connections;
+
+        Limits(long messagesPerSecond, long messageBurst, long bytesPerSecond, long byteBurst) {
+            this.messages = new TokenBucket(messagesPerSecond, messageBurst);
+            this.bytes = new TokenBucket(bytesPerSecond, byteBurst);
+        }
+
+        // Сообщение списывается со всех корзин или ни с одной
+        boolean tryAcquire(int frameBytes) {
+            if (!messages.tryAcquire(1)) {
+                return false;
+            }
+            if (!bytes.tryAcquire(frameBytes)) {
+                messages.refund(1);
+                return false;
+            }
+            return true;
+        }
+
+        void refund(int frameBytes) {
+            messages.refund(1);
+            bytes.refund(frameBytes);
+        }
+
+        Limits release() {
+            connections--;
+            return this;
+        }
+
+        boolean isIdle() {
+            return connections == 0 && messages.isFull() && bytes.isFull();
+        }
+    }
+
+    // Ограничения одного соединения. check вызывается только потоком чтения соединения
+    static final class Client {
+        private final String username;
+        private final String address;
+        private final Limits user; // null, если ограничение по имени отключено
+        private final Limits ip;   // null, если ограничение по адресу отключено
+        private int violations;    // Отклоненные сообщения подряд
+
+        private Client(String username, String address, Limits user, Limits ip) {
+            this.username = username;
+            this.address = address;
+            this.user = user;
+            this.ip = ip;
+        }
+
+        // Отклоненное сообщение не расходует лимиты: если адрес отклонил сообщение, маркеры возвращаются имени
+        Verdict check(int frameBytes) {
+            boolean allowed = user == null || user.tryAcquire(frameBytes);
+            if (allowed && ip != null && !ip.tryAcquire(frameBytes)) {
+                if (user != null) {
+                    user.refund(frameBytes);
+                }
+                allowed = false;
+            }
+            if (allowed) {
+                violations = 0;
+                return Verdict.ALLOWED;
+            }
+            violations++;
+            if (violations >= ServerConfig.RATE_LIMIT_DISCONNECT_AFTER) {
+                return Verdict.DISCONNECT;
+            }
+            return Verdict.THROTTLED;
+        }
+
+        // Первое отклонение в серии: клиенту отправляется одно уведомление, а не по одному на сообщение
+        boolean isFirstViolation() {
+            return violations == 1;
+        }
+
+        String address() {
+            return address;
+        }
+    }
+}
@@ -0,0 +1,877 @@
+package ru.yaga;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+// Полнотекстовый поиск по истории: инвертированный индекс "слово -> номера записей MessageStore".
+// Новые сообщения попадают в сегмент в памяти (поток журнала). Когда в нем набирается flushMessages
+// сообщений, он замораживается, а фоновый поток записывает его в неизменяемый файл сегмента
+// <первый номер>-<последний номер>.sidx и сливает по mergeFactor соседних сегментов одного уровня в один,
+// поэтому число файлов, просматриваемых запросом, растет логарифмически с объемом истории.
+// Номера в списке слова хранятся блоками по BLOCK разностей в varint с индексом блоков: проверка
+// наличия номера читает один блок, а не весь список. Отправитель и комната - служебные слова индекса;
+// время записей не убывает с номером (см. MessageStore.append), поэтому фильтр по времени - диапазон номеров.
+// При штатной остановке сегмент в памяти сохраняется в снимок сервера (ServerSnapshot); после перезапуска
+// сообщения, не попавшие ни в файлы сегментов, ни в снимок, индексируются заново из MessageStore
+final class SearchIndex {
+    private static final int MAGIC = 0x53494458; // "SIDX"
+    private static final String SUFFIX = ".sidx";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int BLOCK = 128; // Номеров в блоке списка
+    private static final int FOOTER_BYTES = 8 + 4 + 8 + 8 + 8 + 4;
+    private static final int MIN_TERM_CHARS = 2; // Более короткие слова не индексируются
+    private static final int MAX_TERM_CHARS = 32; // Более длинные обрезаются
+    private static final char FIELD = '\u0001'; // Начало служебного слова (в словах текста не встречается)
+    private static final int REINDEX_CHUNK = 4096;
+    private static final MemorySegment STOP = new MemorySegment(); // Признак остановки фонового потока
+
+    private final Path directory;
+    private final int flushMessages;
+    private final int mergeFactor;
+    private final long maxSegmentBytes;
+    private final BlockingQueue<MemorySegment> frozen = new LinkedBlockingQueue<>(); // Ожидают записи в файл
+    private final Set<String> scratch = new LinkedHashSet<>(); // Слова сообщения (только поток журнала)
+    private volatile State state; // Сегменты для поиска; заменяется целиком под блокировкой this
+    private long lastSeq = -1; // Последний проиндексированный номер (только поток журнала)
+    private Thread worker; // Фоновый поток записи и слияния
+    private volatile boolean closing; // Остановка: замороженные сегменты записываются без слияний
+
+    // Набор сегментов, видимый запросу: файлы и замороженные сегменты от старых к новым и текущий сегмент в памяти
+    private static final class State {
+        final List<Segment> segments;
+        final MemorySegment active;
+
+        State(List<Segment> segments, MemorySegment active) {
+            this.segments = segments;
+            this.active = active;
+        }
+    }
+
+    private SearchIndex(Path directory, int flushMessages, int mergeFactor, long maxSegmentBytes) {
+        this.directory = directory;
+        this.flushMessages = flushMessages;
+        this.mergeFactor = mergeFactor;
+        this.maxSegmentBytes = maxSegmentBytes;
+    }
+
+    // Открытие индекса в каталоге directory: загрузка файлов сегментов, индексирование записей истории,
+    // которых в них нет, и запуск фонового потока записи и слияния
+    static SearchIndex open(Path directory, MessageStore history, int flushMessages, int mergeFactor, long maxSegmentBytes) throws IOException {
+        return open(directory, history, flushMessages, mergeFactor, maxSegmentBytes, null);
+    }
+
+    // То же с сегментом в памяти из снимка (см. snapshot; null - без снимка). Снимок используется, только если
+    // он продолжает файлы сегментов и не опережает историю, иначе эти сообщения индексируются заново
+    static SearchIndex open(Path directory, MessageStore history, int flushMessages, int mergeFactor, long maxSegmentBytes,
+                            ByteBuffer snapshot) throws IOException {
+        Files.createDirectories(directory);
+        SearchIndex index = new SearchIndex(directory, flushMessages, mergeFactor, maxSegmentBytes);
+        List<Segment> segments = index.loadSegments();
+        for (Segment segment : segments) {
+            index.lastSeq = Math.max(index.lastSeq, segment.maxSeq());
+        }
+        long nextSeq = history.nextSeq();
+        long fromSeq = Math.max(index.lastSeq + 1, history.firstSeq());
+
+        MemorySegment active = new MemorySegment();
+        if (snapshot != null) {
+            try {
+                MemorySegment restored = MemorySegment.read(snapshot);
+                if (restored.minSeq() == fromSeq && restored.maxSeq() < nextSeq) {
+                    active = restored;
+                    index.lastSeq = restored.maxSeq();
+                    fromSeq = restored.maxSeq() + 1;
+                }
+            } catch (RuntimeException e) {
+                ServerLog.warn("search_snapshot_rejected", "error", e);
+            }
+        }
+        index.state = new State(segments, active);
+
+        for (long seq = fromSeq; seq < nextSeq; seq += REINDEX_CHUNK) {
+            List<byte[]> frames = history.readRange(seq, Math.min(seq + REINDEX_CHUNK, nextSeq));
+            for (int i = 0; i < frames.size(); i++) {
+                byte[] frame = frames.get(i);
+                Frame message = FrameCodec.decode(frame, FrameCodec.LENGTH_BYTES, frame.length - FrameCodec.LENGTH_BYTES);
+                index.add(seq + i, message.name, message.room, message.body);
+            }
+        }
+
+        index.worker = new Thread(index::backgroundLoop, "search-index");
+        index.worker.setDaemon(true);
+        index.worker.start();
+        return index;
+    }
+
+    // Загрузка файлов сегментов. Незавершенные временные файлы и сегменты, целиком покрытые
+    // результатом слияния (сбой между записью результата и удалением исходных), удаляются
+    private List<Segment> loadSegments() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(TEMP_SUFFIX)) {
+                    Files.delete(file);
+                } else if (name.endsWith(SUFFIX)) {
+                    files.add(file);
+                }
+            }
+        }
+        files.sort(null); // Имена дополнены нулями: порядок имен совпадает с порядком номеров
+        List<Segment> segments = new ArrayList<>();
+        for (Path file : files) {
+            DiskSegment segment = DiskSegment.open(file);
+            DiskSegment previous = segments.isEmpty() ? null : (DiskSegment) segments.get(segments.size() - 1);
+            if (previous != null && previous.maxSeq() >= segment.minSeq()) {
+                // Пересечение диапазонов: остается более широкий сегмент
+                DiskSegment covered = segment.maxSeq() - segment.minSeq() > previous.maxSeq() - previous.minSeq() ? previous : segment;
+                Files.delete(covered.file);
+                if (covered == previous) {
+                    segments.set(segments.size() - 1, segment);
+                }
+                continue;
+            }
+            segments.add(segment);
+        }
+        return segments;
+    }
+
+    // Индексирование общего сообщения с номером seq. Вызывается только потоком журнала, номера возрастают
+    void add(long seq, String sender, String room, String text) {
+        if (seq <= lastSeq) {
+            return;
+        }
+        scratch.clear();
+        tokenize(text, scratch);
+        scratch.add(senderTerm(sender));
+        scratch.add(roomTerm(room));
+        MemorySegment active = state.active;
+        active.add(seq, scratch);
+        lastSeq = seq;
+        if (active.messages() >= flushMessages) {
+            // Заполненный сегмент остается доступным поиску, пока фоновый поток не заменит его файлом
+            synchronized (this) {
+                List<Segment> segments = new ArrayList<>(state.segments);
+                segments.add(active);
+                state = new State(segments, new MemorySegment());
+            }
+            frozen.add(active);
+        }
+    }
+
+    // Остановка фонового потока: замороженные сегменты записываются в файлы, слияния откладываются
+    // до следующего запуска. Вызывается после остановки журнала; ждет не дольше timeoutMillis
+    void close(long timeoutMillis) throws InterruptedException {
+        closing = true;
+        frozen.add(STOP);
+        worker.join(timeoutMillis);
+    }
+
+    // Сегмент в памяти для снимка сервера (после close) или null, если он пуст
+    ByteBuffer snapshot() {
+        MemorySegment active = state.active;
+        return active.messages() > 0 ? ByteBuffer.wrap(active.toBytes()) : null;
+    }
+
+    // Номера записей, содержащих все слова terms, из диапазона [fromSeq, toSeq) от новых к старым, не более limit
+    long[] search(List<String> terms, long fromSeq, long toSeq, int limit) {
+        State current = state;
+        long[] found = new long[limit];
+        int count = searchSegment(current.active, terms, fromSeq, toSeq, found, 0);
+        for (int i = current.segments.size() - 1; i >= 0 && count < limit; i--) {
+            count = searchSegment(current.segments.get(i), terms, fromSeq, toSeq, found, count);
+        }
+        return Arrays.copyOf(found, count);
+    }
+
+    // Поиск в одном сегменте: номера самого короткого списка перебираются от новых к старым
+    // и проверяются по остальным спискам
+    private static int searchSegment(Segment segment, List<String> terms, long fromSeq, long toSeq, long[] found, int count) {
+        if (segment.messages() == 0 || segment.maxSeq() < fromSeq || segment.minSeq() >= toSeq) {
+            return count;
+        }
+        List<Postings> lists = new ArrayList<>(terms.size());
+        for (String term : terms) {
+            Postings postings = segment.postings(term);
+            if (postings == null) {
+                return count;
+            }
+            lists.add(postings);
+        }
+        lists.sort((a, b) -> Integer.compare(a.size(), b.size()));
+        Postings lead = lists.get(0);
+        long[] block = new long[BLOCK];
+        for (int b = lead.blockBefore(toSeq); b >= 0; b--) {
+            int n = lead.decodeBlock(b, block);
+            for (int i = n - 1; i >= 0; i--) {
+                long seq = block[i];
+                if (seq >= toSeq) {
+                    continue;
+                }
+                if (seq < fromSeq) {
+                    return count;
+                }
+                if (containsAll(lists, seq)) {
+                    found[count++] = seq;
+                    if (count == found.length) {
+                        return count;
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    private static boolean containsAll(List<Postings> lists, long seq) {
+        for (int i = 1; i < lists.size(); i++) {
+            if (!lists.get(i).contains(seq)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Фоновый поток: запись замороженных сегментов в файлы и слияние
+    private void backgroundLoop() {
+        while (true) {
+            try {
+                MemorySegment segment = frozen.take();
+                if (segment == STOP) {
+                    return;
+                }
+                DiskSegment written = DiskSegment.open(writeSegment(segment));
+                replace(Collections.singletonList(segment), written);
+                if (!closing) {
+                    mergeNewest();
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                // Сегмент остается в памяти и доступен поиску; после перезапуска он будет построен заново
+                ServerLog.warn("search_index_write_failed", "error", e);
+            }
+        }
+    }
+
+    // Слияние mergeFactor самых новых файлов сегментов, если они одного уровня (числа сообщений
+    // различаются не более чем в mergeFactor раз), с повтором для следующего уровня
+    private void mergeNewest() throws IOException {
+        while (true) {
+            List<DiskSegment> candidates = new ArrayList<>();
+            for (Segment segment : state.segments) {
+                if (segment instanceof DiskSegment) {
+                    candidates.add((DiskSegment) segment);
+                }
+            }
+            if (candidates.size() < mergeFactor) {
+                return;
+            }
+            List<DiskSegment> inputs = candidates.subList(candidates.size() - mergeFactor, candidates.size());
+            int level = level(inputs.get(0).messages());
+            long bytes = 0;
+            for (DiskSegment input : inputs) {
+                bytes += input.bytes();
+                if (level(input.messages()) != level) {
+                    return;
+                }
+            }
+            if (bytes > maxSegmentBytes) {
+                return;
+            }
+            DiskSegment merged = DiskSegment.open(mergeSegments(inputs));
+            replace(new ArrayList<>(inputs), merged);
+            for (DiskSegment input : inputs) {
+                Files.deleteIfExists(input.file); // Отображение в память остается действительным для текущих запросов
+            }
+        }
+    }
+
+    private int level(long messages) {
+        int level = 0;
+        for (long m = messages / flushMessages; m >= mergeFactor; m /= mergeFactor) {
+            level++;
+        }
+        return level;
+    }
+
+    // Замена соседних сегментов old одним сегментом replacement
+    private synchronized void replace(List<? extends Segment> old, Segment replacement) {
+        List<Segment> segments = new ArrayList<>(state.segments);
+        int position = segments.indexOf(old.get(0));
+        segments.removeAll(old);
+        segments.add(position, replacement);
+        state = new State(segments, state.active);
+    }
+
+    private Path writeSegment(MemorySegment segment) throws IOException {
+        String[] terms = segment.terms();
+        Arrays.sort(terms);
+        try (SegmentWriter writer = new SegmentWriter(directory, segment.minSeq(), segment.maxSeq(), segment.messages())) {
+            long[] block = new long[BLOCK];
+            for (String term : terms) {
+                writer.beginTerm(term);
+                Postings postings = segment.postings(term);
+                for (int b = 0; b < postings.blocks(); b++) {
+                    int n = postings.decodeBlock(b, block);
+                    for (int i = 0; i < n; i++) {
+                        writer.add(block[i]);
+                    }
+                }
+                writer.endTerm();
+            }
+            return writer.finish();
+        }
+    }
+
+    // Слияние соседних сегментов: объединение словарей, списки номеров соединяются в порядке сегментов
+    private Path mergeSegments(List<DiskSegment> inputs) throws IOException {
+        long messages = 0;
+        for (DiskSegment input : inputs) {
+            messages += input.messages();
+        }
+        int[] positions = new int[inputs.size()];
+        try (SegmentWriter writer = new SegmentWriter(directory, inputs.get(0).minSeq(), inputs.get(inputs.size() - 1).maxSeq(), messages)) {
+            long[] block = new long[BLOCK];
+            while (true) {
+                String term = null;
+                for (int i = 0; i < inputs.size(); i++) {
+                    if (positions[i] < inputs.get(i).terms.length) {
+                        String candidate = inputs.get(i).terms[positions[i]];
+                        if (term == null || candidate.compareTo(term) < 0) {
+                            term = candidate;
+                        }
+                    }
+                }
+                if (term == null) {
+                    return writer.finish();
+                }
+                writer.beginTerm(term);
+                for (int i = 0; i < inputs.size(); i++) {
+                    DiskSegment input = inputs.get(i);
+                    if (positions[i] < input.terms.length && input.terms[positions[i]].equals(term)) {
+                        Postings postings = input.postingsAt(positions[i]++);
+                        for (int b = 0; b < postings.blocks(); b++) {
+                            int n = postings.decodeBlock(b, block);
+                            for (int j = 0; j < n; j++) {
+                                writer.add(block[j]);
+                            }
+                        }
+                    }
+                }
+                writer.endTerm();
+            }
+        }
+    }
+
+    // Разбиение текста на слова: последовательности букв и цифр в нижнем регистре, "ё" равна "е"
+    static void tokenize(String text, Collection<String> terms) {
+        StringBuilder token = new StringBuilder();
+        for (int i = 0; i <= text.length(); i++) {
+            char c = i < text.length() ? text.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                c = Character.toLowerCase(c);
+                token.append(c == 'ё' ? 'е' : c);
+            } else if (token.length() > 0) {
+                if (token.length() >= MIN_TERM_CHARS) {
+                    terms.add(token.length() > MAX_TERM_CHARS ? token.substring(0, MAX_TERM_CHARS) : token.toString());
+                }
+                token.setLength(0);
+            }
+        }
+    }
+
+    static String senderTerm(String sender) {
+        return FIELD + "u" + sender.toLowerCase();
+    }
+
+    static String roomTerm(String room) {
+        return FIELD + "r" + room;
+    }
+
+    // Поисковый запрос клиента: слова, которые должны встретиться в сообщении, и фильтры
+    // "from:имя", "since:2024-01-31" и "until:2024-01-31" (даты включительно, по часовому поясу сервера)
+    static final class Query {
+        final List<String> terms = new ArrayList<>(); // Слова текста и служебные слова фильтров
+        long since; // Начало диапазона времени, мс (0 - без ограничения)
+        long until = Long.MAX_VALUE; // Конец диапазона времени (не включая)
+        boolean selective; // Есть хотя бы одно слово или отправитель: запрос не перебирает всю комнату
+
+        // Разбор запроса в комнате room. Неверная дата - DateTimeParseException
+        static Query parse(String room, String text) {
+            Query query = new Query();
+            Set<String> terms = new LinkedHashSet<>();
+            for (String part : text.trim().split("\\s+")) {
+                if (part.startsWith("from:") && part.length() > "from:".length()) {
+                    terms.add(senderTerm(part.substring("from:".length())));
+                } else if (part.startsWith("since:")) {
+                    query.since = startOfDay(LocalDate.parse(part.substring("since:".length())));
+                } else if (part.startsWith("until:")) {
+                    query.until = startOfDay(LocalDate.parse(part.substring("until:".length())).plusDays(1));
+                } else {
+                    tokenize(part, terms);
+                }
+            }
+            query.selective = !terms.isEmpty();
+            terms.add(roomTerm(room));
+            query.terms.addAll(terms);
+            return query;
+        }
+
+        private static long startOfDay(LocalDate date) {
+            return date.atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        }
+    }
+
+    // Сегмент индекса: диапазон номеров записей и списки номеров по словам
+    private interface Segment {
+        long minSeq();
+
+        long maxSeq();
+
+        long messages();
+
+        // Список номеров слова или null, если слова в сегменте нет
+        Postings postings(String term);
+    }
+
+    // Возрастающий список номеров записей одного слова, разбитый на блоки по BLOCK номеров.
+    // Объект создается на один запрос, поэтому хранит последний прочитанный блок без синхронизации
+    private abstract static class Postings {
+        private final long[] cached = new long[BLOCK];
+        private int cachedBlock = -1;
+        private int cachedCount;
+
+        abstract int size();
+
+        abstract long firstInBlock(int block);
+
+        // Чтение блока в target; возвращает число номеров в нем
+        abstract int decodeBlock(int block, long[] target);
+
+        final int blocks() {
+            return (size() + BLOCK - 1) / BLOCK;
+        }
+
+        // Последний блок, который может содержать номера меньше seq (-1 - таких нет)
+        final int blockBefore(long seq) {
+            int low = 0;
+            int high = blocks() - 1;
+            int result = -1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (firstInBlock(mid) < seq) {
+                    result = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return result;
+        }
+
+        final boolean contains(long seq) {
+            int block = blockBefore(seq + 1);
+            if (block < 0) {
+                return false;
+            }
+            if (block != cachedBlock) {
+                cachedCount = decodeBlock(block, cached);
+                cachedBlock = block;
+            }
+            return Arrays.binarySearch(cached, 0, cachedCount, seq) >= 0;
+        }
+    }
+
+    // Сегмент в памяти, пополняемый потоком журнала. Запрос видит списки на момент обращения:
+    // массив списка только дополняется, а при росте заменяется копией
+    private static final class MemorySegment implements Segment {
+        // Растущий массив номеров одного слова
+        private static final class LongList {
+            long[] values = new long[4];
+            int size;
+        }
+
+        private final Map<String, LongList> lists = new HashMap<>();
+        private long minSeq = -1;
+        private long maxSeq = -1;
+        private long messages;
+
+        synchronized void add(long seq, Collection<String> terms) {
+            if (minSeq < 0) {
+                minSeq = seq;
+            }
+            maxSeq = seq;
+            messages++;
+            for (String term : terms) {
+                LongList list = lists.computeIfAbsent(term, t -> new LongList());
+                if (list.size == list.values.length) {
+                    list.values = Arrays.copyOf(list.values, list.size * 2);
+                }
+                list.values[list.size++] = seq;
+            }
+        }
+
+        synchronized String[] terms() {
+            return lists.keySet().toArray(new String[0]);
+        }
+
+        // Запись для снимка: [long первый номер][long последний][long сообщений][int слов], затем для каждого
+        // слова [short длина][слово UTF-8][int число номеров][long первый номер][разности номеров в varint]
+        synchronized byte[] toBytes() {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                out.writeLong(minSeq);
+                out.writeLong(maxSeq);
+                out.writeLong(messages);
+                out.writeInt(lists.size());
+                for (Map.Entry<String, LongList> entry : lists.entrySet()) {
+                    byte[] term = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                    LongList list = entry.getValue();
+                    out.writeShort(term.length);
+                    out.write(term);
+                    out.writeInt(list.size);
+                    out.writeLong(list.values[0]);
+                    for (int i = 1; i < list.size; i++) {
+                        long delta = list.values[i] - list.values[i - 1];
+                        while ((delta & ~0x7FL) != 0) {
+                            out.writeByte((int) (delta & 0x7F) | 0x80);
+                            delta >>>= 7;
+                        }
+                        out.writeByte((int) delta);
+                    }
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e); // Запись в память
+            }
+            return bytes.toByteArray();
+        }
+
+        static MemorySegment read(ByteBuffer in) {
+            MemorySegment segment = new MemorySegment();
+            segment.minSeq = in.getLong();
+            segment.maxSeq = in.getLong();
+            segment.messages = in.getLong();
+            int terms = in.getInt();
+            for (int t = 0; t < terms; t++) {
+                byte[] term = new byte[in.getShort() & 0xFFFF];
+                in.get(term);
+                LongList list = new LongList();
+                list.size = in.getInt();
+                list.values = new long[Math.max(4, list.size)];
+                long value = in.getLong();
+                list.values[0] = value;
+                for (int i = 1; i < list.size; i++) {
+                    long delta = 0;
+                    int shift = 0;
+                    byte b;
+                    do {
+                        b = in.get();
+                        delta |= (long) (b & 0x7F) << shift;
+                        shift += 7;
+                    } while (b < 0);
+                    value += delta;
+                    list.values[i] = value;
+                }
+                segment.lists.put(new String(term, StandardCharsets.UTF_8), list);
+            }
+            return segment;
+        }
+
+        @Override
+        public synchronized long minSeq() {
+            return minSeq;
+        }
+
+        @Override
+        public synchronized long maxSeq() {
+            return maxSeq;
+        }
+
+        @Override
+        public synchronized long messages() {
+            return messages;
+        }
+
+        @Override
+        public synchronized Postings postings(String term) {
+            LongList list = lists.get(term);
+            return list == null ? null : new ArrayPostings(list.values, list.size);
+        }
+    }
+
+    private static final class ArrayPostings extends Postings {
+        private final long[] values;
+        private final int size;
+
+        ArrayPostings(long[] values, int size) {
+            this.values = values;
+            this.size = size;
+        }
+
+        @Override
+        int size() {
+            return size;
+        }
+
+        @Override
+        long firstInBlock(int block) {
+            return values[block * BLOCK];
+        }
+
+        @Override
+        int decodeBlock(int block, long[] target) {
+            int from = block * BLOCK;
+            int count = Math.min(BLOCK, size - from);
+            System.arraycopy(values, from, target, 0, count);
+            return count;
+        }
+    }
+
+    // Файл сегмента: списки слов, словарь и завершающий блок
+    // [long смещение словаря][int число слов][long первый номер][long последний номер][long число сообщений][int MAGIC].
+    // Список слова: блоки разностей номеров в varint, затем индекс блоков [long первый номер][int смещение блока].
+    // Словарь (слова по возрастанию): [short длина][слово UTF-8][int число номеров][int смещение индекса блоков]
+    private static final class DiskSegment implements Segment {
+        final Path file;
+        final String[] terms;
+        private final int[] counts;
+        private final int[] indexOffsets;
+        private final MappedByteBuffer data;
+        private final long minSeq;
+        private final long maxSeq;
+        private final long messages;
+
+        private DiskSegment(Path file, MappedByteBuffer data, String[] terms, int[] counts, int[] indexOffsets,
+                            long minSeq, long maxSeq, long messages) {
+            this.file = file;
+            this.data = data;
+            this.terms = terms;
+            this.counts = counts;
+            this.indexOffsets = indexOffsets;
+            this.minSeq = minSeq;
+            this.maxSeq = maxSeq;
+            this.messages = messages;
+        }
+
+        static DiskSegment open(Path file) throws IOException {
+            MappedByteBuffer data;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            int footer = data.capacity() - FOOTER_BYTES;
+            if (footer < 0 || data.getInt(footer + FOOTER_BYTES - 4) != MAGIC) {
+                throw new IOException("Поврежден файл поискового индекса: " + file);
+            }
+            int dictionary = (int) data.getLong(footer);
+            int termCount = data.getInt(footer + 8);
+            String[] terms = new String[termCount];
+            int[] counts = new int[termCount];
+            int[] indexOffsets = new int[termCount];
+            ByteBuffer reader = data.duplicate();
+            reader.position(dictionary);
+            for (int i = 0; i < termCount; i++) {
+                byte[] bytes = new byte[reader.getShort() & 0xFFFF];
+                reader.get(bytes);
+                terms[i] = new String(bytes, StandardCharsets.UTF_8);
+                counts[i] = reader.getInt();
+                indexOffsets[i] = reader.getInt();
+            }
+            return new DiskSegment(file, data, terms, counts, indexOffsets,
+                    data.getLong(footer + 12), data.getLong(footer + 20), data.getLong(footer + 28));
+        }
+
+        long bytes() {
+            return data.capacity();
+        }
+
+        @Override
+        public long minSeq() {
+            return minSeq;
+        }
+
+        @Override
+        public long maxSeq() {
+            return maxSeq;
+        }
+
+        @Override
+        public long messages() {
+            return messages;
+        }
+
+        @Override
+        public Postings postings(String term) {
+            int i = Arrays.binarySearch(terms, term);
+            return i >= 0 ? postingsAt(i) : null;
+        }
+
+        Postings postingsAt(int i) {
+            return new DiskPostings(data, counts[i], indexOffsets[i]);
+        }
+    }
+
+    private static final class DiskPostings extends Postings {
+        private final ByteBuffer data;
+        private final int size;
+        private final int indexOffset;
+
+        DiskPostings(ByteBuffer data, int size, int indexOffset) {
+            this.data = data;
+            this.size = size;
+            this.indexOffset = indexOffset;
+        }
+
+        @Override
+        int size() {
+            return size;
+        }
+
+        @Override
+        long firstInBlock(int block) {
+            return data.getLong(indexOffset + block * 12);
+        }
+
+        @Override
+        int decodeBlock(int block, long[] target) {
+            int count = Math.min(BLOCK, size - block * BLOCK);
+            long value = firstInBlock(block);
+            int position = data.getInt(indexOffset + block * 12 + 8);
+            target[0] = value;
+            for (int i = 1; i < count; i++) {
+                long delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = data.get(position++);
+                    delta |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                value += delta;
+                target[i] = value;
+            }
+            return count;
+        }
+    }
+
+    // Последовательная запись файла сегмента во временный файл с переименованием по завершении
+    private static final class SegmentWriter implements AutoCloseable {
+        private final Path directory;
+        private final Path temp;
+        private final DataOutputStream out;
+        private final long minSeq;
+        private final long maxSeq;
+        private final long messages;
+        private final List<String> terms = new ArrayList<>();
+        private final List<int[]> entries = new ArrayList<>(); // Число номеров и смещение индекса блоков слова
+        private final List<long[]> blockIndex = new ArrayList<>(); // Первый номер и смещение каждого блока слова
+        private long position;
+        private long previous;
+        private int count;
+        private boolean finished;
+
+        SegmentWriter(Path directory, long minSeq, long maxSeq, long messages) throws IOException {
+            this.directory = directory;
+            this.temp = directory.resolve(String.format("%020d-%020d", minSeq, maxSeq) + SUFFIX + TEMP_SUFFIX);
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp.toFile()), 64 * 1024));
+            this.minSeq = minSeq;
+            this.maxSeq = maxSeq;
+            this.messages = messages;
+        }
+
+        void beginTerm(String term) {
+            terms.add(term);
+            blockIndex.clear();
+            count = 0;
+        }
+
+        void add(long seq) throws IOException {
+            if (count % BLOCK == 0) {
+                blockIndex.add(new long[]{seq, position});
+            } else {
+                long delta = seq - previous;
+                while ((delta & ~0x7FL) != 0) {
+                    out.writeByte((int) (delta & 0x7F) | 0x80);
+                    position++;
+                    delta >>>= 7;
+                }
+                out.writeByte((int) delta);
+                position++;
+            }
+            previous = seq;
+            count++;
+        }
+
+        void endTerm() throws IOException {
+            entries.add(new int[]{count, checkedOffset(position)});
+            for (long[] block : blockIndex) {
+                out.writeLong(block[0]);
+                out.writeInt((int) block[1]);
+            }
+            position += blockIndex.size() * 12L;
+        }
+
+        Path finish() throws IOException {
+            long dictionary = position;
+            for (int i = 0; i < terms.size(); i++) {
+                byte[] bytes = terms.get(i).getBytes(StandardCharsets.UTF_8);
+                out.writeShort(bytes.length);
+                out.write(bytes);
+                out.writeInt(entries.get(i)[0]);
+                out.writeInt(entries.get(i)[1]);
+                position += 2 + bytes.length + 8;
+            }
+            out.writeLong(dictionary);
+            out.writeInt(terms.size());
+            out.writeLong(minSeq);
+            out.writeLong(maxSeq);
+            out.writeLong(messages);
+            out.writeInt(MAGIC);
+            checkedOffset(position + FOOTER_BYTES);
+            out.close();
+            finished = true;
+            Path file = directory.resolve(String.format("%020d-%020d", minSeq, maxSeq) + SUFFIX);
+            return Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        // Файл отображается в память целиком, поэтому смещения должны помещаться в int
+        private static int checkedOffset(long offset) throws IOException {
+            if (offset > Integer.MAX_VALUE) {
+                throw new IOException("Сегмент поискового индекса больше 2 ГБ");
+            }
+            return (int) offset;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!finished) {
+                out.close();
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+}
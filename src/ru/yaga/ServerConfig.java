@@ -0,0 +1,127 @@
+package ru.yaga;
+
+// Настройки сервера, задаваемые при запуске системными свойствами, например:
+// java -Dchat.port=9000 -Dchat.maxUsers=20000 ru.yaga.ChatServer virtual
+final class ServerConfig {
+    // Режим работы: "blocking", "nio" или "virtual". Первый аргумент командной строки имеет приоритет
+    static final String MODE = System.getProperty("chat.mode", "blocking");
+    // Порт для прослушивания подключений
+    static final int PORT = Integer.getInteger("chat.port", 8082);
+    // Максимальное количество одновременно подключенных пользователей
+    static final int MAX_USERS = Integer.getInteger("chat.maxUsers", 5);
+    // Количество циклов событий в режиме NIO (по умолчанию - по одному на ядро)
+    static final int NIO_THREADS = Integer.getInteger("chat.nioThreads", Runtime.getRuntime().availableProcessors());
+    // Сколько ждать от нового клиента кадр HELLO (и завершения рукопожатия TLS) в мс; молчащий клиент отключается
+    static final int HANDSHAKE_TIMEOUT_MS = Integer.getInteger("chat.handshakeTimeoutMs", 10000);
+    // Максимальная длина входящего кадра в байтах; клиент, приславший больше, отключается
+    static final int MAX_FRAME_BYTES = Integer.getInteger("chat.maxFrameBytes", 1024 * 1024);
+
+    // Комнаты: комната, в которую клиент входит при подключении, число сегментов реестра комнат
+    // (независимых блокировок) и наибольшее число комнат одного клиента
+    static final String DEFAULT_ROOM = System.getProperty("chat.defaultRoom", "general");
+    static final int ROOM_SHARDS = Integer.getInteger("chat.roomShards", 64);
+    static final int MAX_ROOMS_PER_USER = Integer.getInteger("chat.maxRoomsPerUser", 32);
+
+    // Кластер: номер узла (0-127, входит в старшие биты идентификаторов пользователей), порт шины
+    // (0 - сервер работает один), адреса шины остальных узлов "host:port,host:port", реализация шины
+    // и емкость очереди сообщений к одному узлу
+    static final int NODE_ID = Integer.getInteger("chat.nodeId", 0);
+    static final int CLUSTER_PORT = Integer.getInteger("chat.clusterPort", 0);
+    static final String CLUSTER_PEERS = System.getProperty("chat.clusterPeers", "");
+    static final String CLUSTER_BUS = System.getProperty("chat.clusterBus", "tcp");
+    static final int CLUSTER_QUEUE_CAPACITY = Integer.getInteger("chat.clusterQueueCapacity", 65536);
+
+    // Ограничения частоты (корзины маркеров): сообщений и байт в секунду на имя пользователя и на адрес клиента,
+    // подключений в секунду с одного адреса (0 - без ограничения) и емкость корзин (наибольший всплеск).
+    // Емкость корзины байт должна быть не меньше MAX_FRAME_BYTES, иначе кадр наибольшего размера не пройдет никогда.
+    // После RATE_LIMIT_DISCONNECT_AFTER отклоненных подряд сообщений соединение разрывается
+    static final long USER_MESSAGES_PER_SECOND = Long.getLong("chat.userMessagesPerSecond", 0);
+    static final long USER_MESSAGE_BURST = Long.getLong("chat.userMessageBurst", 20);
+    static final long USER_BYTES_PER_SECOND = Long.getLong("chat.userBytesPerSecond", 0);
+    static final long USER_BYTE_BURST = Long.getLong("chat.userByteBurst", 1024 * 1024);
+    static final long IP_MESSAGES_PER_SECOND = Long.getLong("chat.ipMessagesPerSecond", 0);
+    static final long IP_MESSAGE_BURST = Long.getLong("chat.ipMessageBurst", 100);
+    static final long IP_BYTES_PER_SECOND = Long.getLong("chat.ipBytesPerSecond", 0);
+    static final long IP_BYTE_BURST = Long.getLong("chat.ipByteBurst", 4 * 1024 * 1024);
+    static final long IP_CONNECTIONS_PER_SECOND = Long.getLong("chat.ipConnectionsPerSecond", 0);
+    static final long IP_CONNECTION_BURST = Long.getLong("chat.ipConnectionBurst", 20);
+    static final int RATE_LIMIT_DISCONNECT_AFTER = Integer.getInteger("chat.rateLimitDisconnectAfter", 50);
+
+    // Предельный объем исходящей очереди одного клиента в байтах
+    static final long MAX_QUEUED_BYTES = Long.getLong("chat.maxQueuedBytes", 1024 * 1024);
+    // Политика при переполнении очереди: DROP_OLDEST или DISCONNECT
+    static final OutboundQueue.SlowConsumerPolicy SLOW_CONSUMER_POLICY =
+            OutboundQueue.SlowConsumerPolicy.valueOf(System.getProperty("chat.slowConsumerPolicy", "DISCONNECT"));
+    // Объединение исходящих кадров: запись в сокет откладывается не более чем на N мкс после
+    // первого незаписанного кадра (0 - писать сразу) или до накопления M байт
+    static final long WRITE_COALESCE_MICROS = Long.getLong("chat.writeCoalesceMicros", 0);
+    static final int WRITE_BATCH_BYTES = Integer.getInteger("chat.writeBatchBytes", 64 * 1024);
+    // Параметры сокета клиента: TCP_NODELAY (отключение алгоритма Нейгла) и размер буфера отправки (0 - по умолчанию ОС)
+    static final boolean TCP_NODELAY = Boolean.parseBoolean(System.getProperty("chat.tcpNoDelay", "true"));
+    static final int SEND_BUFFER_BYTES = Integer.getInteger("chat.sendBufferBytes", 0);
+    // TLS: шифровать ли соединения клиентов, хранилище ключа и сертификата сервера (PKCS12 или JKS, см. ChatTls)
+    // и его пароль, сколько сессий хранить для возобновления без полного рукопожатия и время жизни сессии в секундах.
+    // Клиенты и нагрузочные тесты включают TLS тем же свойством chat.tls
+    static final boolean TLS = Boolean.parseBoolean(System.getProperty("chat.tls", "false"));
+    static final String TLS_KEY_STORE = System.getProperty("chat.tlsKeyStore", "chat-server.p12");
+    static final String TLS_KEY_STORE_PASSWORD = System.getProperty("chat.tlsKeyStorePassword", "changeit");
+    static final int TLS_SESSION_CACHE_SIZE = Integer.getInteger("chat.tlsSessionCacheSize", 20000);
+    static final int TLS_SESSION_TIMEOUT = Integer.getInteger("chat.tlsSessionTimeout", 24 * 60 * 60);
+    // Потоки для вычислений рукопожатий TLS сервера NIO, чтобы они не задерживали циклы событий
+    static final int TLS_HANDSHAKE_THREADS = Integer.getInteger("chat.tlsHandshakeThreads", Runtime.getRuntime().availableProcessors());
+    // Прямые буферы чтения и записи соединений NIO: размер и сколько свободных хранить в пуле каждого цикла событий.
+    // При TLS буферы расшифрованных данных не меньше размера записи TLS
+    static final int IO_BUFFER_BYTES = Integer.getInteger("chat.ioBufferBytes", 16 * 1024);
+    static final int IO_BUFFERS_PER_LOOP = Integer.getInteger("chat.ioBuffersPerLoop", 256);
+    // Пул исходящих кадров (SharedFrame): кадры до N байт берутся из пула, в котором хранится до M свободных
+    static final int POOLED_FRAME_BYTES = Integer.getInteger("chat.pooledFrameBytes", 2048);
+    static final int FRAME_POOL_SIZE = Integer.getInteger("chat.framePoolSize", 8192);
+    // Сжатие тел кадров для клиентов, которые его поддерживают: разрешено ли, с какого размера кадра
+    // в байтах сжимать и уровень DEFLATE (1 - быстрее, 9 - сильнее)
+    static final boolean COMPRESSION = Boolean.parseBoolean(System.getProperty("chat.compression", "true"));
+    static final int COMPRESSION_THRESHOLD = Integer.getInteger("chat.compressionThreshold", 512);
+    static final int COMPRESSION_LEVEL = Integer.getInteger("chat.compressionLevel", 6);
+    // Интервал вывода метрик в журнал в секундах (0 - не выводить)
+    static final int METRICS_INTERVAL = Integer.getInteger("chat.metricsInterval", 0);
+    // Порт HTTP-страницы метрик в формате Prometheus (/metrics; 0 - не запускать). MXBean регистрируется всегда
+    static final int METRICS_PORT = Integer.getInteger("chat.metricsPort", 0);
+
+    // Журнал сообщений: пакет записывается при накоплении N сообщений или через M мс после первого
+    static final int JOURNAL_BATCH_SIZE = Integer.getInteger("chat.journalBatchSize", 256);
+    static final long JOURNAL_FLUSH_MS = Long.getLong("chat.journalFlushMs", 50);
+    // Принудительный сброс журнала на диск: NONE или BATCH (после каждого пакета)
+    static final MessageJournal.FsyncPolicy JOURNAL_FSYNC =
+            MessageJournal.FsyncPolicy.valueOf(System.getProperty("chat.journalFsync", "NONE"));
+    // Размер файла журнала, после которого начинается новый файл
+    static final long JOURNAL_MAX_BYTES = Long.getLong("chat.journalMaxBytes", 64L * 1024 * 1024);
+    // Емкость очереди журнала в сообщениях
+    static final int JOURNAL_QUEUE_CAPACITY = Integer.getInteger("chat.journalQueueCapacity", 65536);
+
+    // История сообщений: каталог сегментов, размер сегмента и шаг разреженного индекса
+    static final String HISTORY_DIR = System.getProperty("chat.historyDir", "history");
+    static final long HISTORY_SEGMENT_BYTES = Long.getLong("chat.historySegmentBytes", 64L * 1024 * 1024);
+    static final int HISTORY_INDEX_INTERVAL = Integer.getInteger("chat.historyIndexInterval", 64);
+    // Сколько последних сообщений показывать клиенту при подключении (0 - не показывать)
+    static final int REPLAY_COUNT = Integer.getInteger("chat.replayCount", 50);
+    // Наибольшее число сообщений комнаты в одной странице истории, запрошенной клиентом при прокрутке (0 - не отвечать)
+    static final int HISTORY_PAGE_SIZE = Integer.getInteger("chat.historyPageSize", 100);
+
+    // Поиск по истории: каталог индекса (пусто - поиск отключен), сколько сообщений держать в памяти до записи
+    // сегмента в файл, сколько сегментов одного уровня сливать в один, наибольший размер сегмента после слияния
+    // и наибольшее число найденных сообщений в ответе
+    static final String SEARCH_DIR = System.getProperty("chat.searchDir", "search");
+    static final int SEARCH_FLUSH_MESSAGES = Integer.getInteger("chat.searchFlushMessages", 65536);
+    static final int SEARCH_MERGE_FACTOR = Integer.getInteger("chat.searchMergeFactor", 10);
+    static final long SEARCH_MAX_SEGMENT_BYTES = Long.getLong("chat.searchMaxSegmentBytes", 1024L * 1024 * 1024);
+    static final int SEARCH_LIMIT = Integer.getInteger("chat.searchLimit", 50);
+
+    // Штатная остановка: сколько ждать, пока клиенты получат свои очереди (затем соединения разрываются),
+    // и сколько - записи журнала, истории и поискового индекса на диск, в мс
+    static final long SHUTDOWN_DRAIN_MS = Long.getLong("chat.shutdownDrainMs", 5000);
+    static final long SHUTDOWN_FLUSH_MS = Long.getLong("chat.shutdownFlushMs", 5000);
+    // Файл снимка состояния для быстрого перезапуска (пусто - снимок не сохраняется)
+    static final String SNAPSHOT_FILE = System.getProperty("chat.snapshotFile", "server.snapshot");
+
+    private ServerConfig() {
+    }
+}
@@ -0,0 +1,37 @@
+package ru.yaga;
+
+import java.time.Instant;
+
+// Структурированные события сервера: одна строка "время уровень event=имя ключ=значение ...",
+// которую удобно разбирать сборщиками журналов. Значения с пробелами заключаются в кавычки
+final class ServerLog {
+    private ServerLog() {
+    }
+
+    static void info(String event, Object... keyValues) {
+        log("INFO", event, keyValues);
+    }
+
+    static void warn(String event, Object... keyValues) {
+        log("WARN", event, keyValues);
+    }
+
+    // keyValues - чередующиеся ключи и значения
+    private static void log(String level, String event, Object[] keyValues) {
+        StringBuilder line = new StringBuilder(128);
+        line.append(Instant.now()).append(' ').append(level).append(" event=").append(event);
+        for (int i = 0; i + 1 < keyValues.length; i += 2) {
+            line.append(' ').append(keyValues[i]).append('=');
+            appendValue(line, String.valueOf(keyValues[i + 1]));
+        }
+        System.out.println(line);
+    }
+
+    private static void appendValue(StringBuilder line, String value) {
+        if (value.isEmpty() || value.indexOf(' ') >= 0 || value.indexOf('"') >= 0 || value.indexOf('=') >= 0 || value.indexOf('\n') >= 0) {
+            line.append('"').append(value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")).append('"');
+        } else {
+            line.append(value);
+        }
+    }
+}
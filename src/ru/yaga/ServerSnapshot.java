@@ -0,0 +1,124 @@
+package ru.yaga;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+// Снимок состояния сервера для быстрого перезапуска. Сохраняется при штатной остановке (ChatServer.shutdown)
+// и читается при следующем запуске, после чего удаляется, поэтому после аварийного завершения сервер
+// запускается без снимка (холодный запуск). В снимке то, что при запуске пришлось бы долго строить заново
+// или потерять: последний идентификатор пользователя и накопительные счетчики метрик, готовый автомат
+// запрещенных слов и сегмент поискового индекса в памяти (недавние сообщения, еще не записанные в файл индекса).
+// Сами сообщения в снимок не входят: история уже сброшена на диск журналом.
+// Файл: [int MAGIC][int VERSION][long время записи][int последний идентификатор][int число счетчиков][long...]
+// [int длина][автомат][int длина][сегмент индекса][long CRC32 всего предыдущего]; длина -1 - раздела нет.
+// Пишется во временный файл с переименованием и читается одним вызовом без разбора по отдельным записям
+final class ServerSnapshot {
+    private static final int MAGIC = 0x43534E50; // "CSNP"
+    private static final int VERSION = 1;
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    final long savedAt; // Время записи снимка, мс
+    final int lastUserId;
+    final long[] counters; // Счетчики ChatMetrics в порядке ChatMetrics.counters()
+    final ByteBuffer moderation; // Автомат запрещенных слов (ForbiddenWordsFilter.snapshot) или null
+    final ByteBuffer searchIndex; // Сегмент поискового индекса в памяти (SearchIndex.snapshot) или null
+
+    ServerSnapshot(long savedAt, int lastUserId, long[] counters, ByteBuffer moderation, ByteBuffer searchIndex) {
+        this.savedAt = savedAt;
+        this.lastUserId = lastUserId;
+        this.counters = counters;
+        this.moderation = moderation;
+        this.searchIndex = searchIndex;
+    }
+
+    // Чтение и удаление снимка. Возвращает null, если снимка нет или он поврежден (тогда запуск холодный)
+    static ServerSnapshot load(Path file) {
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(file);
+            Files.delete(file);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            ServerLog.warn("snapshot_unreadable", "file", file, "error", e);
+            return null;
+        }
+        try {
+            ByteBuffer in = ByteBuffer.wrap(bytes);
+            CRC32 crc = new CRC32();
+            crc.update(bytes, 0, bytes.length - 8);
+            if (in.getInt() != MAGIC || in.getInt() != VERSION || in.getLong(bytes.length - 8) != crc.getValue()) {
+                ServerLog.warn("snapshot_rejected", "file", file, "reason", "corrupt_or_version");
+                return null;
+            }
+            long savedAt = in.getLong();
+            int lastUserId = in.getInt();
+            long[] counters = new long[in.getInt()];
+            in.asLongBuffer().get(counters);
+            in.position(in.position() + counters.length * 8);
+            ByteBuffer moderation = section(in);
+            ByteBuffer searchIndex = section(in);
+            return new ServerSnapshot(savedAt, lastUserId, counters, moderation, searchIndex);
+        } catch (RuntimeException e) {
+            ServerLog.warn("snapshot_unreadable", "file", file, "error", e);
+            return null;
+        }
+    }
+
+    // Раздел снимка как отдельный буфер без копирования
+    private static ByteBuffer section(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        ByteBuffer section = in.slice();
+        section.limit(length);
+        in.position(in.position() + length);
+        return section;
+    }
+
+    // Запись снимка во временный файл, сброс на диск и атомарная замена file
+    void save(Path file) throws IOException {
+        int size = 4 + 4 + 8 + 4 + 4 + counters.length * 8 + sectionBytes(moderation) + sectionBytes(searchIndex) + 8;
+        ByteBuffer out = ByteBuffer.allocate(size);
+        out.putInt(MAGIC).putInt(VERSION).putLong(savedAt).putInt(lastUserId).putInt(counters.length);
+        out.asLongBuffer().put(counters);
+        out.position(out.position() + counters.length * 8);
+        putSection(out, moderation);
+        putSection(out, searchIndex);
+        CRC32 crc = new CRC32();
+        crc.update(out.array(), 0, out.position());
+        out.putLong(crc.getValue());
+        out.flip();
+
+        Path temp = file.resolveSibling(file.getFileName() + TEMP_SUFFIX);
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+            channel.force(false);
+        }
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static int sectionBytes(ByteBuffer section) {
+        return 4 + (section != null ? section.remaining() : 0);
+    }
+
+    private static void putSection(ByteBuffer out, ByteBuffer section) {
+        if (section == null) {
+            out.putInt(-1);
+            return;
+        }
+        out.putInt(section.remaining());
+        out.put(section.duplicate());
+    }
+}
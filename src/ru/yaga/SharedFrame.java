@@ -0,0 +1,78 @@
+package ru.yaga;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+// Закодированный кадр (с префиксом длины), общий для всех получателей рассылки. Кадр кодируется один раз,
+// а каждая исходящая очередь удерживает его ссылкой (retain) и отпускает (release) после записи в сокет
+// или при отбрасывании. Кадры не длиннее POOLED_FRAME_BYTES берутся из пула и возвращаются в него, когда
+// отпущена последняя ссылка, поэтому рассылка коротких сообщений не создает мусора. После release кадр
+// использовать нельзя: его массив может уже содержать другое сообщение
+final class SharedFrame {
+    private static final AtomicIntegerFieldUpdater<SharedFrame> REFS = AtomicIntegerFieldUpdater.newUpdater(SharedFrame.class, "refs");
+    private static final BlockingQueue<SharedFrame> pool = new ArrayBlockingQueue<>(Math.max(1, ServerConfig.FRAME_POOL_SIZE));
+
+    final byte[] bytes; // Кадр занимает [0, length)
+    int length;
+    private final boolean pooled;
+    private volatile int refs;
+
+    private SharedFrame(byte[] bytes, int length, boolean pooled) {
+        this.bytes = bytes;
+        this.length = length;
+        this.pooled = pooled;
+    }
+
+    // Кадр длиной length байт для кодирования с одной ссылкой у вызывающего
+    static SharedFrame allocate(int length) {
+        if (length > ServerConfig.POOLED_FRAME_BYTES) {
+            return wrap(new byte[length]);
+        }
+        SharedFrame frame = pool.poll();
+        if (frame == null) {
+            frame = new SharedFrame(new byte[ServerConfig.POOLED_FRAME_BYTES], 0, true);
+        }
+        frame.length = length;
+        frame.refs = 1;
+        return frame;
+    }
+
+    // Уже закодированный кадр вне пула (служебные кадры, история, кадры других узлов)
+    static SharedFrame wrap(byte[] frame) {
+        SharedFrame shared = new SharedFrame(frame, frame.length, false);
+        shared.refs = 1;
+        return shared;
+    }
+
+    SharedFrame retain() {
+        if (pooled) {
+            REFS.incrementAndGet(this);
+        }
+        return this;
+    }
+
+    // Отпускание ссылки; последняя возвращает кадр в пул. Лишний release - ошибка, которая иначе
+    // проявилась бы чужим текстом в сообщении, поэтому он обрывается исключением
+    void release() {
+        if (!pooled) {
+            return;
+        }
+        int left = REFS.decrementAndGet(this);
+        if (left == 0) {
+            pool.offer(this);
+        } else if (left < 0) {
+            throw new IllegalStateException("Кадр отпущен больше раз, чем удерживался");
+        }
+    }
+
+    byte flags() {
+        return bytes[FrameCodec.LENGTH_BYTES + 1];
+    }
+
+    // Копия кадра точной длины (для сжатия и пересылки другим узлам)
+    byte[] toByteArray() {
+        return !pooled && length == bytes.length ? bytes : Arrays.copyOf(bytes, length);
+    }
+}
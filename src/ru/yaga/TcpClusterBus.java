@@ -0,0 +1,183 @@
+package ru.yaga;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+// Шина кластера поверх TCP (например, несколько узлов на одной машине через loopback).
+// Каждый узел сам подключается ко всем узлам из списка и только пишет в эти соединения,
+// а входящие соединения от других узлов только читает. Так у каждой пары узлов два
+// однонаправленных соединения и не нужно договариваться, кто из них подключается.
+// Запись в узел выполняет отдельный поток с ограниченной очередью: медленный узел
+// не задерживает обработчики клиентов, а при переполнении очереди сообщения отбрасываются.
+// Формат: при подключении стороны обмениваются номерами узлов (int), далее [int длина][сообщение]
+class TcpClusterBus implements ClusterBus {
+    // Пауза перед повторным подключением к узлу: удваивается с каждой неудачей до максимума
+    private static final long MIN_RECONNECT_DELAY_MS = 100;
+    private static final long MAX_RECONNECT_DELAY_MS = 2000;
+    private static final int MAX_MESSAGE_BYTES = 16 * 1024 * 1024;
+
+    private final int nodeId;
+    private final int port;
+    private final List<Peer> peers = new ArrayList<>();
+    private final ConcurrentMap<Integer, Peer> peersByNode = new ConcurrentHashMap<>(); // Подключенные узлы
+    private Listener listener;
+
+    TcpClusterBus(int nodeId, int port, List<InetSocketAddress> peerAddresses, int queueCapacity) {
+        this.nodeId = nodeId;
+        this.port = port;
+        for (InetSocketAddress address : peerAddresses) {
+            peers.add(new Peer(address, queueCapacity));
+        }
+    }
+
+    @Override
+    public void start(Listener listener) throws IOException {
+        this.listener = listener;
+        ServerSocket serverSocket = new ServerSocket(port);
+        startDaemon(() -> acceptLoop(serverSocket), "cluster-accept");
+        for (Peer peer : peers) {
+            startDaemon(peer::writeLoop, "cluster-peer-" + peer.address.getPort());
+        }
+        ServerLog.info("cluster_listening", "nodeId", nodeId, "port", port, "peers", peers.size());
+    }
+
+    @Override
+    public void publish(byte[] message) {
+        for (Peer peer : peersByNode.values()) {
+            peer.offer(message);
+        }
+    }
+
+    @Override
+    public void send(int nodeId, byte[] message) {
+        Peer peer = peersByNode.get(nodeId);
+        if (peer != null) {
+            peer.offer(message);
+        }
+    }
+
+    // Прием входящих соединений от других узлов
+    private void acceptLoop(ServerSocket serverSocket) {
+        while (true) {
+            try {
+                Socket socket = serverSocket.accept();
+                startDaemon(() -> readLoop(socket), "cluster-in-" + socket.getPort());
+            } catch (IOException e) {
+                ServerLog.warn("cluster_accept_failed", "error", e.getMessage());
+            }
+        }
+    }
+
+    // Чтение сообщений одного узла до разрыва соединения
+    private void readLoop(Socket socket) {
+        int remoteNode = -1;
+        try (Socket s = socket) {
+            s.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            DataOutputStream out = new DataOutputStream(s.getOutputStream());
+            remoteNode = in.readInt();
+            out.writeInt(nodeId);
+            out.flush();
+            while (true) {
+                int length = in.readInt();
+                if (length < 0 || length > MAX_MESSAGE_BYTES) {
+                    throw new IOException("Недопустимая длина сообщения кластера: " + length);
+                }
+                byte[] message = new byte[length];
+                in.readFully(message);
+                ChatMetrics.clusterReceived.increment();
+                listener.onMessage(remoteNode, message);
+            }
+        } catch (IOException e) {
+            if (remoteNode >= 0) {
+                ServerLog.warn("cluster_peer_disconnected", "peer", remoteNode, "error", e.getMessage());
+                listener.onPeerDisconnected(remoteNode);
+            }
+        }
+    }
+
+    private static void startDaemon(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Исходящее соединение с одним узлом: очередь сообщений и поток записи с переподключением
+    private final class Peer {
+        final InetSocketAddress address;
+        final BlockingQueue<byte[]> queue;
+
+        Peer(InetSocketAddress address, int queueCapacity) {
+            this.address = address;
+            this.queue = new LinkedBlockingQueue<>(queueCapacity);
+        }
+
+        void offer(byte[] message) {
+            if (queue.offer(message)) {
+                ChatMetrics.clusterPublished.increment();
+            } else {
+                ChatMetrics.clusterDropped.increment();
+            }
+        }
+
+        // Подключение, снимок состояния для узла и запись сообщений; при ошибке - повторное подключение
+        void writeLoop() {
+            long reconnectDelay = MIN_RECONNECT_DELAY_MS;
+            while (true) {
+                int remoteNode = -1;
+                try (Socket socket = new Socket()) {
+                    socket.connect(address);
+                    socket.setTcpNoDelay(true);
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                    DataInputStream in = new DataInputStream(socket.getInputStream());
+                    out.writeInt(nodeId);
+                    out.flush();
+                    remoteNode = in.readInt();
+                    reconnectDelay = MIN_RECONNECT_DELAY_MS;
+                    // Сообщения, накопленные до подключения, заменяет снимок состояния
+                    queue.clear();
+                    peersByNode.put(remoteNode, this);
+                    listener.onPeerConnected(remoteNode);
+                    while (true) {
+                        byte[] message = queue.take();
+                        do {
+                            out.writeInt(message.length);
+                            out.write(message);
+                        } while ((message = queue.poll()) != null);
+                        out.flush(); // Один сброс на все сообщения, накопившиеся за время записи
+                    }
+                } catch (IOException e) {
+                    if (remoteNode >= 0) {
+                        ServerLog.warn("cluster_peer_lost", "peer", remoteNode, "error", e.getMessage());
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } finally {
+                    if (remoteNode >= 0) {
+                        peersByNode.remove(remoteNode, this);
+                    }
+                }
+                try {
+                    Thread.sleep(reconnectDelay);
+                    reconnectDelay = Math.min(reconnectDelay * 2, MAX_RECONNECT_DELAY_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package ru.yaga;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+
+// Шифрование неблокирующего соединения через SSLEngine. Для NioConnection ведет себя как SocketChannel:
+// read расшифровывает данные сокета в буфер чтения, write шифрует буфер записи и отправляет в сокет,
+// flush дописывает то, что сокет не принял. Рукопожатие выполняется внутри этих вызовов, а его задачи
+// (разбор сообщений клиента, вычисление ключей и подпись) - в пуле ChatTls.handshakeExecutor, чтобы цикл событий
+// тем временем обслуживал остальные соединения. Зашифрованные данные лежат в буферах из пула цикла событий,
+// которые соединение держит, только пока они не пусты, поэтому простаивающее соединение с TLS занимает
+// память только под состояние SSLEngine. Вызывается только из потока цикла событий
+final class TlsChannel {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final BufferPool packets;
+    private final Executor loop; // Выполнение в потоке цикла событий соединения
+    private final Runnable resume; // Продолжение работы соединения после задач рукопожатия (в потоке цикла)
+    private boolean tasksRunning; // Задачи рукопожатия выполняются в пуле, SSLEngine пока не используется
+    private ByteBuffer netIn; // Принятые и еще не расшифрованные данные (режим записи), null - нет таких
+    private ByteBuffer netOut; // Зашифрованные и еще не отправленные данные (режим записи), null - нет таких
+    private boolean overflow; // Последний read остановился: в буфере назначения нет места для записи TLS
+
+    TlsChannel(SocketChannel channel, SSLEngine engine, BufferPool packets, Executor loop, Runnable resume) {
+        this.channel = channel;
+        this.engine = engine;
+        this.packets = packets;
+        this.loop = loop;
+        this.resume = resume;
+    }
+
+    // Чтение из сокета и расшифровка в dst всех полностью принятых записей TLS, пока в dst есть место.
+    // Возвращает число расшифрованных байт (0 - возможно, шло рукопожатие) или -1, если соединение закрыто
+    int read(ByteBuffer dst) throws IOException {
+        overflow = false;
+        int produced = 0;
+        while (!tasksRunning) {
+            if (netIn == null) {
+                netIn = packets.acquire();
+            }
+            netIn.flip();
+            SSLEngineResult result = engine.unwrap(netIn, dst);
+            netIn.compact();
+            produced += result.bytesProduced();
+            switch (result.getStatus()) {
+                case BUFFER_OVERFLOW:
+                    overflow = true;
+                    return produced;
+                case CLOSED:
+                    return produced > 0 ? produced : -1;
+                case BUFFER_UNDERFLOW:
+                    if (!netIn.hasRemaining()) {
+                        throw new IOException("Запись TLS длиннее буфера: " + netIn.capacity());
+                    }
+                    int read = channel.read(netIn);
+                    if (read < 0) {
+                        return produced > 0 ? produced : -1;
+                    }
+                    if (read == 0) {
+                        releaseEmpty();
+                        return produced;
+                    }
+                    break;
+                default:
+                    if (!handshake()) {
+                        return produced; // Продолжится после задач или отправки сообщений рукопожатия
+                    }
+                    break;
+            }
+        }
+        return produced;
+    }
+
+    // Расшифровка остановилась из-за нехватки места в буфере назначения
+    boolean overflowed() {
+        return overflow;
+    }
+
+    // Выполняются ли задачи рукопожатия: до их окончания read и write ничего не делают
+    boolean tasksRunning() {
+        return tasksRunning;
+    }
+
+    // Остались ли принятые данные, которые read еще не расшифровал
+    boolean hasBufferedInput() {
+        return netIn != null;
+    }
+
+    // Есть ли зашифрованные данные или сообщения рукопожатия для отправки
+    boolean hasPendingOutput() {
+        return netOut != null || engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP;
+    }
+
+    // Шифрование src и отправка в сокет, пока сокет принимает данные.
+    // Возвращает число зашифрованных байт src; остаток зашифрованных данных отправит flush
+    int write(ByteBuffer src) throws IOException {
+        int consumed = 0;
+        while (!tasksRunning && send()) {
+            if (!src.hasRemaining() && engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                break;
+            }
+            if (netOut == null) {
+                netOut = packets.acquire();
+            }
+            SSLEngineResult result = engine.wrap(src, netOut);
+            consumed += result.bytesConsumed();
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                throw new IOException("Соединение TLS закрыто");
+            }
+            if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                runTasks();
+                break;
+            } else if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+                break; // Рукопожатие ждет данных клиента
+            }
+        }
+        return consumed;
+    }
+
+    // Отправка зашифрованных данных, не принятых сокетом раньше, и ожидающих сообщений рукопожатия.
+    // Возвращает true, если отправлено все
+    boolean flush() throws IOException {
+        write(EMPTY);
+        return netOut == null;
+    }
+
+    // Уведомление клиента о закрытии (close_notify) без ожидания ответа и возврат буферов в пул.
+    // Во время задач рукопожатия SSLEngine занят, и соединение закрывается без уведомления
+    void close() {
+        if (!tasksRunning) {
+            try {
+                engine.closeOutbound();
+                if (netOut == null) {
+                    netOut = packets.acquire();
+                }
+                engine.wrap(EMPTY, netOut);
+                send();
+            } catch (IOException e) {
+                // Клиент уже отключился
+            }
+        }
+        if (netIn != null) {
+            packets.release(netIn);
+            netIn = null;
+        }
+        if (netOut != null) {
+            packets.release(netOut);
+            netOut = null;
+        }
+    }
+
+    // Шаги рукопожатия, не требующие данных клиента. Возвращает false, если сокет не принял сообщения рукопожатия
+    private boolean handshake() throws IOException {
+        while (true) {
+            switch (engine.getHandshakeStatus()) {
+                case NEED_TASK:
+                    runTasks();
+                    return false;
+                case NEED_WRAP:
+                    write(EMPTY);
+                    if (netOut != null || engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                        return false;
+                    }
+                    break;
+                default:
+                    return true;
+            }
+        }
+    }
+
+    // Задачи рукопожатия в пуле; по их окончании соединение продолжает работу в потоке цикла событий
+    private void runTasks() {
+        tasksRunning = true;
+        ChatTls.handshakeExecutor().execute(() -> {
+            Runnable task;
+            while ((task = engine.getDelegatedTask()) != null) {
+                task.run();
+            }
+            loop.execute(() -> {
+                tasksRunning = false;
+                resume.run();
+            });
+        });
+    }
+
+    // Запись netOut в сокет. Возвращает true, если netOut отправлен целиком (буфер возвращается в пул)
+    private boolean send() throws IOException {
+        if (netOut == null) {
+            return true;
+        }
+        netOut.flip();
+        channel.write(netOut);
+        netOut.compact();
+        if (netOut.position() > 0) {
+            return false;
+        }
+        packets.release(netOut);
+        netOut = null;
+        return true;
+    }
+
+    private void releaseEmpty() {
+        if (netIn.position() == 0) {
+            packets.release(netIn);
+            netIn = null;
+        }
+    }
+}
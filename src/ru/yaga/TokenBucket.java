@@ -0,0 +1,52 @@
+package ru.yaga;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Корзина маркеров без блокировок в форме GCRA: вместо числа маркеров хранится одно число -
+// теоретическое время, к которому корзина снова наполнится (tat). Запрос на n маркеров сдвигает tat
+// на n интервалов пополнения и отклоняется, если tat уходит дальше емкости корзины от текущего момента.
+// Обновление - одна операция CAS, поэтому корзину, общую для нескольких соединений (один адрес),
+// можно проверять из разных потоков
+final class TokenBucket {
+    private final long nanosPerToken; // Интервал пополнения одного маркера; 0 - без ограничения
+    private final long burstNanos;    // Емкость корзины, выраженная во времени пополнения
+    private final AtomicLong theoreticalArrival = new AtomicLong(System.nanoTime()); // Полная корзина
+
+    // perSecond маркеров в секунду (0 - без ограничения), не более burst маркеров подряд
+    TokenBucket(long perSecond, long burst) {
+        this.nanosPerToken = perSecond > 0 ? Math.max(1, 1_000_000_000L / perSecond) : 0;
+        this.burstNanos = nanosPerToken * Math.max(1, burst);
+    }
+
+    // Попытка взять tokens маркеров. Запрос больше емкости корзины не выполняется никогда
+    boolean tryAcquire(long tokens) {
+        if (nanosPerToken == 0) {
+            return true;
+        }
+        long cost = tokens * nanosPerToken;
+        long now = System.nanoTime();
+        while (true) {
+            long tat = theoreticalArrival.get();
+            long next = (tat - now > 0 ? tat : now) + cost;
+            if (next - now > burstNanos) {
+                return false;
+            }
+            if (theoreticalArrival.compareAndSet(tat, next)) {
+                return true;
+            }
+        }
+    }
+
+    // Возврат маркеров, взятых tryAcquire, если сообщение отклонила другая корзина: отклоненное сообщение
+    // не расходует лимит. Состояние корзины аддитивно, поэтому возврат корректен и после чужих запросов
+    void refund(long tokens) {
+        if (nanosPerToken != 0) {
+            theoreticalArrival.addAndGet(-tokens * nanosPerToken);
+        }
+    }
+
+    // Корзина полна: ее можно удалить и при необходимости создать заново без изменения поведения
+    boolean isFull() {
+        return theoreticalArrival.get() - System.nanoTime() <= 0;
+    }
+}